@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.NamedRunnable;
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.HttpURLConnectionImpl;
+import com.squareup.okhttp.internal.http.HttpsURLConnectionImpl;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An HTTP request that is executed asynchronously by a {@link Dispatcher}.
+ * Configure the request through {@link #getConnection} as with any {@code
+ * HttpURLConnection}, but don't connect it; then {@link #enqueue} the call.
+ *
+ * <p>As a {@link Future}, a call completes with its connection once the
+ * response headers have been read. Its body can then be read on any thread.
+ */
+public final class Call implements Future<HttpURLConnection>, Runnable {
+  private final Dispatcher dispatcher;
+  private final HttpURLConnection connection;
+  private byte[] requestBody;
+  private File requestBodyFile;
+  private Callback callback;
+
+  /* State guarded by this. */
+  private boolean enqueued;
+  private boolean canceled;
+  private boolean done;
+  private IOException failure;
+
+  Call(Dispatcher dispatcher, HttpURLConnection connection) {
+    this.dispatcher = dispatcher;
+    this.connection = connection;
+  }
+
+  /** Returns the connection to configure the request on. */
+  public HttpURLConnection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Sets the request body. The connection's method should be one that
+   * permits a body, such as POST or PUT.
+   */
+  public Call setRequestBody(byte[] requestBody) {
+    this.requestBody = requestBody;
+    this.requestBodyFile = null;
+    return this;
+  }
+
+  /**
+   * Sets the request body to the contents of {@code file}, which is sent
+   * straight from disk and must not change until the call completes.
+   */
+  public Call setRequestBody(File file) {
+    this.requestBodyFile = file;
+    this.requestBody = null;
+    return this;
+  }
+
+  /**
+   * Schedules this call to run. {@code callback} may be null if the result
+   * will be obtained through {@link #get}.
+   */
+  public Call enqueue(Callback callback) {
+    synchronized (this) {
+      if (enqueued) throw new IllegalStateException("Already enqueued");
+      enqueued = true;
+    }
+    this.callback = callback;
+    dispatcher.enqueue(this);
+    return this;
+  }
+
+  String host() {
+    return connection.getURL().getHost();
+  }
+
+  /**
+   * Cancels this call. A queued call never starts; a running call has its
+   * connection disconnected. Either way it fails with an IOException, unless
+   * its response has already been received.
+   */
+  public void cancel() {
+    cancel(true);
+  }
+
+  /**
+   * Cancels this call as {@link #cancel()} does. Returns false if it had
+   * already completed or been canceled.
+   */
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (done || canceled) return false;
+      canceled = true;
+    }
+    if (dispatcher.dequeue(this)) {
+      complete(new IOException("Canceled"), false);
+    } else if (enqueued) {
+      connection.disconnect();
+    }
+    return true;
+  }
+
+  @Override public synchronized boolean isCancelled() {
+    return canceled;
+  }
+
+  @Override public synchronized boolean isDone() {
+    return done;
+  }
+
+  @Override public synchronized HttpURLConnection get()
+      throws InterruptedException, ExecutionException {
+    while (!done) {
+      wait();
+    }
+    return result();
+  }
+
+  @Override public synchronized HttpURLConnection get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadlineNs = System.nanoTime() + unit.toNanos(timeout);
+    while (!done) {
+      long remainingNs = deadlineNs - System.nanoTime();
+      if (remainingNs <= 0) throw new TimeoutException();
+      TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+    }
+    return result();
+  }
+
+  private HttpURLConnection result() throws ExecutionException {
+    assert (Thread.holdsLock(this));
+    if (failure != null) {
+      if (canceled) throw new CancellationException();
+      throw new ExecutionException(failure);
+    }
+    return connection;
+  }
+
+  /** Sends the request. Runs on a dispatcher thread. */
+  @Override public void run() {
+    String oldName = Thread.currentThread().getName();
+    Thread.currentThread().setName("OkHttp " + connection.getURL());
+    try {
+      synchronized (this) {
+        if (canceled) throw new IOException("Canceled");
+      }
+      if (requestBody != null) {
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(requestBody.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(requestBody);
+        out.close();
+      } else if (requestBodyFile != null) {
+        writeRequestBodyFile();
+      }
+      if (readResponseLater()) {
+        return; // The thread is free until the response headers arrive.
+      }
+      readResponse();
+    } catch (IOException e) {
+      complete(e, true);
+    } finally {
+      Thread.currentThread().setName(oldName);
+    }
+  }
+
+  private void writeRequestBodyFile() throws IOException {
+    if (connection instanceof HttpURLConnectionImpl) {
+      ((HttpURLConnectionImpl) connection).setRequestBody(requestBodyFile);
+    } else if (connection instanceof HttpsURLConnectionImpl) {
+      ((HttpsURLConnectionImpl) connection).setRequestBody(requestBodyFile);
+    } else {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode((int) requestBodyFile.length());
+      InputStream in = new FileInputStream(requestBodyFile);
+      try {
+        OutputStream out = connection.getOutputStream();
+        Util.copy(in, out);
+        out.close();
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  private boolean readResponseLater() throws IOException {
+    Runnable resume = new Runnable() {
+      @Override public void run() {
+        // Called on the SPDY reader thread. Don't block it.
+        dispatcher.execute(new NamedRunnable("OkHttp " + connection.getURL()) {
+          @Override protected void execute() {
+            readResponse();
+          }
+        });
+      }
+    };
+    if (connection instanceof HttpURLConnectionImpl) {
+      return ((HttpURLConnectionImpl) connection).readResponseLater(resume);
+    } else if (connection instanceof HttpsURLConnectionImpl) {
+      return ((HttpsURLConnectionImpl) connection).readResponseLater(resume);
+    }
+    return false;
+  }
+
+  private void readResponse() {
+    try {
+      connection.getResponseCode();
+    } catch (IOException e) {
+      complete(e, true);
+      return;
+    }
+    complete(null, true);
+  }
+
+  private void complete(IOException e, boolean started) {
+    synchronized (this) {
+      if (canceled && e == null) {
+        e = new IOException("Canceled");
+      }
+      failure = e;
+      done = true;
+      notifyAll();
+    }
+    try {
+      if (callback == null) {
+        // Nothing to report to.
+      } else if (e != null) {
+        callback.onFailure(canceled ? new IOException("Canceled") : e);
+      } else {
+        try {
+          callback.onResponse(connection);
+        } catch (IOException thrown) {
+          connection.disconnect();
+        }
+      }
+    } finally {
+      if (started) dispatcher.finished(this);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+/** Receives the outcome of a {@link Call} run by a {@link Dispatcher}. */
+public interface Callback {
+  /**
+   * Called on a dispatcher thread once the response headers have been read.
+   * The response body can be read from {@code connection} here; the call
+   * keeps its dispatcher slot until this method returns.
+   */
+  void onResponse(HttpURLConnection connection) throws IOException;
+
+  /**
+   * Called on a dispatcher thread if the request could not be executed, or
+   * if it was canceled before the response was received.
+   */
+  void onFailure(IOException e);
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+/**
+ * How long each step of opening a connection took. Returned by
+ * {@link OkHttpClient#preconnect}.
+ */
+public final class ConnectTiming {
+  private final Route route;
+  private final long routeSelectionNs;
+  private final long socketConnectNs;
+  private final long handshakeNs;
+  private final boolean spdy;
+
+  ConnectTiming(Route route, long routeSelectionNs, long socketConnectNs, long handshakeNs,
+      boolean spdy) {
+    this.route = route;
+    this.routeSelectionNs = routeSelectionNs;
+    this.socketConnectNs = socketConnectNs;
+    this.handshakeNs = handshakeNs;
+    this.spdy = spdy;
+  }
+
+  /** Returns the route the connection was made on. */
+  public Route getRoute() {
+    return route;
+  }
+
+  /**
+   * Returns the time spent choosing a route. For the first connection to a
+   * host this is dominated by the DNS lookup.
+   */
+  public long getRouteSelectionNs() {
+    return routeSelectionNs;
+  }
+
+  /** Returns the time spent opening the TCP socket. */
+  public long getSocketConnectNs() {
+    return socketConnectNs;
+  }
+
+  /**
+   * Returns the time spent on the TLS handshake and protocol negotiation, or
+   * 0 for plain HTTP connections.
+   */
+  public long getHandshakeNs() {
+    return handshakeNs;
+  }
+
+  /** Returns true if the server negotiated SPDY. */
+  public boolean isSpdy() {
+    return spdy;
+  }
+
+  @Override public String toString() {
+    return route.getSocketAddress() + (spdy ? " spdy" : " http")
+        + " route=" + (routeSelectionNs / 1000000) + "ms"
+        + " connect=" + (socketConnectNs / 1000000) + "ms"
+        + " handshake=" + (handshakeNs / 1000000) + "ms";
+  }
+}
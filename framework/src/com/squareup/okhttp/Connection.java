@@ -17,11 +17,14 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.Platform;
+import com.squareup.okhttp.internal.http.CachingPushHandler;
 import com.squareup.okhttp.internal.http.HttpAuthenticator;
 import com.squareup.okhttp.internal.http.HttpEngine;
 import com.squareup.okhttp.internal.http.HttpTransport;
+import com.squareup.okhttp.internal.http.OkResponseCache;
 import com.squareup.okhttp.internal.http.RawHeaders;
 import com.squareup.okhttp.internal.http.SpdyTransport;
+import com.squareup.okhttp.internal.spdy.PersistedSettings;
 import com.squareup.okhttp.internal.spdy.SpdyConnection;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -83,8 +86,12 @@ public final class Connection implements Closeable {
   private OutputStream out;
   private boolean connected = false;
   private SpdyConnection spdyConnection;
+  private CachingPushHandler pushHandler;
   private int httpMinorVersion = 1; // Assume HTTP/1.1
   private long idleStartTimeNs;
+  /** Time spent in connect() opening the socket, and then securing it. */
+  long socketConnectNs;
+  long handshakeNs;
 
   public Connection(Route route) {
     this.route = route;
@@ -96,14 +103,18 @@ public final class Connection implements Closeable {
       throw new IllegalStateException("already connected");
     }
     connected = true;
+    long startNs = System.nanoTime();
     socket = (route.proxy.type() != Proxy.Type.HTTP) ? new Socket(route.proxy) : new Socket();
     socket.connect(route.inetSocketAddress, connectTimeout);
     socket.setSoTimeout(readTimeout);
     in = socket.getInputStream();
     out = socket.getOutputStream();
+    socketConnectNs = System.nanoTime() - startNs;
 
     if (route.address.sslSocketFactory != null) {
+      startNs = System.nanoTime();
       upgradeToTls(tunnelRequest);
+      handshakeNs = System.nanoTime() - startNs;
     }
 
     // Use MTU-sized buffers to send fewer packets.
@@ -154,7 +165,12 @@ public final class Connection implements Closeable {
         && (selectedProtocol = platform.getNpnSelectedProtocol(sslSocket)) != null) {
       if (Arrays.equals(selectedProtocol, SPDY3)) {
         sslSocket.setSoTimeout(0); // SPDY timeouts are set per-stream.
+        String origin = route.address.getUriHost() + ":" + route.address.getUriPort();
+        pushHandler = new CachingPushHandler(route.address.getUriHost(),
+            route.address.getUriPort(), sslSocket.getSession());
         spdyConnection = new SpdyConnection.Builder(route.address.getUriHost(), true, in, out)
+            .handler(pushHandler)
+            .persistedSettings(PersistedSettings.getDefault(), origin)
             .build();
       } else if (!Arrays.equals(selectedProtocol, HTTP_11)) {
         throw new IOException(
@@ -232,6 +248,22 @@ public final class Connection implements Closeable {
     return spdyConnection != null;
   }
 
+  /**
+   * Stores the responses that the server pushes on this connection in {@code
+   * responseCache}. Pushes are cancelled until this is called. Does nothing
+   * unless this is a SPDY connection.
+   */
+  public void setPushCache(OkResponseCache responseCache) {
+    if (pushHandler != null) {
+      pushHandler.setResponseCache(responseCache);
+    }
+  }
+
+  /** Returns the handler of pushed responses, or null if this isn't a SPDY connection. */
+  public CachingPushHandler getPushHandler() {
+    return pushHandler;
+  }
+
   public SpdyConnection getSpdyConnection() {
     return spdyConnection;
   }
@@ -19,15 +19,19 @@ package com.squareup.okhttp;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Manages reuse of HTTP and SPDY connections for reduced network latency. HTTP
@@ -53,7 +57,6 @@ import java.util.concurrent.TimeUnit;
  * initialized lazily.
  */
 public class ConnectionPool {
-  private static final int MAX_CONNECTIONS_TO_CLEANUP = 2;
   private static final long DEFAULT_KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000; // 5 min
 
   private static final ConnectionPool systemDefault;
@@ -73,78 +76,83 @@ public class ConnectionPool {
     }
   }
 
-  /** The maximum number of idle connections for each address. */
+  /** The maximum number of idle connections in the pool, across all addresses. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
 
-  private final LinkedList<Connection> connections = new LinkedList<Connection>();
-
-  /** We use a single background thread to cleanup expired connections. */
-  private final ExecutorService executorService =
-      new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-  private final Callable<Void> connectionsCleanupCallable = new Callable<Void>() {
-    @Override public Void call() throws Exception {
-      List<Connection> expiredConnections = new ArrayList<Connection>(MAX_CONNECTIONS_TO_CLEANUP);
-      int idleConnectionCount = 0;
-      synchronized (ConnectionPool.this) {
-        for (ListIterator<Connection> i = connections.listIterator(connections.size());
-            i.hasPrevious(); ) {
-          Connection connection = i.previous();
-          if (!connection.isAlive() || connection.isExpired(keepAliveDurationNs)) {
-            i.remove();
-            expiredConnections.add(connection);
-            if (expiredConnections.size() == MAX_CONNECTIONS_TO_CLEANUP) break;
-          } else if (connection.isIdle()) {
-            idleConnectionCount++;
-          }
-        }
+  /**
+   * Pooled connections indexed by address. Lookups only lock the deque of the
+   * requested address, so requests to different hosts don't contend.
+   */
+  private final ConcurrentHashMap<Address, AddressPool> pools =
+      new ConcurrentHashMap<Address, AddressPool>();
+  private final AtomicInteger connectionCount = new AtomicInteger();
 
-        for (ListIterator<Connection> i = connections.listIterator(connections.size());
-            i.hasPrevious() && idleConnectionCount > maxIdleConnections; ) {
-          Connection connection = i.previous();
-          if (connection.isIdle()) {
-            expiredConnections.add(connection);
-            i.remove();
-            --idleConnectionCount;
+  /**
+   * We use a single background thread to cleanup expired connections. It
+   * sleeps until the earliest connection expires and exits once the pool is
+   * empty.
+   */
+  private final Executor executor;
+  private final Object cleanupLock = new Object();
+  /** True if the cleanup runnable is scheduled or running. Guarded by cleanupLock. */
+  private boolean cleanupRunning;
+  /** True if connections were added since the last cleanup. Guarded by cleanupLock. */
+  private boolean cleanupRequested;
+  private final Runnable cleanupRunnable = new Runnable() {
+    @Override public void run() {
+      while (true) {
+        long waitNanos = cleanup(System.nanoTime());
+        synchronized (cleanupLock) {
+          if (waitNanos < 0 && !cleanupRequested) {
+            cleanupRunning = false;
+            return;
           }
+          if (!cleanupRequested && waitNanos > 0) {
+            try {
+              long waitMillis = waitNanos / (1000 * 1000);
+              cleanupLock.wait(waitMillis, (int) (waitNanos - waitMillis * 1000 * 1000));
+            } catch (InterruptedException ignored) {
+            }
+          }
+          cleanupRequested = false;
         }
       }
-      for (Connection expiredConnection : expiredConnections) {
-        Util.closeQuietly(expiredConnection);
-      }
-      return null;
     }
   };
 
   public ConnectionPool(int maxIdleConnections, long keepAliveDurationMs) {
+    this(maxIdleConnections, keepAliveDurationMs,
+        new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()));
+  }
+
+  /** Creates a pool whose background cleanup runs on {@code executor}. */
+  ConnectionPool(int maxIdleConnections, long keepAliveDurationMs, Executor executor) {
     this.maxIdleConnections = maxIdleConnections;
     this.keepAliveDurationNs = keepAliveDurationMs * 1000 * 1000;
+    this.executor = executor;
   }
 
   /**
    * Returns a snapshot of the connections in this pool, ordered from newest to
-   * oldest. Waits for the cleanup callable to run if it is currently scheduled.
+   * oldest. Expired connections are evicted first.
    */
   List<Connection> getConnections() {
-    waitForCleanupCallableToRun();
-    synchronized (this) {
-      return new ArrayList<Connection>(connections);
-    }
-  }
-
-  /**
-   * Blocks until the executor service has processed all currently enqueued
-   * jobs.
-   */
-  private void waitForCleanupCallableToRun() {
-    try {
-      executorService.submit(new Runnable() {
-        @Override public void run() {
-        }
-      }).get();
-    } catch (Exception e) {
-      throw new AssertionError();
+    cleanup(System.nanoTime());
+    List<Connection> result = new ArrayList<Connection>();
+    for (AddressPool pool : pools.values()) {
+      synchronized (pool) {
+        result.addAll(pool.connections);
+      }
     }
+    Collections.sort(result, new Comparator<Connection>() {
+      @Override public int compare(Connection a, Connection b) {
+        long aStart = a.getIdleStartTimeNs();
+        long bStart = b.getIdleStartTimeNs();
+        return aStart > bStart ? -1 : (aStart == bStart ? 0 : 1);
+      }
+    });
+    return result;
   }
 
   public static ConnectionPool getDefault() {
@@ -152,40 +160,85 @@ public class ConnectionPool {
   }
 
   /** Returns total number of connections in the pool. */
-  public synchronized int getConnectionCount() {
-    return connections.size();
+  public int getConnectionCount() {
+    return connectionCount.get();
   }
 
   /** Returns total number of spdy connections in the pool. */
-  public synchronized int getSpdyConnectionCount() {
+  public int getSpdyConnectionCount() {
     int total = 0;
-    for (Connection connection : connections) {
-      if (connection.isSpdy()) total++;
+    for (AddressPool pool : pools.values()) {
+      synchronized (pool) {
+        for (Connection connection : pool.connections) {
+          if (connection.isSpdy()) total++;
+        }
+      }
     }
     return total;
   }
 
   /** Returns total number of http connections in the pool. */
-  public synchronized int getHttpConnectionCount() {
+  public int getHttpConnectionCount() {
     int total = 0;
-    for (Connection connection : connections) {
-      if (!connection.isSpdy()) total++;
+    for (AddressPool pool : pools.values()) {
+      synchronized (pool) {
+        for (Connection connection : pool.connections) {
+          if (!connection.isSpdy()) total++;
+        }
+      }
     }
     return total;
   }
 
+  int getMaxIdleConnections() {
+    return maxIdleConnections;
+  }
+
+  /**
+   * Returns the number of pooled connections to {@code address}, or -1 if
+   * one of them is a SPDY connection.
+   */
+  int getConnectionCount(Address address) {
+    AddressPool pool = pools.get(address);
+    if (pool == null) {
+      return 0;
+    }
+    synchronized (pool) {
+      for (Connection connection : pool.connections) {
+        if (connection.isSpdy()) return -1;
+      }
+      return pool.connections.size();
+    }
+  }
+
   /** Returns a recycled connection to {@code address}, or null if no such connection exists. */
-  public synchronized Connection get(Address address) {
-    Connection foundConnection = null;
-    for (ListIterator<Connection> i = connections.listIterator(connections.size());
-        i.hasPrevious(); ) {
-      Connection connection = i.previous();
-      if (!connection.getRoute().getAddress().equals(address)
-          || !connection.isAlive()
-          || System.nanoTime() - connection.getIdleStartTimeNs() >= keepAliveDurationNs) {
+  public Connection get(Address address) {
+    AddressPool pool = pools.get(address);
+    if (pool == null) {
+      return null;
+    }
+
+    while (true) {
+      Connection connection;
+      boolean reusable;
+      synchronized (pool) {
+        // Take the most recently used connection, so that surplus ones can expire.
+        connection = pool.connections.peekFirst();
+        if (connection == null) {
+          return null;
+        }
+        reusable = connection.isAlive() && !connection.isExpired(keepAliveDurationNs);
+        // SPDY connections are shared, so they stay in the pool while in use.
+        if (!reusable || !connection.isSpdy()) {
+          pool.connections.removeFirst();
+          connectionCount.decrementAndGet();
+        }
+      }
+
+      if (!reusable) {
+        Util.closeQuietly(connection);
         continue;
       }
-      i.remove();
       if (!connection.isSpdy()) {
         try {
           Platform.get().tagSocket(connection.getSocket());
@@ -196,16 +249,8 @@ public class ConnectionPool {
           continue;
         }
       }
-      foundConnection = connection;
-      break;
+      return connection;
     }
-
-    if (foundConnection != null && foundConnection.isSpdy()) {
-      connections.addFirst(foundConnection); // Add it back after iteration.
-    }
-
-    executorService.submit(connectionsCleanupCallable);
-    return foundConnection;
   }
 
   /**
@@ -215,8 +260,6 @@ public class ConnectionPool {
    * <p>It is an error to use {@code connection} after calling this method.
    */
   public void recycle(Connection connection) {
-    executorService.submit(connectionsCleanupCallable);
-
     if (connection.isSpdy()) {
       return;
     }
@@ -235,10 +278,8 @@ public class ConnectionPool {
       return;
     }
 
-    synchronized (this) {
-      connections.addFirst(connection);
-      connection.resetIdleStartTime();
-    }
+    connection.resetIdleStartTime();
+    addConnection(connection);
   }
 
   /**
@@ -246,28 +287,135 @@ public class ConnectionPool {
    * continue to use {@code connection}.
    */
   public void maybeShare(Connection connection) {
-    executorService.submit(connectionsCleanupCallable);
     if (!connection.isSpdy()) {
       // Only SPDY connections are sharable.
       return;
     }
     if (connection.isAlive()) {
-      synchronized (this) {
-        connections.addFirst(connection);
-      }
+      addConnection(connection);
     }
   }
 
   /** Close and remove all connections in the pool. */
   public void evictAll() {
-    List<Connection> connections;
-    synchronized (this) {
-      connections = new ArrayList<Connection>(this.connections);
-      this.connections.clear();
+    List<Connection> connections = new ArrayList<Connection>();
+    for (AddressPool pool : pools.values()) {
+      synchronized (pool) {
+        connections.addAll(pool.connections);
+        connectionCount.addAndGet(-pool.connections.size());
+        pool.connections.clear();
+      }
     }
 
     for (Connection connection : connections) {
       Util.closeQuietly(connection);
     }
   }
+
+  private void addConnection(Connection connection) {
+    Address address = connection.getRoute().getAddress();
+    while (true) {
+      AddressPool pool = pools.get(address);
+      if (pool == null) {
+        pool = new AddressPool();
+        AddressPool existing = pools.putIfAbsent(address, pool);
+        if (existing != null) pool = existing;
+      }
+      synchronized (pool) {
+        // An emptied pool may have been unlinked by the cleanup thread.
+        if (pool.removed) continue;
+        pool.connections.addFirst(connection);
+      }
+      break;
+    }
+
+    // A new connection never expires before the ones already pooled, so the
+    // cleanup thread only needs waking if it is idle or the pool is over capacity.
+    boolean overCapacity = connectionCount.incrementAndGet() > maxIdleConnections;
+    synchronized (cleanupLock) {
+      cleanupRequested = true;
+      if (!cleanupRunning) {
+        cleanupRunning = true;
+        executor.execute(cleanupRunnable);
+      } else if (overCapacity) {
+        cleanupLock.notify();
+      }
+    }
+  }
+
+  /**
+   * Closes connections that are dead or have been idle for too long, and the
+   * oldest idle connections beyond {@code maxIdleConnections}. Returns the
+   * time in nanoseconds until the next connection expires, or -1 if the pool
+   * is empty.
+   */
+  long cleanup(long now) {
+    List<Connection> expiredConnections = new ArrayList<Connection>();
+    List<Connection> idleConnections = new ArrayList<Connection>();
+    long nextExpiryNs = Long.MAX_VALUE;
+    boolean empty = true;
+
+    for (Iterator<AddressPool> p = pools.values().iterator(); p.hasNext(); ) {
+      AddressPool pool = p.next();
+      synchronized (pool) {
+        for (Iterator<Connection> i = pool.connections.iterator(); i.hasNext(); ) {
+          Connection connection = i.next();
+          if (!connection.isAlive() || connection.isExpired(keepAliveDurationNs)) {
+            i.remove();
+            connectionCount.decrementAndGet();
+            expiredConnections.add(connection);
+          } else if (connection.isIdle()) {
+            idleConnections.add(connection);
+            nextExpiryNs = Math.min(nextExpiryNs, connection.getIdleStartTimeNs() + keepAliveDurationNs);
+          } else {
+            // A busy SPDY connection. Check again once it could have expired.
+            nextExpiryNs = Math.min(nextExpiryNs, now + keepAliveDurationNs);
+          }
+        }
+        if (pool.connections.isEmpty()) {
+          pool.removed = true;
+          p.remove();
+        } else {
+          empty = false;
+        }
+      }
+    }
+
+    if (idleConnections.size() > maxIdleConnections) {
+      Collections.sort(idleConnections, new Comparator<Connection>() {
+        @Override public int compare(Connection a, Connection b) {
+          long aStart = a.getIdleStartTimeNs();
+          long bStart = b.getIdleStartTimeNs();
+          return aStart < bStart ? -1 : (aStart == bStart ? 0 : 1);
+        }
+      });
+      for (int i = 0, count = idleConnections.size() - maxIdleConnections; i < count; i++) {
+        Connection connection = idleConnections.get(i);
+        AddressPool pool = pools.get(connection.getRoute().getAddress());
+        if (pool == null) continue;
+        synchronized (pool) {
+          // The connection may have been taken by get() since it was counted.
+          if (pool.connections.remove(connection)) {
+            connectionCount.decrementAndGet();
+            expiredConnections.add(connection);
+          }
+        }
+      }
+    }
+
+    for (Connection expiredConnection : expiredConnections) {
+      Util.closeQuietly(expiredConnection);
+    }
+    if (empty && connectionCount.get() == 0) {
+      return -1;
+    }
+    return Math.max(0, nextExpiryNs - now);
+  }
+
+  /** The connections to one address, ordered from newest to oldest. */
+  private static final class AddressPool {
+    final Deque<Connection> connections = new ArrayDeque<Connection>();
+    /** True once this pool has been unlinked from {@code pools}. */
+    boolean removed;
+  }
 }
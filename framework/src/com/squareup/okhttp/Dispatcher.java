@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs asynchronous {@link Call calls}, limiting how many run at once in
+ * total and to each host. Calls over a limit wait in a queue and start in
+ * the order they were enqueued.
+ *
+ * <p>A running call holds a thread while it connects and sends its request.
+ * On SPDY connections it then releases the thread until the response
+ * headers arrive, so many calls multiplexed on one connection don't need a
+ * thread each while waiting for the server.
+ */
+public final class Dispatcher {
+  private final int maxRequests;
+  private final int maxRequestsPerHost;
+
+  /** Created lazily. */
+  private ExecutorService executorService;
+
+  private final Deque<Call> readyCalls = new ArrayDeque<Call>();
+  private final Deque<Call> runningCalls = new ArrayDeque<Call>();
+
+  public Dispatcher() {
+    this(64, 5);
+  }
+
+  public Dispatcher(int maxRequests, int maxRequestsPerHost) {
+    if (maxRequests < 1) throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+    if (maxRequestsPerHost < 1) {
+      throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+    }
+    this.maxRequests = maxRequests;
+    this.maxRequestsPerHost = maxRequestsPerHost;
+  }
+
+  public int getMaxRequests() {
+    return maxRequests;
+  }
+
+  public int getMaxRequestsPerHost() {
+    return maxRequestsPerHost;
+  }
+
+  /** Returns the number of calls that have started and not yet finished. */
+  public synchronized int getRunningCallCount() {
+    return runningCalls.size();
+  }
+
+  /** Returns the number of calls waiting for a slot. */
+  public synchronized int getQueuedCallCount() {
+    return readyCalls.size();
+  }
+
+  synchronized void enqueue(Call call) {
+    if (runningCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
+      runningCalls.add(call);
+      execute(call);
+    } else {
+      readyCalls.add(call);
+    }
+  }
+
+  /** Removes {@code call} from the queue. Returns false if it has already started. */
+  synchronized boolean dequeue(Call call) {
+    return readyCalls.remove(call);
+  }
+
+  /** Releases the slot of {@code call} and starts the calls that were waiting for it. */
+  synchronized void finished(Call call) {
+    if (!runningCalls.remove(call)) throw new AssertionError("Call wasn't running!");
+
+    for (Iterator<Call> i = readyCalls.iterator();
+        i.hasNext() && runningCalls.size() < maxRequests; ) {
+      Call ready = i.next();
+      if (runningCallsForHost(ready) < maxRequestsPerHost) {
+        i.remove();
+        runningCalls.add(ready);
+        execute(ready);
+      }
+    }
+  }
+
+  /**
+   * Runs {@code runnable} on a dispatcher thread. There are at most {@code
+   * maxRequests} threads; work for a call whose response arrives while they
+   * are all busy waits for one to become free.
+   */
+  synchronized void execute(Runnable runnable) {
+    if (executorService == null) {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(maxRequests, maxRequests,
+          60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+      executor.allowCoreThreadTimeOut(true);
+      executorService = executor;
+    }
+    executorService.execute(runnable);
+  }
+
+  private int runningCallsForHost(Call call) {
+    int result = 0;
+    for (Call running : runningCalls) {
+      if (running.host().equals(call.host())) result++;
+    }
+    return result;
+  }
+}
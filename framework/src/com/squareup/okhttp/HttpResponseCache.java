@@ -18,6 +18,7 @@ package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.Base64;
 import com.squareup.okhttp.internal.DiskLruCache;
+import com.squareup.okhttp.internal.ShardedDiskLruCache;
 import com.squareup.okhttp.internal.StrictLineReader;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.HttpEngine;
@@ -53,10 +54,13 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 
 import static com.squareup.okhttp.internal.Util.US_ASCII;
 import static com.squareup.okhttp.internal.Util.UTF_8;
@@ -117,6 +121,21 @@ import static com.squareup.okhttp.internal.Util.UTF_8;
  *         int maxStale = 60 * 60 * 24 * 28; // tolerate 4-weeks stale
  *         connection.addRequestProperty("Cache-Control", "max-stale=" + maxStale);
  * }</pre>
+ *
+ * <h3>Memory Tier</h3>
+ * Small responses can also be kept in memory with {@link #setMaxMemorySize},
+ * so that hits on them don't read from the filesystem. The memory tier holds
+ * the parsed headers and body of responses up to 64 KiB, and evicts the least
+ * recently used responses to stay within its byte budget. {@link
+ * #getMemoryHitCount} and {@link #getDiskHitCount} count the responses that
+ * each tier returned.
+ *
+ * <h3>Server Push</h3>
+ * Responses that a SPDY server pushes are stored as if they had been
+ * requested, if their headers permit it, so that the request that follows is
+ * served from the cache. {@link #getPushCount} and {@link #getPushRejectCount}
+ * count the pushed responses that were stored and refused, and {@link
+ * #getPushHitCount} counts the stored ones that later requests found.
  */
 public final class HttpResponseCache extends ResponseCache {
   private static final char[] DIGITS =
@@ -127,8 +146,18 @@ public final class HttpResponseCache extends ResponseCache {
   private static final int ENTRY_METADATA = 0;
   private static final int ENTRY_BODY = 1;
   private static final int ENTRY_COUNT = 2;
+  private static final int MAX_MEMORY_ENTRY_SIZE = 64 * 1024;
+  private static final int MAX_UNCLAIMED_PUSHES = 256;
+
+  private final ShardedDiskLruCache cache;
 
-  private final DiskLruCache cache;
+  /* the memory tier, keyed by URI and guarded by itself */
+  private final LinkedHashMap<String, MemoryEntry> memoryEntries =
+      new LinkedHashMap<String, MemoryEntry>(0, 0.75f, true);
+  private long maxMemorySize;
+  private long memorySize;
+  /** Incremented by each invalidation so reads that raced one aren't cached. */
+  private int memoryGeneration;
 
   /* read and write statistics, all guarded by 'this' */
   private int writeSuccessCount;
@@ -136,6 +165,19 @@ public final class HttpResponseCache extends ResponseCache {
   private int networkCount;
   private int hitCount;
   private int requestCount;
+  private int memoryHitCount;
+  private int diskHitCount;
+  private int pushCount;
+  private int pushRejectCount;
+  private int pushHitCount;
+
+  /** URIs of stored pushes that no request has found yet. Guarded by 'this'. */
+  private final LinkedHashMap<String, Boolean> unclaimedPushes =
+      new LinkedHashMap<String, Boolean>(0, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+          return size() > MAX_UNCLAIMED_PUSHES;
+        }
+      };
 
   /**
    * Although this class only exposes the limited ResponseCache API, it
@@ -165,10 +207,41 @@ public final class HttpResponseCache extends ResponseCache {
     @Override public void trackResponse(ResponseSource source) {
       HttpResponseCache.this.trackResponse(source);
     }
+
+    @Override public CacheRequest putPushed(URI uri, ResponseHeaders response,
+        SSLSession sslSession) throws IOException {
+      return HttpResponseCache.this.putPushed(uri, response, sslSession);
+    }
+
+    @Override public void trackPushRejected() {
+      HttpResponseCache.this.trackPushRejected();
+    }
   };
 
   public HttpResponseCache(File directory, long maxSize) throws IOException {
-    cache = DiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize);
+    this(directory, maxSize, 1);
+  }
+
+  /**
+   * Creates a cache whose entries are split across {@code shardCount}
+   * independently locked shards, each with an equal share of {@code maxSize}.
+   * Use more than one shard when many threads read and write the cache
+   * concurrently. Changing the shard count discards the cache's contents.
+   */
+  public HttpResponseCache(File directory, long maxSize, int shardCount) throws IOException {
+    this(directory, maxSize, shardCount, false);
+  }
+
+  /**
+   * Creates a cache like {@link #HttpResponseCache(File, long, int)}. If
+   * {@code binaryJournal} is true the cache's journal is kept in a compact
+   * binary format that opens faster when there are many entries. The journal
+   * is migrated whenever the cache is opened with the other format.
+   */
+  public HttpResponseCache(File directory, long maxSize, int shardCount, boolean binaryJournal)
+      throws IOException {
+    cache = ShardedDiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize, shardCount,
+        binaryJournal);
   }
 
   private String uriToKey(URI uri) {
@@ -196,6 +269,24 @@ public final class HttpResponseCache extends ResponseCache {
 
   @Override public CacheResponse get(URI uri, String requestMethod,
       Map<String, List<String>> requestHeaders) {
+    String uriString = uri.toString();
+    MemoryEntry memoryEntry;
+    int generation;
+    synchronized (memoryEntries) {
+      memoryEntry = memoryEntries.get(uriString);
+      generation = memoryGeneration;
+    }
+    if (memoryEntry != null) {
+      if (!memoryEntry.entry.matches(uri, requestMethod, requestHeaders)) {
+        return null;
+      }
+      synchronized (this) {
+        memoryHitCount++;
+        trackPushHit(uriString);
+      }
+      return newCacheResponse(memoryEntry.entry, null, new ByteArrayInputStream(memoryEntry.body));
+    }
+
     String key = uriToKey(uri);
     DiskLruCache.Snapshot snapshot;
     Entry entry;
@@ -215,8 +306,99 @@ public final class HttpResponseCache extends ResponseCache {
       return null;
     }
 
-    return entry.isHttps() ? new EntrySecureCacheResponse(entry, snapshot)
-        : new EntryCacheResponse(entry, snapshot);
+    synchronized (this) {
+      diskHitCount++;
+      trackPushHit(uriString);
+    }
+
+    long bodyLength = snapshot.getLength(ENTRY_BODY);
+    if (bodyLength <= maxMemoryEntrySize()) {
+      byte[] body = new byte[(int) bodyLength];
+      try {
+        Util.readFully(snapshot.getInputStream(ENTRY_BODY), body);
+      } catch (IOException e) {
+        snapshot.close();
+        return null;
+      }
+      snapshot.close();
+      putMemoryEntry(uriString, new MemoryEntry(entry, body), generation);
+      return newCacheResponse(entry, null, new ByteArrayInputStream(body));
+    }
+
+    return newCacheResponse(entry, snapshot, newBodyInputStream(snapshot));
+  }
+
+  private CacheResponse newCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot,
+      InputStream body) {
+    return entry.isHttps() ? new EntrySecureCacheResponse(entry, snapshot, body)
+        : new EntryCacheResponse(entry, snapshot, body);
+  }
+
+  /** Returns the largest body the memory tier will hold, or -1 if it is disabled. */
+  private long maxMemoryEntrySize() {
+    synchronized (memoryEntries) {
+      return maxMemorySize > 0 ? Math.min(MAX_MEMORY_ENTRY_SIZE, maxMemorySize / 4) : -1;
+    }
+  }
+
+  private void putMemoryEntry(String uri, MemoryEntry memoryEntry, int generation) {
+    synchronized (memoryEntries) {
+      if (generation != memoryGeneration) {
+        return; // The entry was invalidated while it was being read.
+      }
+      MemoryEntry displaced = memoryEntries.put(uri, memoryEntry);
+      if (displaced != null) {
+        memorySize -= displaced.size;
+      }
+      memorySize += memoryEntry.size;
+      trimMemoryToSize();
+    }
+  }
+
+  private void invalidateMemoryEntry(String uri) {
+    synchronized (memoryEntries) {
+      memoryGeneration++;
+      MemoryEntry removed = memoryEntries.remove(uri);
+      if (removed != null) {
+        memorySize -= removed.size;
+      }
+    }
+  }
+
+  private void trimMemoryToSize() {
+    assert (Thread.holdsLock(memoryEntries));
+    for (Iterator<MemoryEntry> i = memoryEntries.values().iterator();
+        memorySize > maxMemorySize && i.hasNext(); ) {
+      memorySize -= i.next().size;
+      i.remove();
+    }
+  }
+
+  /**
+   * Sets the number of bytes of small responses to also keep in memory. The
+   * memory tier is disabled by default.
+   */
+  public void setMaxMemorySize(long maxMemorySize) {
+    if (maxMemorySize < 0) {
+      throw new IllegalArgumentException("maxMemorySize < 0");
+    }
+    synchronized (memoryEntries) {
+      this.maxMemorySize = maxMemorySize;
+      trimMemoryToSize();
+    }
+  }
+
+  public long getMaxMemorySize() {
+    synchronized (memoryEntries) {
+      return maxMemorySize;
+    }
+  }
+
+  /** Returns the number of bytes used by responses in the memory tier. */
+  public long getMemorySize() {
+    synchronized (memoryEntries) {
+      return memorySize;
+    }
   }
 
   @Override public CacheRequest put(URI uri, URLConnection urlConnection) throws IOException {
@@ -227,6 +409,10 @@ public final class HttpResponseCache extends ResponseCache {
     HttpURLConnection httpConnection = (HttpURLConnection) urlConnection;
     String requestMethod = httpConnection.getRequestMethod();
     String key = uriToKey(uri);
+    invalidateMemoryEntry(uri.toString());
+    synchronized (this) {
+      unclaimedPushes.remove(uri.toString());
+    }
 
     if (requestMethod.equals("POST") || requestMethod.equals("PUT") || requestMethod.equals(
         "DELETE")) {
@@ -264,7 +450,41 @@ public final class HttpResponseCache extends ResponseCache {
         return null;
       }
       entry.writeTo(editor);
-      return new CacheRequestImpl(editor);
+      return new CacheRequestImpl(uri.toString(), editor, false);
+    } catch (IOException e) {
+      abortQuietly(editor);
+      return null;
+    }
+  }
+
+  private CacheRequest putPushed(URI uri, ResponseHeaders response, SSLSession sslSession) {
+    // The request a push answers is only known by its URI, so there's nothing
+    // to match a Vary header against.
+    if (!response.getVaryFields().isEmpty()) {
+      return null;
+    }
+    if (uri.getScheme().equals("https") && sslSession == null) {
+      return null; // Secure responses need the session's certificates.
+    }
+
+    String key = uriToKey(uri);
+    Entry entry = new Entry(uri, new RawHeaders(), response.getHeaders(), sslSession);
+    DiskLruCache.Editor editor = null;
+    try {
+      // Don't replace a response a request already cached; it's at least as good.
+      DiskLruCache.Snapshot snapshot = cache.get(key);
+      if (snapshot != null) {
+        snapshot.close();
+        return null;
+      }
+      invalidateMemoryEntry(uri.toString());
+      // Returns null if the response is being written by a request already.
+      editor = cache.edit(key);
+      if (editor == null) {
+        return null;
+      }
+      entry.writeTo(editor);
+      return new CacheRequestImpl(uri.toString(), editor, true);
     } catch (IOException e) {
       abortQuietly(editor);
       return null;
@@ -282,9 +502,13 @@ public final class HttpResponseCache extends ResponseCache {
     DiskLruCache.Snapshot snapshot = (conditionalCacheHit instanceof EntryCacheResponse)
         ? ((EntryCacheResponse) conditionalCacheHit).snapshot
         : ((EntrySecureCacheResponse) conditionalCacheHit).snapshot;
+    invalidateMemoryEntry(uri.toString());
     DiskLruCache.Editor editor = null;
     try {
-      editor = snapshot.edit(); // returns null if snapshot is not current
+      // Responses served from memory have no snapshot to check for currency.
+      editor = snapshot != null
+          ? snapshot.edit() // returns null if snapshot is not current
+          : cache.edit(uriToKey(uri));
       if (editor != null) {
         entry.writeTo(editor);
         editor.commit();
@@ -292,6 +516,7 @@ public final class HttpResponseCache extends ResponseCache {
     } catch (IOException e) {
       abortQuietly(editor);
     }
+    invalidateMemoryEntry(uri.toString());
   }
 
   private void abortQuietly(DiskLruCache.Editor editor) {
@@ -320,6 +545,11 @@ public final class HttpResponseCache extends ResponseCache {
    * the cache.
    */
   public void delete() throws IOException {
+    synchronized (memoryEntries) {
+      memoryGeneration++;
+      memoryEntries.clear();
+      memorySize = 0;
+    }
     cache.delete();
   }
 
@@ -361,13 +591,53 @@ public final class HttpResponseCache extends ResponseCache {
     return requestCount;
   }
 
+  /** Returns the number of cached responses that were read from memory. */
+  public synchronized int getMemoryHitCount() {
+    return memoryHitCount;
+  }
+
+  /** Returns the number of cached responses that were read from the filesystem. */
+  public synchronized int getDiskHitCount() {
+    return diskHitCount;
+  }
+
+  private synchronized void trackPushRejected() {
+    pushRejectCount++;
+  }
+
+  private void trackPushHit(String uri) {
+    assert (Thread.holdsLock(this));
+    if (unclaimedPushes.remove(uri) != null) {
+      pushHitCount++;
+    }
+  }
+
+  /** Returns the number of pushed responses that were stored. */
+  public synchronized int getPushCount() {
+    return pushCount;
+  }
+
+  /**
+   * Returns the number of pushed responses that were refused or abandoned,
+   * because they weren't cacheable or their connection had pushed too much.
+   */
+  public synchronized int getPushRejectCount() {
+    return pushRejectCount;
+  }
+
+  /** Returns the number of stored pushed responses that a request then found. */
+  public synchronized int getPushHitCount() {
+    return pushHitCount;
+  }
+
   private final class CacheRequestImpl extends CacheRequest {
     private final DiskLruCache.Editor editor;
     private OutputStream cacheOut;
     private boolean done;
     private OutputStream body;
 
-    public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+    public CacheRequestImpl(final String uri, final DiskLruCache.Editor editor,
+        final boolean pushed) throws IOException {
       this.editor = editor;
       this.cacheOut = editor.newOutputStream(ENTRY_BODY);
       this.body = new FilterOutputStream(cacheOut) {
@@ -381,6 +651,14 @@ public final class HttpResponseCache extends ResponseCache {
           }
           super.close();
           editor.commit();
+          // Drop any copy of the previous response read since put().
+          invalidateMemoryEntry(uri);
+          if (pushed) {
+            synchronized (HttpResponseCache.this) {
+              pushCount++;
+              unclaimedPushes.put(uri, Boolean.TRUE);
+            }
+          }
         }
 
         @Override
@@ -530,6 +808,30 @@ public final class HttpResponseCache extends ResponseCache {
       }
     }
 
+    /** Creates an entry for a response pushed for a GET of {@code uri}. */
+    public Entry(URI uri, RawHeaders varyHeaders, RawHeaders responseHeaders,
+        SSLSession sslSession) {
+      this.uri = uri.toString();
+      this.varyHeaders = varyHeaders;
+      this.requestMethod = "GET";
+      this.responseHeaders = responseHeaders;
+
+      if (isHttps()) {
+        cipherSuite = sslSession.getCipherSuite();
+        Certificate[] peerCertificatesNonFinal = null;
+        try {
+          peerCertificatesNonFinal = sslSession.getPeerCertificates();
+        } catch (SSLPeerUnverifiedException ignored) {
+        }
+        peerCertificates = peerCertificatesNonFinal;
+        localCertificates = sslSession.getLocalCertificates();
+      } else {
+        cipherSuite = null;
+        peerCertificates = null;
+        localCertificates = null;
+      }
+    }
+
     public void writeTo(DiskLruCache.Editor editor) throws IOException {
       OutputStream out = editor.newOutputStream(ENTRY_METADATA);
       Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
@@ -560,6 +862,19 @@ public final class HttpResponseCache extends ResponseCache {
       return uri.startsWith("https://");
     }
 
+    /** Returns roughly how many bytes of memory this entry's strings use. */
+    private long estimateSize() {
+      long chars = uri.length() + requestMethod.length()
+          + responseHeaders.getStatusLine().length();
+      for (int i = 0; i < varyHeaders.length(); i++) {
+        chars += varyHeaders.getFieldName(i).length() + varyHeaders.getValue(i).length();
+      }
+      for (int i = 0; i < responseHeaders.length(); i++) {
+        chars += responseHeaders.getFieldName(i).length() + responseHeaders.getValue(i).length();
+      }
+      return chars * 2;
+    }
+
     private Certificate[] readCertArray(StrictLineReader reader) throws IOException {
       int length = reader.readInt();
       if (length == -1) {
@@ -618,15 +933,29 @@ public final class HttpResponseCache extends ResponseCache {
     };
   }
 
+  /** The parsed metadata and body of a small response in the memory tier. */
+  private static final class MemoryEntry {
+    private final Entry entry;
+    private final byte[] body;
+    private final long size;
+
+    MemoryEntry(Entry entry, byte[] body) {
+      this.entry = entry;
+      this.body = body;
+      this.size = body.length + entry.estimateSize();
+    }
+  }
+
+  /** {@code snapshot} is null if the response was read from memory. */
   static class EntryCacheResponse extends CacheResponse {
     private final Entry entry;
     private final DiskLruCache.Snapshot snapshot;
     private final InputStream in;
 
-    public EntryCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot) {
+    public EntryCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot, InputStream in) {
       this.entry = entry;
       this.snapshot = snapshot;
-      this.in = newBodyInputStream(snapshot);
+      this.in = in;
     }
 
     @Override public Map<String, List<String>> getHeaders() {
@@ -643,10 +972,11 @@ public final class HttpResponseCache extends ResponseCache {
     private final DiskLruCache.Snapshot snapshot;
     private final InputStream in;
 
-    public EntrySecureCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot) {
+    public EntrySecureCacheResponse(Entry entry, DiskLruCache.Snapshot snapshot,
+        InputStream in) {
       this.entry = entry;
       this.snapshot = snapshot;
-      this.in = newBodyInputStream(snapshot);
+      this.in = in;
     }
 
     @Override public Map<String, List<String>> getHeaders() {
@@ -15,19 +15,22 @@
  */
 package com.squareup.okhttp;
 
+import com.squareup.okhttp.internal.RouteDatabase;
 import com.squareup.okhttp.internal.http.HttpURLConnectionImpl;
 import com.squareup.okhttp.internal.http.HttpsURLConnectionImpl;
 import com.squareup.okhttp.internal.http.OkResponseCache;
 import com.squareup.okhttp.internal.http.OkResponseCacheAdapter;
+import java.io.File;
 import java.net.CookieHandler;
 import java.net.HttpURLConnection;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.ResponseCache;
 import java.net.URL;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -35,14 +38,59 @@ import javax.net.ssl.SSLSocketFactory;
 /** Configures and creates HTTP connections. */
 public final class OkHttpClient {
   private Proxy proxy;
-  private Set<Route> failedRoutes = Collections.synchronizedSet(new LinkedHashSet<Route>());
+  private RouteDatabase routeDatabase = new RouteDatabase();
   private ProxySelector proxySelector;
   private CookieHandler cookieHandler;
   private ResponseCache responseCache;
   private SSLSocketFactory sslSocketFactory;
   private HostnameVerifier hostnameVerifier;
   private ConnectionPool connectionPool;
+  private HostResolver hostResolver;
+  private Dispatcher dispatcher = new Dispatcher();
   private boolean followProtocolRedirects = true;
+  private File requestBodySpoolDirectory;
+  private int connectTimeout;
+  private int readTimeout;
+
+  /**
+   * Sets the default connect timeout for new connections. A value of 0 means no
+   * timeout.
+   *
+   * @see URLConnection#setConnectTimeout(int)
+   */
+  public OkHttpClient setConnectTimeout(long timeout, TimeUnit unit) {
+    connectTimeout = toMillis(timeout, unit);
+    return this;
+  }
+
+  /** Default connect timeout (in milliseconds). */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /**
+   * Sets the default read timeout for new connections. A value of 0 means no
+   * timeout.
+   *
+   * @see URLConnection#setReadTimeout(int)
+   */
+  public OkHttpClient setReadTimeout(long timeout, TimeUnit unit) {
+    readTimeout = toMillis(timeout, unit);
+    return this;
+  }
+
+  /** Default read timeout (in milliseconds). */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  private static int toMillis(long timeout, TimeUnit unit) {
+    if (timeout < 0) throw new IllegalArgumentException("timeout < 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    long millis = unit.toMillis(timeout);
+    if (millis > Integer.MAX_VALUE) throw new IllegalArgumentException("Timeout too large.");
+    return (int) millis;
+  }
 
   /**
    * Sets the HTTP proxy that will be used by connections created by this
@@ -164,6 +212,34 @@ public final class OkHttpClient {
     return connectionPool;
   }
 
+  /**
+   * Sets the DNS service used to look up IP addresses for hostnames.
+   *
+   * <p>If unset, {@link HostResolver#DEFAULT} will be used.
+   */
+  public OkHttpClient setHostResolver(HostResolver hostResolver) {
+    this.hostResolver = hostResolver;
+    return this;
+  }
+
+  public HostResolver getHostResolver() {
+    return hostResolver;
+  }
+
+  /**
+   * Sets the dispatcher used to run calls created by {@link #newCall}. Each
+   * client has its own dispatcher by default.
+   */
+  public OkHttpClient setDispatcher(Dispatcher dispatcher) {
+    if (dispatcher == null) throw new IllegalArgumentException("dispatcher == null");
+    this.dispatcher = dispatcher;
+    return this;
+  }
+
+  public Dispatcher getDispatcher() {
+    return dispatcher;
+  }
+
   /**
    * Configure this client to follow redirects from HTTPS to HTTP and from HTTP
    * to HTTPS.
@@ -180,18 +256,66 @@ public final class OkHttpClient {
     return followProtocolRedirects;
   }
 
+  /**
+   * Sets the directory that large buffered request bodies are spooled to, so
+   * that they needn't be held in memory. The directory should be private to
+   * the application, since bodies may contain user data.
+   *
+   * <p>If unset, or if the directory can't be written to, request bodies are
+   * buffered in memory.
+   */
+  public OkHttpClient setRequestBodySpoolDirectory(File requestBodySpoolDirectory) {
+    this.requestBodySpoolDirectory = requestBodySpoolDirectory;
+    return this;
+  }
+
+  public File getRequestBodySpoolDirectory() {
+    return requestBodySpoolDirectory;
+  }
+
   public HttpURLConnection open(URL url) {
     String protocol = url.getProtocol();
     OkHttpClient copy = copyWithDefaults();
     if (protocol.equals("http")) {
-      return new HttpURLConnectionImpl(url, copy, copy.okResponseCache(), copy.failedRoutes);
+      return new HttpURLConnectionImpl(url, copy, copy.okResponseCache(), copy.routeDatabase);
     } else if (protocol.equals("https")) {
-      return new HttpsURLConnectionImpl(url, copy, copy.okResponseCache(), copy.failedRoutes);
+      return new HttpsURLConnectionImpl(url, copy, copy.okResponseCache(), copy.routeDatabase);
     } else {
       throw new IllegalArgumentException("Unexpected protocol: " + protocol);
     }
   }
 
+  /**
+   * Prepares a request to {@code url} that will be executed asynchronously by
+   * this client's dispatcher once it is {@link Call#enqueue enqueued}.
+   */
+  public Call newCall(URL url) {
+    return new Call(dispatcher, open(url));
+  }
+
+  /**
+   * Opens connections to the origin server of {@code url} on a background
+   * thread and gives them to the connection pool, so that the first requests
+   * to that server don't wait for DNS, TCP and TLS setup. Connections are
+   * opened until {@code connectionCount} are pooled for the server or the
+   * pool reaches its idle limit. If the server negotiates SPDY only a single
+   * connection is opened, since it can carry all requests.
+   *
+   * <p>The returned future completes with the timing of each connection that
+   * was opened. It fails if no connection could be opened.
+   */
+  public Future<List<ConnectTiming>> preconnect(URL url, int connectionCount) {
+    String protocol = url.getProtocol();
+    if (!protocol.equals("http") && !protocol.equals("https")) {
+      throw new IllegalArgumentException("Unexpected protocol: " + protocol);
+    }
+    return new Preconnector(copyWithDefaults(), url, connectionCount).submit();
+  }
+
+  RouteDatabase getRouteDatabase() {
+    return routeDatabase;
+  }
+
   /**
    * Returns a shallow copy of this OkHttpClient that uses the system-wide default for
    * each field that hasn't been explicitly configured.
@@ -199,7 +323,8 @@ public final class OkHttpClient {
   private OkHttpClient copyWithDefaults() {
     OkHttpClient result = new OkHttpClient();
     result.proxy = proxy;
-    result.failedRoutes = failedRoutes;
+    result.routeDatabase = routeDatabase;
+    result.dispatcher = dispatcher;
     result.proxySelector = proxySelector != null ? proxySelector : ProxySelector.getDefault();
     result.cookieHandler = cookieHandler != null ? cookieHandler : CookieHandler.getDefault();
     result.responseCache = responseCache != null ? responseCache : ResponseCache.getDefault();
@@ -210,7 +335,11 @@ public final class OkHttpClient {
         ? hostnameVerifier
         : HttpsURLConnection.getDefaultHostnameVerifier();
     result.connectionPool = connectionPool != null ? connectionPool : ConnectionPool.getDefault();
+    result.hostResolver = hostResolver != null ? hostResolver : HostResolver.DEFAULT;
     result.followProtocolRedirects = followProtocolRedirects;
+    result.requestBodySpoolDirectory = requestBodySpoolDirectory;
+    result.connectTimeout = connectTimeout;
+    result.readTimeout = readTimeout;
     return result;
   }
 }
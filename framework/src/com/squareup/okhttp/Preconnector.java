@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.HttpEngine;
+import com.squareup.okhttp.internal.http.RouteSelector;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+import static com.squareup.okhttp.internal.Util.getEffectivePort;
+
+/** Opens connections ahead of use and gives them to the connection pool. */
+final class Preconnector implements Callable<List<ConnectTiming>> {
+  private static final int MAX_THREADS = 2;
+
+  private static final ThreadPoolExecutor executorService = new ThreadPoolExecutor(MAX_THREADS,
+      MAX_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+  static {
+    executorService.allowCoreThreadTimeOut(true);
+  }
+
+  /** How long to wait for a connection when the client doesn't specify a timeout. */
+  private static final int DEFAULT_TIMEOUT_MILLIS = 30 * 1000;
+
+  /** Always empty, so that route selection yields new connections instead of pooled ones. */
+  private static final ConnectionPool EMPTY_POOL = new ConnectionPool(0, 0);
+
+  private final OkHttpClient client;
+  private final URI uri;
+  private final int connectionCount;
+
+  /** @param client a client whose defaults have been filled in. */
+  Preconnector(OkHttpClient client, URL url, int connectionCount) {
+    this.client = client;
+    try {
+      this.uri = url.toURI();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException(e.getMessage());
+    }
+    this.connectionCount = connectionCount;
+  }
+
+  Future<List<ConnectTiming>> submit() {
+    return executorService.submit(this);
+  }
+
+  @Override public List<ConnectTiming> call() throws IOException {
+    String uriHost = uri.getHost();
+    if (uriHost == null) {
+      throw new UnknownHostException(uri.toString());
+    }
+    SSLSocketFactory sslSocketFactory = null;
+    HostnameVerifier hostnameVerifier = null;
+    if (uri.getScheme().equalsIgnoreCase("https")) {
+      sslSocketFactory = client.getSslSocketFactory();
+      hostnameVerifier = client.getHostnameVerifier();
+    }
+    Address address = new Address(uriHost, getEffectivePort(uri), sslSocketFactory,
+        hostnameVerifier, client.getProxy());
+    TunnelRequest tunnelRequest = new TunnelRequest(uriHost, getEffectivePort(uri),
+        HttpEngine.getDefaultUserAgent(), null);
+    ConnectionPool pool = client.getConnectionPool();
+
+    // Each attempt opens a connection or fails, so this many attempts is enough
+    // even if the pool evicts or refuses the connections it is given.
+    List<ConnectTiming> timings = new ArrayList<ConnectTiming>();
+    for (int attempt = 0; attempt < connectionCount; attempt++) {
+      // Stop at the requested count, at the pool's idle limit, or once there is a SPDY session.
+      int pooledForAddress = pool.getConnectionCount(address);
+      if (pooledForAddress == -1
+          || pooledForAddress >= connectionCount
+          || pool.getConnectionCount() >= pool.getMaxIdleConnections()) {
+        break;
+      }
+
+      try {
+        timings.add(connect(address, tunnelRequest, pool));
+      } catch (IOException e) {
+        if (timings.isEmpty()) throw e;
+        break;
+      }
+    }
+    return timings;
+  }
+
+  /**
+   * Opens one connection to {@code address}, trying each route in turn, and
+   * gives it to the pool.
+   */
+  private ConnectTiming connect(Address address, TunnelRequest tunnelRequest, ConnectionPool pool)
+      throws IOException {
+    long startNs = System.nanoTime();
+    RouteSelector routeSelector = new RouteSelector(address, uri, client.getProxySelector(),
+        EMPTY_POOL, client.getHostResolver(), client.getRouteDatabase());
+    while (true) {
+      Connection connection = routeSelector.next();
+      long routeSelectionNs = System.nanoTime() - startNs;
+
+      try {
+        connection.connect(timeoutMillis(client.getConnectTimeout()),
+            timeoutMillis(client.getReadTimeout()), tunnelRequest);
+      } catch (IOException e) {
+        routeSelector.connectFailed(connection, e);
+        Util.closeQuietly(connection.getSocket());
+        if (!routeSelector.hasNext()) throw e;
+        startNs = System.nanoTime();
+        continue;
+      }
+
+      client.getRouteDatabase().connected(connection.getRoute(),
+          connection.socketConnectNs + connection.handshakeNs);
+      if (connection.isSpdy()) {
+        pool.maybeShare(connection);
+      } else {
+        pool.recycle(connection);
+      }
+      return new ConnectTiming(connection.getRoute(), routeSelectionNs,
+          connection.socketConnectNs, connection.handshakeNs, connection.isSpdy());
+    }
+  }
+
+  /**
+   * Returns {@code timeout}, or a finite default if it is 0. Nobody is waiting
+   * on a preconnect to give up on it, so it mustn't hang forever.
+   */
+  private static int timeoutMillis(int timeout) {
+    return timeout != 0 ? timeout : DEFAULT_TIMEOUT_MILLIS;
+  }
+}
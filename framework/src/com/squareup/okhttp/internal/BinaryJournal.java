@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary alternative to the text journal of {@link DiskLruCache}.
+ *
+ * <p>The file starts with a 12-byte header: a magic number, the application's
+ * version and the value count. It is followed by segments, each written by a
+ * single {@link #flush}:
+ * <pre>
+ *     int keyCount, int recordCount
+ *     keyCount x (byte length, ASCII key)
+ *     recordCount x (byte op, int keyId, valueCount x int length)
+ *     int CRC-32 of the above
+ * </pre>
+ * Each key is written once, in the segment where it is first used, and gets
+ * the next id in the journal's key table. Records refer to keys by id and are
+ * all the same width, so replaying a segment doesn't parse or split strings.
+ * Value lengths are only meaningful in CLEAN records; the cache limits values
+ * to {@code Integer.MAX_VALUE} bytes.
+ *
+ * <p>A segment whose checksum doesn't match was torn by a crash while it was
+ * being appended. It and anything after it are dropped when the journal is
+ * opened.
+ */
+final class BinaryJournal implements Closeable {
+  static final byte OP_CLEAN = 1;
+  static final byte OP_DIRTY = 2;
+  static final byte OP_REMOVE = 3;
+  static final byte OP_READ = 4;
+
+  private static final int MAGIC = 0x4f4b4a31; // "OKJ1"
+  private static final int HEADER_SIZE = 12;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+
+  /** Flush once this many records are buffered even if no one asked for it. */
+  private static final int MAX_BUFFERED_RECORDS = 512;
+
+  /** Receives the records of a journal as it is opened. */
+  interface Replay {
+    /** {@code lengths} is only valid during this call. */
+    void record(byte op, String key, long[] lengths) throws IOException;
+  }
+
+  private final int valueCount;
+  private final int recordSize;
+  private final Map<String, Integer> keyIds = new HashMap<String, Integer>();
+  private FileOutputStream out;
+
+  /* The segment being built. */
+  private final ByteArrayOutputStream segmentKeys = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream segmentRecords = new ByteArrayOutputStream();
+  private final DataOutputStream segmentRecordsOut = new DataOutputStream(segmentRecords);
+  private int segmentKeyCount;
+  private int segmentRecordCount;
+
+  private int recordCount;
+
+  private BinaryJournal(int valueCount) {
+    this.valueCount = valueCount;
+    this.recordSize = 5 + 4 * valueCount;
+  }
+
+  /** Creates a new empty journal at {@code file}, replacing any file there. */
+  static BinaryJournal create(File file, int appVersion, int valueCount) throws IOException {
+    BinaryJournal journal = new BinaryJournal(valueCount);
+    journal.out = new FileOutputStream(file);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(appVersion).putInt(valueCount);
+    journal.out.write(header.array());
+    return journal;
+  }
+
+  /**
+   * Replays the journal at {@code file} and opens it for appending. Throws if
+   * the file isn't a journal for {@code appVersion} and {@code valueCount}.
+   */
+  static BinaryJournal open(File file, int appVersion, int valueCount, Replay replay)
+      throws IOException {
+    BinaryJournal journal = new BinaryJournal(valueCount);
+    long validLength = journal.replay(file, appVersion, replay);
+    if (validLength < file.length()) {
+      Platform.get().logW("DiskLruCache journal " + file + " has a torn segment at "
+          + validLength + ", truncating");
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(validLength);
+      } finally {
+        raf.close();
+      }
+    }
+    journal.out = new FileOutputStream(file, true);
+    return journal;
+  }
+
+  /** Returns the length of the valid prefix of the file. */
+  private long replay(File file, int appVersion, Replay replay) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long fileLength = channel.size();
+      if (fileLength < HEADER_SIZE) throw new IOException("journal too short: " + fileLength);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+
+      int magic = buffer.getInt();
+      int fileAppVersion = buffer.getInt();
+      int fileValueCount = buffer.getInt();
+      if (magic != MAGIC || fileAppVersion != appVersion || fileValueCount != valueCount) {
+        throw new IOException("unexpected journal header: [" + Integer.toHexString(magic) + ", "
+            + fileAppVersion + ", " + fileValueCount + "]");
+      }
+
+      List<String> keys = new ArrayList<String>();
+      long[] lengths = new long[valueCount];
+      byte[] segment = new byte[0];
+      CRC32 crc = new CRC32();
+      int validLength = buffer.position();
+      while (buffer.remaining() >= SEGMENT_HEADER_SIZE) {
+        int start = buffer.position();
+        int keyCount = buffer.getInt();
+        int segmentRecords = buffer.getInt();
+        // Each key takes at least two bytes.
+        if (keyCount < 0 || segmentRecords < 0
+            || (long) keyCount * 2 + (long) segmentRecords * recordSize > buffer.remaining()) {
+          break;
+        }
+
+        // Find the end of the key table, then check the whole segment before using any of it.
+        int keysEnd = buffer.position();
+        for (int i = 0; i < keyCount && keysEnd < buffer.limit(); i++) {
+          keysEnd += 1 + (buffer.get(keysEnd) & 0xff);
+        }
+        long end = (long) keysEnd + (long) segmentRecords * recordSize + 4;
+        if (end > buffer.limit()) break;
+        int length = (int) end - 4 - start;
+        if (segment.length < length) segment = new byte[length];
+        buffer.position(start);
+        buffer.get(segment, 0, length);
+        crc.reset();
+        crc.update(segment, 0, length);
+        if ((int) crc.getValue() != buffer.getInt()) break;
+
+        ByteBuffer in = ByteBuffer.wrap(segment, SEGMENT_HEADER_SIZE, length - SEGMENT_HEADER_SIZE);
+        for (int i = 0; i < keyCount; i++) {
+          int keyLength = in.get() & 0xff;
+          String key = new String(segment, in.position(), keyLength, Util.US_ASCII);
+          in.position(in.position() + keyLength);
+          keyIds.put(key, keys.size());
+          keys.add(key);
+        }
+        for (int i = 0; i < segmentRecords; i++) {
+          byte op = in.get();
+          int keyId = in.getInt();
+          for (int v = 0; v < valueCount; v++) {
+            lengths[v] = in.getInt() & 0xffffffffL;
+          }
+          if (keyId < 0 || keyId >= keys.size()) {
+            throw new IOException("unexpected journal key id: " + keyId);
+          }
+          replay.record(op, keys.get(keyId), lengths);
+        }
+        recordCount += segmentRecords;
+        validLength = buffer.position();
+      }
+      return validLength;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /** Returns the number of records in this journal, including buffered ones. */
+  int getRecordCount() {
+    return recordCount;
+  }
+
+  /**
+   * Buffers a record. {@code lengths} is required for CLEAN records and
+   * ignored otherwise.
+   */
+  void append(byte op, String key, long[] lengths) throws IOException {
+    Integer keyId = keyIds.get(key);
+    if (keyId == null) {
+      keyId = keyIds.size();
+      keyIds.put(key, keyId);
+      byte[] keyBytes = key.getBytes(Util.US_ASCII);
+      segmentKeys.write(keyBytes.length);
+      segmentKeys.write(keyBytes);
+      segmentKeyCount++;
+    }
+    segmentRecordsOut.writeByte(op);
+    segmentRecordsOut.writeInt(keyId);
+    for (int v = 0; v < valueCount; v++) {
+      segmentRecordsOut.writeInt(op == OP_CLEAN ? (int) lengths[v] : 0);
+    }
+    segmentRecordCount++;
+    recordCount++;
+    if (segmentRecordCount >= MAX_BUFFERED_RECORDS) {
+      flush();
+    }
+  }
+
+  /** Writes the buffered records as one segment. */
+  void flush() throws IOException {
+    if (segmentRecordCount == 0) return;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        SEGMENT_HEADER_SIZE + segmentKeys.size() + segmentRecords.size() + 4);
+    DataOutputStream segmentOut = new DataOutputStream(bytes);
+    segmentOut.writeInt(segmentKeyCount);
+    segmentOut.writeInt(segmentRecordCount);
+    segmentKeys.writeTo(segmentOut);
+    segmentRecords.writeTo(segmentOut);
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+    segmentOut.writeInt((int) crc.getValue());
+    out.write(bytes.toByteArray());
+    segmentKeys.reset();
+    segmentRecords.reset();
+    segmentKeyCount = 0;
+    segmentRecordCount = 0;
+  }
+
+  /**
+   * Flushes and continues appending to {@code file}, which this journal's
+   * file has been renamed to.
+   */
+  void reopen(File file) throws IOException {
+    flush();
+    out.close();
+    out = new FileOutputStream(file, true);
+  }
+
+  @Override public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      out.close();
+    }
+  }
+}
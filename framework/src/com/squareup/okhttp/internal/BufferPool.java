@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide pool of I/O buffers. Buffers come in power-of-two size
+ * classes from 1 KiB to 64 KiB; {@link #take} may return a buffer larger than
+ * requested. Each thread caches one idle buffer per class up to 8 KiB, so the
+ * common take-copy-recycle pattern doesn't contend on a lock.
+ *
+ * <p>A buffer must be recycled at most once, and not used after it has been
+ * recycled. In strict mode, which debug builds should enable before doing any
+ * I/O, the pool checks this for buffers taken while it is on: recycling such a
+ * buffer twice is logged and the second recycle ignored, and buffers that are
+ * garbage collected without being recycled are logged with the stack trace of
+ * the code that took them. Buffers taken before strict mode was enabled are
+ * recycled without checks.
+ */
+public final class BufferPool {
+  private static final int MIN_SHIFT = 10;
+  private static final int MAX_SHIFT = 16;
+  private static final int MAX_THREAD_LOCAL_SHIFT = 13;
+  private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+
+  /** The largest buffer that is pooled. Larger buffers are allocated on demand. */
+  public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+  /** The maximum number of idle bytes to keep in each size class. */
+  private static final int MAX_IDLE_BYTES_PER_CLASS = 256 * 1024;
+
+  private static final List<List<byte[]>> idle = new ArrayList<List<byte[]>>();
+  static {
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      idle.add(new ArrayList<byte[]>());
+    }
+  }
+
+  private static final ThreadLocal<byte[][]> threadCache = new ThreadLocal<byte[][]>() {
+    @Override protected byte[][] initialValue() {
+      return new byte[MAX_THREAD_LOCAL_SHIFT - MIN_SHIFT + 1][];
+    }
+  };
+
+  private static final AtomicLong takeCount = new AtomicLong();
+  private static final AtomicLong allocationCount = new AtomicLong();
+  private static final AtomicLong leakCount = new AtomicLong();
+
+  private static volatile boolean strict;
+  private static final ReferenceQueue<byte[]> leaked = new ReferenceQueue<byte[]>();
+  /** Buffers on loan in strict mode, keyed by identity hash code. Guarded by itself. */
+  private static final Map<Integer, List<Loan>> loans = new HashMap<Integer, List<Loan>>();
+  /** Buffers lent in strict mode that have been recycled since. Guarded by loans. */
+  private static final Map<byte[], Boolean> returned = new WeakHashMap<byte[], Boolean>();
+
+  private BufferPool() {
+  }
+
+  /** Enables or disables leak and double-release checks. */
+  public static void setStrict(boolean strict) {
+    BufferPool.strict = strict;
+  }
+
+  /** Returns a buffer of at least {@code minimumSize} bytes. */
+  public static byte[] take(int minimumSize) {
+    takeCount.incrementAndGet();
+    int sizeClass = minimumSize <= MAX_SIZE ? sizeClass(minimumSize) : -1;
+    byte[] result = null;
+
+    if (sizeClass != -1) {
+      if (sizeClass <= MAX_THREAD_LOCAL_SHIFT - MIN_SHIFT) {
+        byte[][] cache = threadCache.get();
+        result = cache[sizeClass];
+        cache[sizeClass] = null;
+      }
+      if (result == null) {
+        List<byte[]> pool = idle.get(sizeClass);
+        synchronized (pool) {
+          if (!pool.isEmpty()) {
+            result = pool.remove(pool.size() - 1);
+          }
+        }
+      }
+    }
+
+    if (result == null) {
+      allocationCount.incrementAndGet();
+      result = new byte[sizeClass != -1 ? 1 << (sizeClass + MIN_SHIFT) : minimumSize];
+    }
+
+    if (strict) {
+      lend(result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns {@code buffer} to the pool. It must have come from {@link #take}
+   * and must not be used afterwards. Does nothing if {@code buffer} is null.
+   */
+  public static void recycle(byte[] buffer) {
+    if (buffer == null) {
+      return;
+    }
+    if (strict && !checkOnLoan(buffer)) {
+      return;
+    }
+
+    int length = buffer.length;
+    if (length > MAX_SIZE || (length & (length - 1)) != 0 || length < (1 << MIN_SHIFT)) {
+      return; // Not a pooled size.
+    }
+    int sizeClass = sizeClass(length);
+
+    if (sizeClass <= MAX_THREAD_LOCAL_SHIFT - MIN_SHIFT) {
+      byte[][] cache = threadCache.get();
+      if (cache[sizeClass] == null) {
+        cache[sizeClass] = buffer;
+        return;
+      }
+    }
+    List<byte[]> pool = idle.get(sizeClass);
+    synchronized (pool) {
+      if ((pool.size() + 1) * length <= MAX_IDLE_BYTES_PER_CLASS) {
+        pool.add(buffer);
+      }
+    }
+  }
+
+  /** Returns the number of buffers taken from this pool. */
+  public static long getTakeCount() {
+    return takeCount.get();
+  }
+
+  /**
+   * Returns the number of buffers that had to be allocated because the pool
+   * had none idle of the right size.
+   */
+  public static long getAllocationCount() {
+    return allocationCount.get();
+  }
+
+  /** Returns the number of bytes held by idle buffers, excluding thread caches. */
+  public static long getIdleBytes() {
+    long result = 0;
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      List<byte[]> pool = idle.get(i);
+      synchronized (pool) {
+        result += (long) pool.size() << (i + MIN_SHIFT);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of buffers in strict mode that were never recycled. */
+  public static long getLeakCount() {
+    reportLeaks();
+    return leakCount.get();
+  }
+
+  /** Returns the number of buffers that are on loan. Only tracked in strict mode. */
+  public static int getOnLoanCount() {
+    reportLeaks();
+    int result = 0;
+    synchronized (loans) {
+      for (List<Loan> list : loans.values()) {
+        result += list.size();
+      }
+    }
+    return result;
+  }
+
+  /** Returns the size class of buffers that hold at least {@code size} bytes. */
+  private static int sizeClass(int size) {
+    int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+    return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+  }
+
+  private static void lend(byte[] buffer) {
+    reportLeaks();
+    Integer key = System.identityHashCode(buffer);
+    Loan loan = new Loan(buffer, key, leaked);
+    synchronized (loans) {
+      returned.remove(buffer);
+      List<Loan> list = loans.get(key);
+      if (list == null) {
+        list = new ArrayList<Loan>(1);
+        loans.put(key, list);
+      }
+      list.add(loan);
+    }
+  }
+
+  /**
+   * Ends the loan of {@code buffer}. Returns false if it was lent in strict
+   * mode and has already been recycled, in which case it mustn't be pooled
+   * again. Buffers that weren't lent in strict mode are let through.
+   */
+  private static boolean checkOnLoan(byte[] buffer) {
+    Integer key = System.identityHashCode(buffer);
+    synchronized (loans) {
+      List<Loan> list = loans.get(key);
+      if (list != null) {
+        for (int i = 0; i < list.size(); i++) {
+          Loan loan = list.get(i);
+          if (loan.get() == buffer) {
+            loan.clear();
+            list.remove(i);
+            if (list.isEmpty()) loans.remove(key);
+            returned.put(buffer, Boolean.TRUE);
+            return true;
+          }
+        }
+      }
+      if (!returned.containsKey(buffer)) {
+        return true;
+      }
+    }
+    // Don't throw: this is usually called from a finally block, where an
+    // exception would hide the one that is already propagating.
+    StringWriter stackTrace = new StringWriter();
+    new Throwable().printStackTrace(new PrintWriter(stackTrace));
+    Platform.get().logW("A buffer was recycled twice. Recycled again at: " + stackTrace);
+    return false;
+  }
+
+  /** Logs buffers that were garbage collected without being recycled. */
+  private static void reportLeaks() {
+    Loan loan;
+    while ((loan = (Loan) leaked.poll()) != null) {
+      synchronized (loans) {
+        List<Loan> list = loans.get(loan.key);
+        if (list == null || !list.remove(loan)) {
+          continue; // Recycled before it was collected.
+        }
+        if (list.isEmpty()) loans.remove(loan.key);
+      }
+      leakCount.incrementAndGet();
+      StringWriter stackTrace = new StringWriter();
+      loan.origin.printStackTrace(new PrintWriter(stackTrace));
+      Platform.get().logW("A buffer was never recycled. It was taken at: " + stackTrace);
+    }
+  }
+
+  private static final class Loan extends WeakReference<byte[]> {
+    final Integer key;
+    final Throwable origin = new Throwable();
+
+    Loan(byte[] buffer, Integer key, ReferenceQueue<byte[]> queue) {
+      super(buffer, queue);
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import com.squareup.okhttp.HostResolver;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link HostResolver} that caches the results of another, including failed
+ * lookups.
+ *
+ * <p>Concurrent lookups of the same host share a single call to the delegate.
+ * Once a cached result is three quarters of the way to expiring, the next use
+ * of it starts a refresh on a background thread, so hosts that are in steady
+ * use never block on DNS. If a refresh fails the old result is kept until it
+ * expires.
+ *
+ * <p>The cache can be {@link #save saved} and {@link #load loaded} to warm it
+ * across process restarts. Loaded results are used immediately but refreshed
+ * on their first use. A cache created with a file does this itself: it loads
+ * the file before its first lookup, and saves it in the background after
+ * lookups succeed.
+ */
+public final class CachingDns implements HostResolver {
+  private static final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(1, 1, 60L,
+      TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+  static {
+    refreshExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  private final HostResolver delegate;
+  private final File file;
+  private final long positiveTtlNs;
+  private final long negativeTtlNs;
+
+  /** Cached results by host, least recently used first. Guarded by this. */
+  private final LinkedHashMap<String, Entry> entries;
+  /** Lookups in progress by host. Guarded by this. */
+  private final Map<String, FutureTask<InetAddress[]>> lookups =
+      new LinkedHashMap<String, FutureTask<InetAddress[]>>();
+
+  /* Guarded by this. */
+  private boolean loaded;
+  private boolean savePending;
+
+  private int hitCount;
+  private int missCount;
+  private int refreshCount;
+  private int lookupCount;
+  private int failedLookupCount;
+  private long totalLookupNs;
+
+  /**
+   * @param positiveTtlMs how long successful lookups are cached for.
+   * @param negativeTtlMs how long failed lookups are cached for, or 0 to not
+   *     cache them.
+   * @param maxEntries the number of hosts to cache; the least recently used
+   *     host is evicted first.
+   */
+  public CachingDns(HostResolver delegate, long positiveTtlMs, long negativeTtlMs,
+      int maxEntries) {
+    this(delegate, null, positiveTtlMs, negativeTtlMs, maxEntries);
+  }
+
+  /**
+   * @param file the file to keep successful results in across processes, or
+   *     null to keep them in memory only.
+   */
+  public CachingDns(HostResolver delegate, File file, long positiveTtlMs, long negativeTtlMs,
+      final int maxEntries) {
+    if (delegate == null) throw new NullPointerException("delegate == null");
+    this.delegate = delegate;
+    this.file = file;
+    this.loaded = file == null;
+    this.positiveTtlNs = TimeUnit.MILLISECONDS.toNanos(positiveTtlMs);
+    this.negativeTtlNs = TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+    this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, CachingDns.Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  @Override public InetAddress[] getAllByName(String host) throws UnknownHostException {
+    loadIfNecessary();
+    FutureTask<InetAddress[]> lookup;
+    boolean ownLookup = false;
+    synchronized (this) {
+      long now = System.nanoTime();
+      Entry entry = entries.get(host);
+      if (entry != null && now - entry.expiresAtNs < 0) {
+        hitCount++;
+        if (entry.addresses == null) {
+          throw new UnknownHostException(host);
+        }
+        if (now - entry.refreshAtNs >= 0 && !lookups.containsKey(host)) {
+          refreshCount++;
+          refreshExecutor.execute(newLookup(host));
+        }
+        return entry.addresses.clone();
+      }
+
+      missCount++;
+      lookup = lookups.get(host);
+      if (lookup == null) {
+        lookup = newLookup(host);
+        ownLookup = true;
+      }
+    }
+
+    if (ownLookup) {
+      lookup.run();
+    }
+    try {
+      return lookup.get().clone();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof UnknownHostException) throw (UnknownHostException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw new AssertionError(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException(host + ": interrupted");
+    }
+  }
+
+  /** Creates a lookup of {@code host} and registers it as in progress. */
+  private FutureTask<InetAddress[]> newLookup(final String host) {
+    FutureTask<InetAddress[]> lookup = new FutureTask<InetAddress[]>(
+        new Callable<InetAddress[]>() {
+          @Override public InetAddress[] call() throws UnknownHostException {
+            long startNs = System.nanoTime();
+            InetAddress[] addresses = null;
+            try {
+              addresses = delegate.getAllByName(host);
+              return addresses;
+            } finally {
+              lookupFinished(host, addresses, System.nanoTime() - startNs);
+            }
+          }
+        });
+    lookups.put(host, lookup);
+    return lookup;
+  }
+
+  private synchronized void lookupFinished(String host, InetAddress[] addresses, long durationNs) {
+    lookups.remove(host);
+    lookupCount++;
+    totalLookupNs += durationNs;
+    long now = System.nanoTime();
+    if (addresses != null) {
+      entries.put(host, new Entry(addresses, now, positiveTtlNs));
+      saveLater();
+      return;
+    }
+    failedLookupCount++;
+    Entry previous = entries.get(host);
+    if (previous != null && previous.addresses != null && now - previous.expiresAtNs < 0) {
+      return; // A failed refresh; keep the old result until it expires.
+    }
+    if (negativeTtlNs > 0) {
+      entries.put(host, new Entry(null, now, negativeTtlNs));
+    } else {
+      entries.remove(host);
+    }
+  }
+
+  private void loadIfNecessary() {
+    synchronized (this) {
+      if (loaded) return;
+      loaded = true;
+    }
+    try {
+      load(file);
+    } catch (IOException e) {
+      Platform.get().logW("Unable to read DNS cache: " + e);
+    }
+  }
+
+  private void saveLater() {
+    assert (Thread.holdsLock(this));
+    if (file == null || savePending) return;
+    savePending = true;
+    refreshExecutor.execute(new Runnable() {
+      @Override public void run() {
+        synchronized (CachingDns.this) {
+          savePending = false;
+        }
+        try {
+          save(file);
+        } catch (IOException e) {
+          Platform.get().logW("Unable to write DNS cache: " + e);
+        }
+      }
+    });
+  }
+
+  /** Discards all cached results. */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Writes the cached successful results to {@code file}, replacing its
+   * contents.
+   */
+  public void save(File file) throws IOException {
+    StringBuilder contents = new StringBuilder();
+    synchronized (this) {
+      for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+        InetAddress[] addresses = mapEntry.getValue().addresses;
+        if (addresses == null) continue;
+        contents.append(mapEntry.getKey());
+        for (InetAddress address : addresses) {
+          contents.append(' ').append(address.getHostAddress());
+        }
+        contents.append('\n');
+      }
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), Util.US_ASCII);
+    try {
+      writer.write(contents.toString());
+    } finally {
+      writer.close();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * Adds the results saved in {@code file} to this cache. Hosts that are
+   * already cached are not replaced. Does nothing if {@code file} doesn't
+   * exist.
+   */
+  public void load(File file) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), Util.US_ASCII));
+    try {
+      for (String line; (line = reader.readLine()) != null; ) {
+        String[] parts = line.split(" ");
+        if (parts.length < 2) continue;
+        String host = parts[0];
+        InetAddress[] addresses = new InetAddress[parts.length - 1];
+        try {
+          for (int i = 1; i < parts.length; i++) {
+            byte[] ip = parseNumericAddress(parts[i]);
+            if (ip == null) throw new UnknownHostException(parts[i]);
+            addresses[i - 1] = InetAddress.getByAddress(host, ip);
+          }
+        } catch (UnknownHostException e) {
+          continue; // Not a numeric address; the file is damaged.
+        }
+        synchronized (this) {
+          if (!entries.containsKey(host)) {
+            Entry entry = new Entry(addresses, System.nanoTime(), positiveTtlNs);
+            entry.refreshAtNs = entry.createdAtNs;
+            entries.put(host, entry);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Parses an address in the form written by {@link InetAddress#getHostAddress}:
+   * four decimal octets, or up to eight hexadecimal groups with an optional
+   * "::" for a run of zero groups, an optional trailing dotted quad, and an
+   * optional scope. Returns null for anything else. This never touches the
+   * network, unlike {@link InetAddress#getByName}.
+   */
+  static byte[] parseNumericAddress(String address) {
+    int percent = address.indexOf('%');
+    if (percent != -1) address = address.substring(0, percent);
+    if (address.indexOf(':') == -1) {
+      byte[] result = new byte[4];
+      return parseIpv4(address, result, 0) ? result : null;
+    }
+
+    byte[] result = new byte[16];
+    int doubleColon = address.indexOf("::");
+    if (doubleColon == -1) {
+      return parseGroups(address, true, result) == 16 ? result : null;
+    }
+    if (address.indexOf("::", doubleColon + 1) != -1) return null;
+    byte[] tail = new byte[16];
+    int headLength = parseGroups(address.substring(0, doubleColon), false, result);
+    int tailLength = parseGroups(address.substring(doubleColon + 2), true, tail);
+    if (headLength == -1 || tailLength == -1 || headLength + tailLength > 14) return null;
+    System.arraycopy(tail, 0, result, 16 - tailLength, tailLength);
+    return result;
+  }
+
+  /**
+   * Parses colon-separated hexadecimal groups into {@code out}, and returns
+   * the number of bytes written or -1 if they're malformed. If {@code last},
+   * the final group may be a dotted quad.
+   */
+  private static int parseGroups(String groups, boolean last, byte[] out) {
+    if (groups.length() == 0) return 0;
+    String[] parts = groups.split(":", -1);
+    int length = 0;
+    for (int i = 0; i < parts.length; i++) {
+      String part = parts[i];
+      if (last && i == parts.length - 1 && part.indexOf('.') != -1) {
+        if (length + 4 > out.length || !parseIpv4(part, out, length)) return -1;
+        length += 4;
+        continue;
+      }
+      if (part.length() == 0 || part.length() > 4 || length + 2 > out.length) return -1;
+      int value = 0;
+      for (int c = 0; c < part.length(); c++) {
+        int digit = Character.digit(part.charAt(c), 16);
+        if (digit == -1) return -1;
+        value = value * 16 + digit;
+      }
+      out[length++] = (byte) (value >>> 8);
+      out[length++] = (byte) value;
+    }
+    return length;
+  }
+
+  /** Parses a dotted quad into {@code out[offset..offset+4)}. */
+  private static boolean parseIpv4(String address, byte[] out, int offset) {
+    String[] parts = address.split("\\.", -1);
+    if (parts.length != 4) return false;
+    for (int i = 0; i < 4; i++) {
+      String part = parts[i];
+      if (part.length() == 0 || part.length() > 3) return false;
+      int value = 0;
+      for (int c = 0; c < part.length(); c++) {
+        int digit = Character.digit(part.charAt(c), 10);
+        if (digit == -1) return false;
+        value = value * 10 + digit;
+      }
+      if (value > 255) return false;
+      out[offset + i] = (byte) value;
+    }
+    return true;
+  }
+
+  /** Returns the number of lookups answered from the cache. */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of lookups that had to wait for the delegate. */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the number of background refreshes started. */
+  public synchronized int getRefreshCount() {
+    return refreshCount;
+  }
+
+  /** Returns the number of calls made to the delegate, including refreshes. */
+  public synchronized int getLookupCount() {
+    return lookupCount;
+  }
+
+  /** Returns the number of calls to the delegate that failed. */
+  public synchronized int getFailedLookupCount() {
+    return failedLookupCount;
+  }
+
+  /** Returns the total time spent in calls to the delegate. */
+  public synchronized long getTotalLookupNs() {
+    return totalLookupNs;
+  }
+
+  private static final class Entry {
+    /** The resolved addresses, or null if the host couldn't be resolved. */
+    final InetAddress[] addresses;
+    final long createdAtNs;
+    final long expiresAtNs;
+    long refreshAtNs;
+
+    Entry(InetAddress[] addresses, long createdAtNs, long ttlNs) {
+      this.addresses = addresses;
+      this.createdAtNs = createdAtNs;
+      this.expiresAtNs = createdAtNs + ttlNs;
+      this.refreshAtNs = createdAtNs + ttlNs / 4 * 3;
+    }
+  }
+}
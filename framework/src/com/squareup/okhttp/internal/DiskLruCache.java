@@ -31,9 +31,11 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -89,6 +91,9 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
   static final String JOURNAL_FILE_TEMP = "journal.tmp";
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String JOURNAL_FILE_BINARY = "journal.bin";
+  static final String JOURNAL_FILE_BINARY_TEMP = "journal.bin.tmp";
+  static final String JOURNAL_FILE_BINARY_BACKUP = "journal.bin.bkp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
   static final long ANY_SEQUENCE_NUMBER = -1;
@@ -136,6 +141,10 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Caches opened with a binary journal record the same operations in a file
+     * named "journal.bin" instead; see BinaryJournal for its format. A journal
+     * in the other format is migrated when the cache is opened.
      */
 
   private final File directory;
@@ -146,7 +155,12 @@ public final class DiskLruCache implements Closeable {
   private long maxSize;
   private final int valueCount;
   private long size = 0;
+  private final boolean useBinaryJournal;
   private Writer journalWriter;
+  private BinaryJournal binaryJournal;
+
+  /** Keys journaled while the binary journal is being compacted, or null. */
+  private Set<String> compactionTouchedKeys;
   private final LinkedHashMap<String, Entry> lruEntries =
       new LinkedHashMap<String, Entry>(0, 0.75f, true);
   private int redundantOpCount;
@@ -164,25 +178,38 @@ public final class DiskLruCache implements Closeable {
   private final Callable<Void> cleanupCallable = new Callable<Void>() {
     public Void call() throws Exception {
       synchronized (DiskLruCache.this) {
-        if (journalWriter == null) {
+        if (isClosed()) {
           return null; // Closed.
         }
         trimToSize();
-        if (journalRebuildRequired()) {
+        if (!journalRebuildRequired()) {
+          return null;
+        }
+        if (binaryJournal == null) {
           rebuildJournal();
           redundantOpCount = 0;
+          return null;
         }
       }
+      compactBinaryJournal();
       return null;
     }
   };
 
-  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      boolean useBinaryJournal) {
     this.directory = directory;
     this.appVersion = appVersion;
-    this.journalFile = new File(directory, JOURNAL_FILE);
-    this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
-    this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    this.useBinaryJournal = useBinaryJournal;
+    if (useBinaryJournal) {
+      this.journalFile = new File(directory, JOURNAL_FILE_BINARY);
+      this.journalFileTmp = new File(directory, JOURNAL_FILE_BINARY_TEMP);
+      this.journalFileBackup = new File(directory, JOURNAL_FILE_BINARY_BACKUP);
+    } else {
+      this.journalFile = new File(directory, JOURNAL_FILE);
+      this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+      this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+    }
     this.valueCount = valueCount;
     this.maxSize = maxSize;
   }
@@ -198,6 +225,23 @@ public final class DiskLruCache implements Closeable {
    */
   public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
       throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, false);
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creating a cache if none exists
+   * there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param binaryJournal true to keep the journal in a compact binary format
+   *     that is faster to open when there are many entries. A journal in the
+   *     other format is migrated.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+      boolean binaryJournal) throws IOException {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
@@ -206,42 +250,75 @@ public final class DiskLruCache implements Closeable {
     }
 
     // If a bkp file exists, use it instead.
-    File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-    if (backupFile.exists()) {
-      File journalFile = new File(directory, JOURNAL_FILE);
-      // If journal file also exists just delete backup file.
-      if (journalFile.exists()) {
-        backupFile.delete();
-      } else {
-        renameTo(backupFile, journalFile, false);
-      }
-    }
+    restoreBackup(directory, JOURNAL_FILE, JOURNAL_FILE_BACKUP);
+    restoreBackup(directory, JOURNAL_FILE_BINARY, JOURNAL_FILE_BINARY_BACKUP);
 
     // Prefer to pick up where we left off.
-    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-    if (cache.journalFile.exists()) {
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+    File otherJournalFile = new File(directory, binaryJournal ? JOURNAL_FILE : JOURNAL_FILE_BINARY);
+    if (cache.journalFile.exists() || otherJournalFile.exists()) {
+      boolean migrate = !cache.journalFile.exists();
       try {
-        cache.readJournal();
-        cache.processJournal();
-        cache.journalWriter = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), Util.US_ASCII));
+        if (migrate) {
+          cache.readJournal(otherJournalFile, !binaryJournal);
+          cache.processJournal();
+          cache.rebuildJournal(); // Writes the requested format.
+        } else {
+          cache.readJournal(cache.journalFile, binaryJournal);
+          cache.processJournal();
+          if (!binaryJournal) {
+            cache.journalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(cache.journalFile, true), Util.US_ASCII));
+          }
+        }
+        deleteIfExists(otherJournalFile);
         return cache;
       } catch (IOException journalIsCorrupt) {
         Platform.get().logW("DiskLruCache " + directory + " is corrupt: "
             + journalIsCorrupt.getMessage() + ", removing");
+        Util.closeQuietly(cache.binaryJournal);
+        cache.binaryJournal = null;
         cache.delete();
       }
     }
 
     // Create a new empty cache.
     directory.mkdirs();
-    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
     cache.rebuildJournal();
     return cache;
   }
 
-  private void readJournal() throws IOException {
-    StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
+  private static void restoreBackup(File directory, String journalName, String backupName)
+      throws IOException {
+    File backupFile = new File(directory, backupName);
+    if (backupFile.exists()) {
+      File journalFile = new File(directory, journalName);
+      // If journal file also exists just delete backup file.
+      if (journalFile.exists()) {
+        backupFile.delete();
+      } else {
+        renameTo(backupFile, journalFile, false);
+      }
+    }
+  }
+
+  /**
+   * Reads the journal in {@code file}. A binary journal is left open for
+   * appending in {@link #binaryJournal}.
+   */
+  private void readJournal(File file, boolean binary) throws IOException {
+    if (binary) {
+      binaryJournal = BinaryJournal.open(file, appVersion, valueCount, new BinaryJournal.Replay() {
+        @Override public void record(byte op, String key, long[] lengths) throws IOException {
+          readBinaryJournalRecord(op, key, lengths);
+        }
+      });
+      redundantOpCount = binaryJournal.getRecordCount() - lruEntries.size();
+      return;
+    }
+
+    StrictLineReader reader = new StrictLineReader(new FileInputStream(file), Util.US_ASCII);
     try {
       String magic = reader.readLine();
       String version = reader.readLine();
@@ -311,6 +388,29 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  private void readBinaryJournalRecord(byte op, String key, long[] lengths) throws IOException {
+    if (op == BinaryJournal.OP_REMOVE) {
+      lruEntries.remove(key);
+      return;
+    }
+
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+    }
+
+    if (op == BinaryJournal.OP_CLEAN) {
+      entry.readable = true;
+      entry.currentEditor = null;
+      System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+    } else if (op == BinaryJournal.OP_DIRTY) {
+      entry.currentEditor = new Editor(entry);
+    } else if (op != BinaryJournal.OP_READ) {
+      throw new IOException("unexpected journal op: " + op);
+    }
+  }
+
   /**
    * Computes the initial size and collects garbage as a part of opening the
    * cache. Dirty entries are assumed to be inconsistent and will be deleted.
@@ -341,6 +441,28 @@ public final class DiskLruCache implements Closeable {
   private synchronized void rebuildJournal() throws IOException {
     if (journalWriter != null) {
       journalWriter.close();
+      journalWriter = null;
+    }
+    if (binaryJournal != null) {
+      binaryJournal.close();
+      binaryJournal = null;
+    }
+
+    if (useBinaryJournal) {
+      BinaryJournal journal = BinaryJournal.create(journalFileTmp, appVersion, valueCount);
+      try {
+        for (Entry entry : lruEntries.values()) {
+          appendState(journal, entry);
+        }
+        journal.flush();
+        replaceJournal();
+        journal.reopen(journalFile);
+      } catch (IOException e) {
+        Util.closeQuietly(journal);
+        throw e;
+      }
+      binaryJournal = journal;
+      return;
     }
 
     Writer writer = new BufferedWriter(
@@ -367,14 +489,121 @@ public final class DiskLruCache implements Closeable {
       writer.close();
     }
 
+    replaceJournal();
+
+    journalWriter = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+  }
+
+  /** Replaces the journal with the temporary journal. */
+  private void replaceJournal() throws IOException {
     if (journalFile.exists()) {
       renameTo(journalFile, journalFileBackup, true);
     }
     renameTo(journalFileTmp, journalFile, false);
     journalFileBackup.delete();
+  }
 
-    journalWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+  /**
+   * Rewrites the binary journal, holding the lock only to snapshot the
+   * entries and to swap in the new journal. Keys journaled while the
+   * snapshot is written have their current state appended before the swap.
+   */
+  private void compactBinaryJournal() throws IOException {
+    String[] keys;
+    byte[] ops;
+    long[][] lengths;
+    synchronized (this) {
+      if (binaryJournal == null || compactionTouchedKeys != null) {
+        return; // Closed or already compacting.
+      }
+      keys = new String[lruEntries.size()];
+      ops = new byte[keys.length];
+      lengths = new long[keys.length][];
+      int i = 0;
+      for (Entry entry : lruEntries.values()) {
+        keys[i] = entry.key;
+        ops[i] = entry.currentEditor != null ? BinaryJournal.OP_DIRTY : BinaryJournal.OP_CLEAN;
+        lengths[i] = entry.lengths.clone();
+        i++;
+      }
+      compactionTouchedKeys = new HashSet<String>();
+    }
+
+    BinaryJournal journal = null;
+    try {
+      journal = BinaryJournal.create(journalFileTmp, appVersion, valueCount);
+      for (int i = 0; i < keys.length; i++) {
+        journal.append(ops[i], keys[i], lengths[i]);
+      }
+      journal.flush();
+
+      synchronized (this) {
+        if (binaryJournal == null) {
+          return; // Closed.
+        }
+        for (Entry entry : lruEntries.values()) {
+          if (compactionTouchedKeys.remove(entry.key)) {
+            appendState(journal, entry);
+          }
+        }
+        for (String removedKey : compactionTouchedKeys) {
+          journal.append(BinaryJournal.OP_REMOVE, removedKey, null);
+        }
+        journal.flush();
+        binaryJournal.close();
+        replaceJournal();
+        journal.reopen(journalFile);
+        binaryJournal = journal;
+        journal = null;
+        redundantOpCount = 0;
+      }
+    } finally {
+      synchronized (this) {
+        compactionTouchedKeys = null;
+      }
+      if (journal != null) {
+        Util.closeQuietly(journal);
+        journalFileTmp.delete();
+      }
+    }
+  }
+
+  private void appendState(BinaryJournal journal, Entry entry) throws IOException {
+    byte op = entry.currentEditor != null ? BinaryJournal.OP_DIRTY : BinaryJournal.OP_CLEAN;
+    journal.append(op, entry.key, entry.lengths);
+  }
+
+  /** Appends a {@code state} record for {@code entry} to the journal. */
+  private void journal(String state, Entry entry) throws IOException {
+    if (compactionTouchedKeys != null) {
+      compactionTouchedKeys.add(entry.key);
+    }
+    if (binaryJournal != null) {
+      byte op;
+      if (CLEAN.equals(state)) {
+        op = BinaryJournal.OP_CLEAN;
+      } else if (DIRTY.equals(state)) {
+        op = BinaryJournal.OP_DIRTY;
+      } else if (REMOVE.equals(state)) {
+        op = BinaryJournal.OP_REMOVE;
+      } else {
+        op = BinaryJournal.OP_READ;
+      }
+      binaryJournal.append(op, entry.key, entry.lengths);
+    } else if (CLEAN.equals(state)) {
+      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+    } else {
+      journalWriter.write(state + ' ' + entry.key + '\n');
+    }
+  }
+
+  private void flushJournal() throws IOException {
+    if (binaryJournal != null) {
+      binaryJournal.flush();
+    } else {
+      journalWriter.flush();
+    }
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -430,7 +659,7 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
+    journal(READ, entry);
     if (journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
     }
@@ -465,8 +694,8 @@ public final class DiskLruCache implements Closeable {
     entry.currentEditor = editor;
 
     // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
+    journal(DIRTY, entry);
+    flushJournal();
     return editor;
   }
 
@@ -541,15 +770,15 @@ public final class DiskLruCache implements Closeable {
     entry.currentEditor = null;
     if (entry.readable | success) {
       entry.readable = true;
-      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+      journal(CLEAN, entry);
       if (success) {
         entry.sequenceNumber = nextSequenceNumber++;
       }
     } else {
       lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+      journal(REMOVE, entry);
     }
-    journalWriter.flush();
+    flushJournal();
 
     if (size > maxSize || journalRebuildRequired()) {
       executorService.submit(cleanupCallable);
@@ -590,7 +819,7 @@ public final class DiskLruCache implements Closeable {
     }
 
     redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
+    journal(REMOVE, entry);
     lruEntries.remove(key);
 
     if (journalRebuildRequired()) {
@@ -601,12 +830,12 @@ public final class DiskLruCache implements Closeable {
   }
 
   /** Returns true if this cache has been closed. */
-  public boolean isClosed() {
-    return journalWriter == null;
+  public synchronized boolean isClosed() {
+    return journalWriter == null && binaryJournal == null;
   }
 
   private void checkNotClosed() {
-    if (journalWriter == null) {
+    if (isClosed()) {
       throw new IllegalStateException("cache is closed");
     }
   }
@@ -615,12 +844,12 @@ public final class DiskLruCache implements Closeable {
   public synchronized void flush() throws IOException {
     checkNotClosed();
     trimToSize();
-    journalWriter.flush();
+    flushJournal();
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
   public synchronized void close() throws IOException {
-    if (journalWriter == null) {
+    if (isClosed()) {
       return; // Already closed.
     }
     for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -629,8 +858,13 @@ public final class DiskLruCache implements Closeable {
       }
     }
     trimToSize();
-    journalWriter.close();
-    journalWriter = null;
+    if (binaryJournal != null) {
+      binaryJournal.close();
+      binaryJournal = null;
+    } else {
+      journalWriter.close();
+      journalWriter = null;
+    }
   }
 
   private void trimToSize() throws IOException {
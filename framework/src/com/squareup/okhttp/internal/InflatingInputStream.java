@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static com.squareup.okhttp.internal.Util.checkOffsetAndCount;
+
+/**
+ * Decompresses a gzip or zlib stream with an inflater borrowed from {@link
+ * ZlibPool} and an input buffer from {@link BufferPool}. Both are returned as
+ * soon as the end of the data is reached or the stream is closed, whichever
+ * comes first.
+ *
+ * <p>Unlike {@code GZIPInputStream}, nothing is read until the first call to
+ * {@code read()}, and compressed data is read in large chunks so that a
+ * caching stream underneath sees few, large writes.
+ */
+public final class InflatingInputStream extends InputStream {
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final InputStream in;
+  private final boolean gzip;
+  private final byte[] dictionary;
+  private final CRC32 crc;
+
+  /** Buffered bytes in {@code buffer[pos..limit)} not yet given to the inflater. */
+  private int pos;
+  private int limit;
+  private boolean inMember;
+  private boolean memberRead;
+  private boolean eof;
+
+  /* State guarded by this. */
+  private Inflater inflater;
+  private byte[] buffer;
+  private boolean reading;
+  private boolean closed;
+
+  private InflatingInputStream(InputStream in, boolean gzip, byte[] dictionary) {
+    this.in = in;
+    this.gzip = gzip;
+    this.dictionary = dictionary;
+    this.crc = gzip ? new CRC32() : null;
+    this.inflater = ZlibPool.takeInflater(gzip);
+    this.buffer = BufferPool.take(8192);
+  }
+
+  /** Returns a stream that decompresses one or more concatenated gzip members. */
+  public static InflatingInputStream gzip(InputStream in) {
+    return new InflatingInputStream(in, true, null);
+  }
+
+  /**
+   * Returns a stream that decompresses zlib data, supplying {@code dictionary}
+   * if the data calls for one.
+   */
+  public static InflatingInputStream zlib(InputStream in, byte[] dictionary) {
+    return new InflatingInputStream(in, false, dictionary);
+  }
+
+  @Override public int read() throws IOException {
+    return Util.readSingleByte(this);
+  }
+
+  @Override public int read(byte[] b, int offset, int count) throws IOException {
+    checkOffsetAndCount(b.length, offset, count);
+    synchronized (this) {
+      if (closed) throw new IOException("stream closed");
+      reading = true;
+    }
+    try {
+      return count == 0 ? 0 : inflate(b, offset, count);
+    } finally {
+      synchronized (this) {
+        reading = false;
+        if (eof || closed) {
+          release();
+        }
+      }
+    }
+  }
+
+  private int inflate(byte[] b, int offset, int count) throws IOException {
+    while (!eof) {
+      if (gzip && !inMember) {
+        if (!readGzipHeader()) {
+          eof = true;
+          break;
+        }
+        inMember = true;
+      }
+
+      int result;
+      try {
+        result = inflater.inflate(b, offset, count);
+      } catch (DataFormatException e) {
+        throw new ZipException(e.getMessage());
+      }
+      if (result > 0) {
+        if (gzip) crc.update(b, offset, result);
+        return result;
+      }
+
+      if (inflater.finished()) {
+        pos = limit - inflater.getRemaining();
+        if (!gzip) {
+          eof = true;
+          break;
+        }
+        readGzipTrailer();
+        inflater.reset();
+        crc.reset();
+        inMember = false;
+        memberRead = true;
+      } else if (inflater.needsDictionary()) {
+        if (dictionary == null) throw new ZipException("missing dictionary");
+        inflater.setDictionary(dictionary);
+      } else if (inflater.needsInput()) {
+        if (pos == limit && !fill()) throw new EOFException("unexpected end of compressed data");
+        inflater.setInput(buffer, pos, limit - pos);
+        pos = limit;
+      }
+    }
+    return -1;
+  }
+
+  /** Reads more compressed data into the buffer. Returns false at end of input. */
+  private boolean fill() throws IOException {
+    int read = in.read(buffer, 0, buffer.length);
+    if (read == -1) return false;
+    pos = 0;
+    limit = read;
+    return true;
+  }
+
+  private int readByte() throws IOException {
+    if (pos == limit && !fill()) throw new EOFException();
+    return buffer[pos++] & 0xff;
+  }
+
+  private int readShortLe() throws IOException {
+    return readByte() | readByte() << 8;
+  }
+
+  private long readIntLe() throws IOException {
+    return (readShortLe() | (long) readShortLe() << 16);
+  }
+
+  /**
+   * Consumes a gzip member header. Returns false if the input ended cleanly
+   * after the previous member.
+   */
+  private boolean readGzipHeader() throws IOException {
+    if (pos == limit && !fill()) {
+      if (memberRead) return false; // End after a complete member.
+      throw new EOFException();
+    }
+    int magic;
+    try {
+      magic = readShortLe();
+    } catch (EOFException e) {
+      if (memberRead) return false; // A single byte of trailing garbage.
+      throw e;
+    }
+    if (magic != 0x8b1f) {
+      if (memberRead) return false; // Like GZIPInputStream, ignore trailing garbage.
+      throw new ZipException("not in gzip format");
+    }
+    if (readByte() != 8) throw new ZipException("unsupported compression method");
+    int flags = readByte();
+    for (int i = 0; i < 6; i++) {
+      readByte(); // MTIME, XFL and OS.
+    }
+    if ((flags & FEXTRA) != 0) {
+      for (int length = readShortLe(); length > 0; length--) {
+        readByte();
+      }
+    }
+    if ((flags & FNAME) != 0) {
+      while (readByte() != 0) {
+      }
+    }
+    if ((flags & FCOMMENT) != 0) {
+      while (readByte() != 0) {
+      }
+    }
+    if ((flags & FHCRC) != 0) {
+      readShortLe();
+    }
+    return true;
+  }
+
+  private void readGzipTrailer() throws IOException {
+    if (readIntLe() != crc.getValue()) throw new ZipException("corrupt gzip trailer");
+    if (readIntLe() != (inflater.getBytesWritten() & 0xffffffffL)) {
+      throw new ZipException("corrupt gzip trailer");
+    }
+  }
+
+  @Override public int available() throws IOException {
+    synchronized (this) {
+      if (closed) throw new IOException("stream closed");
+    }
+    return eof ? 0 : 1;
+  }
+
+  @Override public void close() throws IOException {
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      if (!reading) {
+        release();
+      }
+    }
+    // If a read is in progress, this unblocks it; it then releases the inflater.
+    in.close();
+  }
+
+  /** Returns the inflater and buffer to the pool. */
+  private void release() {
+    assert (Thread.holdsLock(this));
+    if (inflater != null) {
+      ZlibPool.recycle(inflater, gzip);
+      BufferPool.recycle(buffer);
+      inflater = null;
+      buffer = null;
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import com.squareup.okhttp.Route;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the health of the routes that connections have been made on, so
+ * that route selection can prefer routes that worked and were fast recently.
+ *
+ * <p>Each route's health is its recent connect success rate and moving
+ * averages of its connect latency and round trip time. Only connection
+ * attempts count towards the success rate, so a busy connection on a route
+ * doesn't outvote its failures; round trips only update the latency.
+ * Failures fade with a half-life of {@link #HALF_LIFE_MS}, so a route that
+ * failed once is not avoided forever. Updates are lock-free. At most
+ * {@link #MAX_ROUTES} routes are tracked; the least recently updated one is
+ * forgotten first.
+ */
+public final class RouteDatabase {
+  static final long HALF_LIFE_MS = 5 * 60 * 1000; // 5 min
+  static final int MAX_ROUTES = 256;
+
+  /** Routes scoring below this are tried only after all others. */
+  private static final double POSTPONE_THRESHOLD = 0.75;
+  /** Weight of the newest sample in the latency moving averages. */
+  private static final double LATENCY_ALPHA = 0.3;
+
+  /** Outcomes of the events that update a route's health. */
+  private static final int CONNECTED = 1;
+  private static final int FAILED = 2;
+  private static final int SAMPLED = 3;
+
+  private static final Health UNKNOWN = new Health(1.0, 0L, 0L, 0L);
+
+  private final long halfLifeNs;
+  private final ConcurrentHashMap<Route, AtomicReference<Health>> routes =
+      new ConcurrentHashMap<Route, AtomicReference<Health>>();
+
+  public RouteDatabase() {
+    this(HALF_LIFE_MS);
+  }
+
+  RouteDatabase(long halfLifeMs) {
+    this.halfLifeNs = TimeUnit.MILLISECONDS.toNanos(halfLifeMs);
+  }
+
+  /** Records that a connection was made on {@code route}, taking {@code connectNs}. */
+  public void connected(Route route, long connectNs) {
+    update(route, CONNECTED, connectNs, 0L);
+  }
+
+  /** Records that connecting on {@code route} failed. */
+  public void failed(Route route) {
+    update(route, FAILED, 0L, 0L);
+  }
+
+  /**
+   * Records a round trip time observed on {@code route}, such as the time
+   * from sending a request to receiving the response headers. This doesn't
+   * count towards the route's success rate.
+   */
+  public void roundTrip(Route route, long rttNs) {
+    update(route, SAMPLED, 0L, rttNs);
+  }
+
+  /** Returns true if {@code route} failed recently enough to be tried last. */
+  public boolean shouldPostpone(Route route) {
+    return health(route).successRate(System.nanoTime(), halfLifeNs) < POSTPONE_THRESHOLD;
+  }
+
+  /**
+   * Returns a score for {@code route}; higher is better. Routes that have not
+   * been used score as if they were perfect, so that they get tried.
+   */
+  public double score(Route route) {
+    Health health = health(route);
+    double successRate = health.successRate(System.nanoTime(), halfLifeNs);
+    double latencyMs = (health.connectNs + health.rttNs) / 1e6;
+    return successRate * 1000.0 / (1000.0 + latencyMs);
+  }
+
+  /** Returns the number of routes tracked. */
+  public int size() {
+    return routes.size();
+  }
+
+  private Health health(Route route) {
+    AtomicReference<Health> reference = routes.get(route);
+    return reference != null ? reference.get() : UNKNOWN;
+  }
+
+  private void update(Route route, int outcome, long connectNs, long rttNs) {
+    AtomicReference<Health> reference = routes.get(route);
+    if (reference == null) {
+      AtomicReference<Health> created = new AtomicReference<Health>(UNKNOWN);
+      reference = routes.putIfAbsent(route, created);
+      if (reference == null) {
+        reference = created;
+        if (routes.size() > MAX_ROUTES) evictOldest();
+      }
+    }
+
+    long now = System.nanoTime();
+    while (true) {
+      Health current = reference.get();
+      Health updated = current.update(now, halfLifeNs, outcome, connectNs, rttNs);
+      if (reference.compareAndSet(current, updated)) return;
+    }
+  }
+
+  private void evictOldest() {
+    Route oldest = null;
+    long oldestUpdateNs = 0L;
+    for (Map.Entry<Route, AtomicReference<Health>> entry : routes.entrySet()) {
+      long updateNs = entry.getValue().get().updatedAtNs;
+      if (oldest == null || updateNs - oldestUpdateNs < 0) {
+        oldest = entry.getKey();
+        oldestUpdateNs = updateNs;
+      }
+    }
+    if (oldest != null) routes.remove(oldest);
+  }
+
+  /** An immutable snapshot of a route's health. */
+  private static final class Health {
+    final double successRate;
+    final long connectNs;
+    final long rttNs;
+    final long updatedAtNs;
+
+    Health(double successRate, long connectNs, long rttNs, long updatedAtNs) {
+      this.successRate = successRate;
+      this.connectNs = connectNs;
+      this.rttNs = rttNs;
+      this.updatedAtNs = updatedAtNs;
+    }
+
+    /** Returns the success rate at {@code now}, decayed towards 1.0. */
+    double successRate(long now, long halfLifeNs) {
+      if (updatedAtNs == 0L) return successRate;
+      double decay = Math.pow(0.5, (double) (now - updatedAtNs) / halfLifeNs);
+      return 1.0 - (1.0 - successRate) * decay;
+    }
+
+    Health update(long now, long halfLifeNs, int outcome, long connectSampleNs,
+        long rttSampleNs) {
+      // Each connection attempt moves the decayed rate halfway to 0 or 1.
+      double rate = successRate(now, halfLifeNs);
+      if (outcome == CONNECTED) {
+        rate = (rate + 1.0) / 2.0;
+      } else if (outcome == FAILED) {
+        rate = rate / 2.0;
+      }
+      return new Health(rate, average(connectNs, connectSampleNs),
+          average(rttNs, rttSampleNs), now);
+    }
+
+    private static long average(long average, long sample) {
+      if (sample <= 0L) return average;
+      if (average == 0L) return sample;
+      return (long) (average + LATENCY_ALPHA * (sample - average));
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link DiskLruCache} split into independent shards. Each key is hashed to
+ * one shard, and each shard has its own journal, lock and an equal share of
+ * the size budget, so operations on keys in different shards don't contend.
+ * Least recently used entries are evicted per shard rather than across the
+ * whole cache.
+ *
+ * <p>With a single shard the cache uses {@code directory} exactly as a plain
+ * {@link DiskLruCache} does. With {@code n} shards, shard {@code i} is a
+ * plain {@link DiskLruCache} in {@code directory/shards-n/i}. Opening a
+ * directory with a different shard count than it was last used with discards
+ * its contents.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+  private static final String SHARDS_PREFIX = "shards-";
+
+  private final File directory;
+  private final DiskLruCache[] shards;
+  private long maxSize;
+
+  private ShardedDiskLruCache(File directory, DiskLruCache[] shards, long maxSize) {
+    this.directory = directory;
+    this.shards = shards;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creating a cache if none exists
+   * there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param shardCount the number of independent shards. Must be positive.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount) throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, shardCount, false);
+  }
+
+  /**
+   * Opens the cache in {@code directory}, creating a cache if none exists
+   * there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param shardCount the number of independent shards. Must be positive.
+   * @param binaryJournal true to keep each shard's journal in the compact
+   *     binary format. See {@link DiskLruCache#open(File, int, int, long,
+   *     boolean)}.
+   * @throws IOException if reading or writing the cache directory fails
+   */
+  public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+      long maxSize, int shardCount, boolean binaryJournal) throws IOException {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("shardCount <= 0");
+    }
+    if (maxSize < shardCount) {
+      throw new IllegalArgumentException("maxSize < shardCount");
+    }
+
+    deleteOtherLayouts(directory, shardCount);
+    DiskLruCache[] shards = new DiskLruCache[shardCount];
+    try {
+      for (int i = 0; i < shardCount; i++) {
+        shards[i] = DiskLruCache.open(shardDirectory(directory, shardCount, i), appVersion,
+            valueCount, shardMaxSize(maxSize, shardCount, i), binaryJournal);
+      }
+    } catch (IOException e) {
+      for (DiskLruCache shard : shards) {
+        Util.closeQuietly(shard);
+      }
+      throw e;
+    }
+    return new ShardedDiskLruCache(directory, shards, maxSize);
+  }
+
+  private static File shardDirectory(File directory, int shardCount, int index) {
+    if (shardCount == 1) return directory;
+    return new File(new File(directory, SHARDS_PREFIX + shardCount), Integer.toString(index));
+  }
+
+  /** Splits {@code maxSize} evenly, giving the remainder to the first shards. */
+  private static long shardMaxSize(long maxSize, int shardCount, int index) {
+    return maxSize / shardCount + (index < maxSize % shardCount ? 1 : 0);
+  }
+
+  /** Deletes the files of caches that used this directory with a different shard count. */
+  private static void deleteOtherLayouts(File directory, int shardCount) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) return; // The directory doesn't exist yet.
+
+    String layout = SHARDS_PREFIX + shardCount;
+    boolean unshardedFiles = false;
+    for (File file : files) {
+      if (file.isDirectory() && file.getName().startsWith(SHARDS_PREFIX)) {
+        if (!file.getName().equals(layout)) {
+          Util.deleteContents(file);
+          file.delete();
+        }
+      } else {
+        unshardedFiles = true;
+      }
+    }
+    if (shardCount > 1 && unshardedFiles) {
+      for (File file : files) {
+        if (!file.getName().equals(layout)) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  private DiskLruCache shard(String key) {
+    return shards[(key.hashCode() & 0x7fffffff) % shards.length];
+  }
+
+  /**
+   * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+   * exist is not currently readable.
+   */
+  public DiskLruCache.Snapshot get(String key) throws IOException {
+    return shard(key).get(key);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress.
+   */
+  public DiskLruCache.Editor edit(String key) throws IOException {
+    return shard(key).edit(key);
+  }
+
+  /**
+   * Drops the entry for {@code key} if it exists and can be removed. Entries
+   * actively being edited cannot be removed.
+   *
+   * @return true if an entry was removed.
+   */
+  public boolean remove(String key) throws IOException {
+    return shard(key).remove(key);
+  }
+
+  /** Returns the directory where this cache stores its data. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the maximum number of bytes that this cache should use to store
+   * its data.
+   */
+  public synchronized long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Changes the maximum number of bytes the cache can store and queues jobs
+   * to trim the existing shards, if necessary.
+   */
+  public synchronized void setMaxSize(long maxSize) {
+    if (maxSize < shards.length) {
+      throw new IllegalArgumentException("maxSize < shardCount");
+    }
+    this.maxSize = maxSize;
+    for (int i = 0; i < shards.length; i++) {
+      shards[i].setMaxSize(shardMaxSize(maxSize, shards.length, i));
+    }
+  }
+
+  /**
+   * Returns the number of bytes currently being used to store the values in
+   * this cache. This may be greater than the max size if a background
+   * deletion is pending.
+   */
+  public long size() {
+    long result = 0;
+    for (DiskLruCache shard : shards) {
+      result += shard.size();
+    }
+    return result;
+  }
+
+  /** Returns true if this cache has been closed. */
+  public boolean isClosed() {
+    return shards[0].isClosed();
+  }
+
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    for (DiskLruCache shard : shards) {
+      shard.flush();
+    }
+  }
+
+  /** Closes this cache. Stored values will remain on the filesystem. */
+  public void close() throws IOException {
+    IOException thrown = null;
+    for (DiskLruCache shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        if (thrown == null) thrown = e;
+      }
+    }
+    if (thrown != null) throw thrown;
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    Util.deleteContents(directory);
+  }
+}
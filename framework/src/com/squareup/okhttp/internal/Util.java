@@ -29,7 +29,6 @@ import java.net.URI;
 import java.net.URL;
 import java.nio.ByteOrder;
 import java.nio.charset.Charset;
-import java.util.concurrent.atomic.AtomicReference;
 
 /** Junk drawer of utility methods. */
 public final class Util {
@@ -44,7 +43,6 @@ public final class Util {
 
   /** A cheap and type-safe constant for the UTF-8 Charset. */
   public static final Charset UTF_8 = Charset.forName("UTF-8");
-  private static AtomicReference<byte[]> skipBuffer = new AtomicReference<byte[]>();
 
   private Util() {
   }
@@ -250,36 +248,32 @@ public final class Util {
    * Call {@code in.read()} repeatedly until either the stream is exhausted or
    * {@code byteCount} bytes have been read.
    *
-   * <p>This method reuses the skip buffer but is careful to never use it at
-   * the same time that another stream is using it. Otherwise streams that use
-   * the caller's buffer for consistency checks like CRC could be clobbered by
-   * other threads. A thread-local buffer is also insufficient because some
-   * streams may call other streams in their skip() method, also clobbering the
-   * buffer.
+   * <p>The skip buffer is taken from the {@link BufferPool} so that it is
+   * never used at the same time as another stream is using it. Otherwise
+   * streams that use the caller's buffer for consistency checks like CRC could
+   * be clobbered by other threads, or by other streams called from their
+   * skip() method.
    */
   public static long skipByReading(InputStream in, long byteCount) throws IOException {
-    // acquire the shared skip buffer.
-    byte[] buffer = skipBuffer.getAndSet(null);
-    if (buffer == null) {
-      buffer = new byte[4096];
-    }
+    byte[] buffer = BufferPool.take(4096);
 
     long skipped = 0;
-    while (skipped < byteCount) {
-      int toRead = (int) Math.min(byteCount - skipped, buffer.length);
-      int read = in.read(buffer, 0, toRead);
-      if (read == -1) {
-        break;
-      }
-      skipped += read;
-      if (read < toRead) {
-        break;
+    try {
+      while (skipped < byteCount) {
+        int toRead = (int) Math.min(byteCount - skipped, buffer.length);
+        int read = in.read(buffer, 0, toRead);
+        if (read == -1) {
+          break;
+        }
+        skipped += read;
+        if (read < toRead) {
+          break;
+        }
       }
+    } finally {
+      BufferPool.recycle(buffer);
     }
 
-    // release the shared skip buffer.
-    skipBuffer.set(buffer);
-
     return skipped;
   }
 
@@ -289,11 +283,15 @@ public final class Util {
    */
   public static int copy(InputStream in, OutputStream out) throws IOException {
     int total = 0;
-    byte[] buffer = new byte[8192];
-    int c;
-    while ((c = in.read(buffer)) != -1) {
-      total += c;
-      out.write(buffer, 0, c);
+    byte[] buffer = BufferPool.take(8192);
+    try {
+      int c;
+      while ((c = in.read(buffer)) != -1) {
+        total += c;
+        out.write(buffer, 0, c);
+      }
+    } finally {
+      BufferPool.recycle(buffer);
     }
     return total;
   }
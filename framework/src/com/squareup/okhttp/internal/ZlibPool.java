@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A process-wide pool of idle inflaters and deflaters. Each holds tens of
+ * kilobytes of native zlib state, so reusing them after a {@code reset()} is
+ * much cheaper than allocating a new one for every response or connection.
+ *
+ * <p>A recycled instance must not be used again by the caller.
+ */
+public final class ZlibPool {
+  /** The maximum number of idle instances of each kind to keep. */
+  private static final int MAX_IDLE = 4;
+
+  private static final List<Inflater> gzipInflaters = new ArrayList<Inflater>();
+  private static final List<Inflater> zlibInflaters = new ArrayList<Inflater>();
+  private static final List<Deflater> deflaters = new ArrayList<Deflater>();
+
+  private ZlibPool() {
+  }
+
+  /**
+   * Returns an inflater. If {@code nowrap} is true it reads raw deflate data,
+   * as found inside gzip members; otherwise it expects a zlib header.
+   */
+  public static Inflater takeInflater(boolean nowrap) {
+    List<Inflater> pool = nowrap ? gzipInflaters : zlibInflaters;
+    synchronized (pool) {
+      if (!pool.isEmpty()) {
+        return pool.remove(pool.size() - 1);
+      }
+    }
+    return new Inflater(nowrap);
+  }
+
+  /** Returns {@code inflater}, taken with the same {@code nowrap}, to the pool. */
+  public static void recycle(Inflater inflater, boolean nowrap) {
+    inflater.reset();
+    List<Inflater> pool = nowrap ? gzipInflaters : zlibInflaters;
+    synchronized (pool) {
+      if (pool.size() < MAX_IDLE) {
+        pool.add(inflater);
+        return;
+      }
+    }
+    inflater.end();
+  }
+
+  /** Returns a deflater with the default compression level. */
+  public static Deflater takeDeflater() {
+    synchronized (deflaters) {
+      if (!deflaters.isEmpty()) {
+        return deflaters.remove(deflaters.size() - 1);
+      }
+    }
+    return new Deflater();
+  }
+
+  public static void recycle(Deflater deflater) {
+    deflater.reset();
+    synchronized (deflaters) {
+      if (deflaters.size() < MAX_IDLE) {
+        deflaters.add(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+}
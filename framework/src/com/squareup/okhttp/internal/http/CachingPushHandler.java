@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.internal.BufferPool;
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.spdy.IncomingStreamHandler;
+import com.squareup.okhttp.internal.spdy.SpdyStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CacheRequest;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Stores the responses that a SPDY server pushes on one connection in a
+ * response cache, as if they had been fetched with a GET. Pushes that aren't
+ * cacheable, that claim another origin, or that exceed this connection's
+ * limits are cancelled.
+ */
+public final class CachingPushHandler implements IncomingStreamHandler {
+  /** The most pushed responses to store per connection. */
+  static final int MAX_PUSHES_PER_CONNECTION = 32;
+
+  /** The largest pushed body to store. Larger pushes are cancelled. */
+  static final int MAX_PUSH_BODY_SIZE = 1024 * 1024;
+
+  /** How long to wait for a pushed response's headers, or more of its body, before giving up. */
+  private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+  private final String uriHost;
+  private final int uriPort;
+  private final SSLSession sslSession;
+  private volatile OkResponseCache responseCache;
+
+  /* Guarded by this. */
+  private int acceptedCount;
+  private int rejectedCount;
+
+  /**
+   * @param sslSession the session pushes arrive on, or null if the
+   *     connection isn't secure.
+   */
+  public CachingPushHandler(String uriHost, int uriPort, SSLSession sslSession) {
+    this.uriHost = uriHost;
+    this.uriPort = uriPort;
+    this.sslSession = sslSession;
+  }
+
+  /** Sets the cache to store pushes in. Pushes are cancelled until this is set. */
+  public void setResponseCache(OkResponseCache responseCache) {
+    this.responseCache = responseCache;
+  }
+
+  @Override public void receive(SpdyStream stream) throws IOException {
+    // Closing the input stream cancels the push if it hasn't finished, and
+    // releases whatever of it has been buffered.
+    InputStream in = stream.getInputStream();
+    OkResponseCache cache = responseCache;
+    if (cache == null) {
+      in.close();
+      return;
+    }
+
+    CacheRequest cacheRequest = hasCapacity() ? newCacheRequest(cache, stream) : null;
+    if (cacheRequest != null && !reserve()) {
+      cacheRequest.abort(); // Another push took the last place meanwhile.
+      cacheRequest = null;
+    }
+    if (cacheRequest == null) {
+      reject(cache);
+      in.close();
+      return;
+    }
+
+    stream.setReadTimeout(READ_TIMEOUT_MILLIS);
+    OutputStream body = cacheRequest.getBody();
+    byte[] buffer = BufferPool.take(8192);
+    boolean success = false;
+    try {
+      long total = 0;
+      for (int count; (count = in.read(buffer)) != -1; ) {
+        total += count;
+        if (total > MAX_PUSH_BODY_SIZE) {
+          break;
+        }
+        body.write(buffer, 0, count);
+      }
+      if (total <= MAX_PUSH_BODY_SIZE) {
+        body.close();
+        success = true;
+      }
+    } catch (IOException e) {
+      // The push was reset or the connection failed; don't store a partial body.
+    } finally {
+      BufferPool.recycle(buffer);
+      if (!success) {
+        cacheRequest.abort();
+        reject(cache);
+      }
+      Util.closeQuietly(in);
+    }
+  }
+
+  private synchronized boolean hasCapacity() {
+    return acceptedCount < MAX_PUSHES_PER_CONNECTION;
+  }
+
+  /** Counts a push towards this connection's limit. Returns false if it's over. */
+  private synchronized boolean reserve() {
+    if (!hasCapacity()) {
+      return false;
+    }
+    acceptedCount++;
+    return true;
+  }
+
+  private void reject(OkResponseCache cache) {
+    synchronized (this) {
+      rejectedCount++;
+    }
+    cache.trackPushRejected();
+  }
+
+  /** Returns the number of pushes taken towards this connection's limit. */
+  public synchronized int getAcceptedCount() {
+    return acceptedCount;
+  }
+
+  /** Returns the number of pushes on this connection that weren't stored. */
+  public synchronized int getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Returns a request to store the pushed response on {@code stream}, or null
+   * if it shouldn't be stored.
+   */
+  private CacheRequest newCacheRequest(OkResponseCache cache, SpdyStream stream)
+      throws IOException {
+    RawHeaders headers = readHeaders(stream);
+    if (headers == null) {
+      return null;
+    }
+    String scheme = headers.get(":scheme");
+    String host = headers.get(":host");
+    String path = headers.get(":path");
+    if (scheme == null || host == null || path == null || !path.startsWith("/")) {
+      return null;
+    }
+
+    // Only trust a push for the origin this connection was made to.
+    String expectedScheme = sslSession != null ? "https" : "http";
+    if (!scheme.equalsIgnoreCase(expectedScheme)
+        || !(host.equalsIgnoreCase(uriHost) || host.equalsIgnoreCase(uriHost + ":" + uriPort))) {
+      return null;
+    }
+
+    // Spell the URI like a request for it would, so the request finds it.
+    String authority = uriPort != Util.getDefaultPort(expectedScheme)
+        ? uriHost + ":" + uriPort
+        : uriHost;
+    URI uri;
+    try {
+      uri = new URI(expectedScheme + "://" + authority + path);
+    } catch (URISyntaxException e) {
+      return null;
+    }
+
+    try {
+      headers.computeResponseStatusLineFromSpdyHeaders();
+    } catch (IOException e) {
+      return null; // No :status or :version.
+    }
+    headers.removeAll(":scheme");
+    headers.removeAll(":host");
+    headers.removeAll(":path");
+    headers.removeAll(":method");
+    headers.removeAll(":status");
+    headers.removeAll(":version");
+
+    // What's left are the response headers. A push stands in for a plain GET
+    // with no request headers of its own.
+    ResponseHeaders response = new ResponseHeaders(uri, headers);
+    if (!response.isCacheable(new RequestHeaders(uri, new RawHeaders()))) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    response.setLocalTimestamps(now, now);
+    return cache.putPushed(uri, response, sslSession);
+  }
+
+  /**
+   * Returns the headers of the push on {@code stream}, or null if they didn't
+   * arrive in time. A SPDY/3 server may send {@code :status} and {@code
+   * :version} in a HEADERS frame after the SYN_STREAM, so this waits for them
+   * if the SYN_STREAM didn't include them.
+   */
+  private RawHeaders readHeaders(SpdyStream stream) {
+    List<String> requestHeaders = stream.getRequestHeaders();
+    RawHeaders headers = RawHeaders.fromNameValueBlock(requestHeaders);
+    if (headers.get(":status") != null) {
+      return headers;
+    }
+
+    final CountDownLatch headersReceived = new CountDownLatch(1);
+    stream.setResponseHeadersCallback(new Runnable() {
+      @Override public void run() {
+        headersReceived.countDown();
+      }
+    });
+    try {
+      if (!headersReceived.await(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+
+    List<String> nameValueBlock = new ArrayList<String>(requestHeaders);
+    try {
+      nameValueBlock.addAll(stream.getResponseHeaders());
+    } catch (IOException e) {
+      return null; // The push was reset.
+    }
+    return RawHeaders.fromNameValueBlock(nameValueBlock);
+  }
+}
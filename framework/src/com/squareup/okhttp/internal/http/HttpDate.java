@@ -16,65 +16,331 @@
 
 package com.squareup.okhttp.internal.http;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 /**
  * Best-effort parser for HTTP dates.
+ *
+ * <p>Accepts RFC 1123 dates plus the browser-compatible formats from
+ * {@code org.apache.http.impl.cookie.BrowserCompatSpec}: RFC 1036, ANSI C
+ * asctime(), and their dash, comma and two-digit-year variants. Fields are
+ * recognized by shape rather than by position, so no format list is tried and
+ * no exception is thrown on a mismatch. Dates without a zone are GMT, and
+ * two-digit years are mapped as in RFC 6265: 70-99 are 19xx, 00-69 are 20xx.
  */
 final class HttpDate {
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
 
-  /**
-   * Most websites serve cookies in the blessed format. Eagerly create the parser to ensure such
-   * cookies are on the fast path.
-   */
-  private static final ThreadLocal<DateFormat> STANDARD_DATE_FORMAT =
-      new ThreadLocal<DateFormat>() {
-        @Override protected DateFormat initialValue() {
-          DateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-          rfc1123.setTimeZone(TimeZone.getTimeZone("UTC"));
-          return rfc1123;
-        }
-      };
+  private static final String[] MONTHS = {
+      "January", "February", "March", "April", "May", "June",
+      "July", "August", "September", "October", "November", "December"
+  };
 
-  /** If we fail to parse a date in a non-standard format, try each of these formats in sequence. */
-  private static final String[] BROWSER_COMPATIBLE_DATE_FORMATS = new String[] {
-            /* This list comes from  {@code org.apache.http.impl.cookie.BrowserCompatSpec}. */
-      "EEEE, dd-MMM-yy HH:mm:ss zzz", // RFC 1036
-      "EEE MMM d HH:mm:ss yyyy", // ANSI C asctime()
-      "EEE, dd-MMM-yyyy HH:mm:ss z", "EEE, dd-MMM-yyyy HH-mm-ss z", "EEE, dd MMM yy HH:mm:ss z",
-      "EEE dd-MMM-yyyy HH:mm:ss z", "EEE dd MMM yyyy HH:mm:ss z", "EEE dd-MMM-yyyy HH-mm-ss z",
-      "EEE dd-MMM-yy HH:mm:ss z", "EEE dd MMM yy HH:mm:ss z", "EEE,dd-MMM-yy HH:mm:ss z",
-      "EEE,dd-MMM-yyyy HH:mm:ss z", "EEE, dd-MM-yyyy HH:mm:ss z",
+  /** Day names, indexed so that 1970-01-01 (a Thursday) is index 4. */
+  private static final String[] DAYS = {
+      "Sunday", "Monday", "Tuesday", "Wednesday", "Thursday", "Friday", "Saturday"
+  };
 
-            /* RI bug 6641315 claims a cookie of this format was once served by www.yahoo.com */
-      "EEE MMM d yyyy HH:mm:ss z", };
+  /** Zone abbreviations understood by the parser, with their offsets in hours. */
+  private static final String[] ZONES = {
+      "GMT", "UTC", "UT", "Z", "EST", "EDT", "CST", "CDT", "MST", "MDT", "PST", "PDT"
+  };
+  private static final int[] ZONE_OFFSETS = {
+      0, 0, 0, 0, -5, -4, -6, -5, -7, -6, -8, -7
+  };
+
+  /**
+   * The most recently formatted second. Requests made within the same second,
+   * and revalidations of the same Last-Modified date, reuse the string.
+   */
+  private static volatile FormattedDate lastFormatted;
 
   /**
    * Returns the date for {@code value}. Returns null if the value couldn't be
    * parsed.
    */
   public static Date parse(String value) {
-    try {
-      return STANDARD_DATE_FORMAT.get().parse(value);
-    } catch (ParseException ignore) {
+    if (value == null) {
+      return null;
     }
-    for (String formatString : BROWSER_COMPATIBLE_DATE_FORMATS) {
-      try {
-        return new SimpleDateFormat(formatString, Locale.US).parse(value);
-      } catch (ParseException ignore) {
+    long millis = parseMillis(value, 0, value.length());
+    return millis != -1 ? new Date(millis) : null;
+  }
+
+  /**
+   * Returns the milliseconds since the epoch for the date in {@code
+   * value[start..end)}, or -1 if it couldn't be parsed. Parsed dates always
+   * have whole seconds, so -1 is never a valid result.
+   */
+  public static long parseMillis(CharSequence value, int start, int end) {
+    int day = -1;
+    int month = -1;
+    int year = -1;
+    int hour = -1;
+    int minute = -1;
+    int second = -1;
+    int offsetMinutes = 0;
+    boolean hasZone = false;
+
+    int pos = start;
+    while (pos < end) {
+      char c = value.charAt(pos);
+
+      if (isLetter(c)) {
+        int wordEnd = pos + 1;
+        while (wordEnd < end && isLetter(value.charAt(wordEnd))) {
+          wordEnd++;
+        }
+        int index;
+        if (month == -1 && (index = indexOfName(MONTHS, value, pos, wordEnd)) != -1) {
+          month = index;
+        } else if (!hasZone && (index = indexOfZone(value, pos, wordEnd)) != -1) {
+          offsetMinutes = ZONE_OFFSETS[index] * 60;
+          hasZone = true;
+        } else if (indexOfName(DAYS, value, pos, wordEnd) == -1) {
+          return -1; // Unexpected word.
+        }
+        pos = wordEnd;
+
+      } else if (isDigit(c)) {
+        int numberEnd = skipDigits(value, pos, end);
+        int number = parseInt(value, pos, numberEnd);
+        int digits = numberEnd - pos;
+
+        if (numberEnd < end && value.charAt(numberEnd) == ':') {
+          // HH:mm:ss
+          if (hour != -1) return -1;
+          int minuteEnd = skipDigits(value, numberEnd + 1, end);
+          if (minuteEnd == numberEnd + 1 || minuteEnd >= end || value.charAt(minuteEnd) != ':') {
+            return -1;
+          }
+          int secondEnd = skipDigits(value, minuteEnd + 1, end);
+          if (secondEnd == minuteEnd + 1) return -1;
+          hour = number;
+          minute = parseInt(value, numberEnd + 1, minuteEnd);
+          second = parseInt(value, minuteEnd + 1, secondEnd);
+          pos = secondEnd;
+          continue;
+        }
+
+        int middleEnd = numberEnd < end && value.charAt(numberEnd) == '-'
+            ? skipDigits(value, numberEnd + 1, end)
+            : numberEnd + 1;
+        if (middleEnd > numberEnd + 1) {
+          // Either dd-MM-yyyy or HH-mm-ss.
+          if (middleEnd >= end || value.charAt(middleEnd) != '-') return -1;
+          int lastEnd = skipDigits(value, middleEnd + 1, end);
+          if (lastEnd == middleEnd + 1) return -1;
+          int middle = parseInt(value, numberEnd + 1, middleEnd);
+          int last = parseInt(value, middleEnd + 1, lastEnd);
+          if (day == -1 && month == -1) {
+            day = number;
+            month = middle - 1;
+            year = toYear(last, lastEnd - middleEnd - 1);
+            if (year == -1) return -1;
+          } else if (hour == -1) {
+            hour = number;
+            minute = middle;
+            second = last;
+          } else {
+            return -1;
+          }
+          pos = lastEnd;
+          continue;
+        }
+
+        if (digits <= 2 && day == -1) {
+          day = number;
+        } else if (year == -1) {
+          year = toYear(number, digits);
+          if (year == -1) return -1;
+        } else {
+          return -1;
+        }
+        pos = numberEnd;
+
+      } else if ((c == '+' || c == '-') && hour != -1 && pos + 1 < end
+          && isDigit(value.charAt(pos + 1))) {
+        // A numeric zone like "+0100", "-08:00" or the tail of "GMT+1".
+        int hoursEnd = skipDigits(value, pos + 1, end);
+        int hoursDigits = hoursEnd - pos - 1;
+        int offset;
+        if (hoursDigits == 4) {
+          int hhmm = parseInt(value, pos + 1, hoursEnd);
+          offset = (hhmm / 100) * 60 + hhmm % 100;
+          pos = hoursEnd;
+        } else if (hoursDigits <= 2) {
+          offset = parseInt(value, pos + 1, hoursEnd) * 60;
+          pos = hoursEnd;
+          if (pos < end && value.charAt(pos) == ':') {
+            int minutesEnd = skipDigits(value, pos + 1, end);
+            if (minutesEnd - pos - 1 != 2) return -1;
+            offset += parseInt(value, pos + 1, minutesEnd);
+            pos = minutesEnd;
+          }
+        } else {
+          return -1;
+        }
+        // "GMT+1" adjusts the zone named before it; anything else replaces it.
+        offsetMinutes = (c == '+' ? offset : -offset) + (hasZone ? offsetMinutes : 0);
+        hasZone = true;
+
+      } else if (c == ' ' || c == ',' || c == '-' || c == '\t') {
+        pos++;
+
+      } else {
+        return -1;
       }
     }
-    return null;
+
+    if (day < 1 || day > 31 || month < 0 || month > 11 || year < 0
+        || hour < 0 || hour > 23 || minute > 59 || second > 60) {
+      return -1;
+    }
+    long days = daysSinceEpoch(year, month + 1, day);
+    long seconds = days * 86400 + hour * 3600 + minute * 60 + second - offsetMinutes * 60;
+    return seconds * 1000;
   }
 
   /** Returns the string for {@code value}. */
   public static String format(Date value) {
-    return STANDARD_DATE_FORMAT.get().format(value);
+    return format(value.getTime());
+  }
+
+  /** Returns the RFC 1123 string for {@code millis} since the epoch. */
+  public static String format(long millis) {
+    long seconds = millis >= 0 ? millis / 1000 : (millis - 999) / 1000;
+    FormattedDate cached = lastFormatted;
+    if (cached != null && cached.seconds == seconds) {
+      return cached.text;
+    }
+
+    long days = millis >= 0 ? millis / MILLIS_PER_DAY : (millis + 1) / MILLIS_PER_DAY - 1;
+    int secondOfDay = (int) (seconds - days * 86400);
+    int dayOfWeek = (int) ((days % 7 + 11) % 7); // 1970-01-01 was a Thursday.
+
+    // Convert days to a proleptic Gregorian year, month and day.
+    long z = days + 719468;
+    long era = (z >= 0 ? z : z - 146096) / 146097;
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+    StringBuilder result = new StringBuilder(29);
+    result.append(DAYS[dayOfWeek], 0, 3).append(", ");
+    appendTwoDigits(result, day);
+    result.append(' ').append(MONTHS[month - 1], 0, 3).append(' ');
+    if (year >= 0 && year < 1000) {
+      result.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+    }
+    result.append(year).append(' ');
+    appendTwoDigits(result, secondOfDay / 3600);
+    result.append(':');
+    appendTwoDigits(result, secondOfDay / 60 % 60);
+    result.append(':');
+    appendTwoDigits(result, secondOfDay % 60);
+    result.append(" GMT");
+
+    String text = result.toString();
+    lastFormatted = new FormattedDate(seconds, text);
+    return text;
+  }
+
+  /** Returns the number of days from 1970-01-01 to the given date. */
+  private static long daysSinceEpoch(int year, int month, int day) {
+    // Count years from March so that the leap day is the last day of the year.
+    long y = month <= 2 ? year - 1 : year;
+    long era = (y >= 0 ? y : y - 399) / 400;
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  private static int toYear(int value, int digits) {
+    if (digits <= 2) {
+      return value < 70 ? 2000 + value : 1900 + value;
+    }
+    return digits == 4 ? value : -1;
+  }
+
+  /**
+   * Returns the index of the name in {@code names} that {@code
+   * value[start..end)} abbreviates to at least three letters, or -1.
+   */
+  private static int indexOfName(String[] names, CharSequence value, int start, int end) {
+    int length = end - start;
+    if (length < 3) return -1;
+    for (int i = 0; i < names.length; i++) {
+      String name = names[i];
+      if (length <= name.length() && regionMatches(value, start, name, length)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static int indexOfZone(CharSequence value, int start, int end) {
+    int length = end - start;
+    for (int i = 0; i < ZONES.length; i++) {
+      String zone = ZONES[i];
+      if (length == zone.length() && regionMatches(value, start, zone, length)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean regionMatches(CharSequence value, int start, String name, int length) {
+    for (int i = 0; i < length; i++) {
+      if ((value.charAt(start + i) | 0x20) != (name.charAt(i) | 0x20)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int skipDigits(CharSequence value, int pos, int end) {
+    // Cap runs at 9 digits so the result always fits in an int.
+    int limit = Math.min(end, pos + 9);
+    while (pos < limit && isDigit(value.charAt(pos))) {
+      pos++;
+    }
+    return pos;
+  }
+
+  private static int parseInt(CharSequence value, int start, int end) {
+    int result = 0;
+    for (int i = start; i < end; i++) {
+      result = result * 10 + (value.charAt(i) - '0');
+    }
+    return result;
+  }
+
+  private static void appendTwoDigits(StringBuilder sb, int value) {
+    sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static final class FormattedDate {
+    final long seconds;
+    final String text;
+
+    FormattedDate(long seconds, String text) {
+      this.seconds = seconds;
+      this.text = text;
+    }
   }
 
   private HttpDate() {
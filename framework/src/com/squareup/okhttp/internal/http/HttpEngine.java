@@ -21,7 +21,7 @@ import com.squareup.okhttp.Address;
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.ResponseSource;
 import com.squareup.okhttp.TunnelRequest;
-import com.squareup.okhttp.internal.Dns;
+import com.squareup.okhttp.internal.InflatingInputStream;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
 import java.io.ByteArrayInputStream;
@@ -41,7 +41,6 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLSocketFactory;
 
@@ -106,6 +105,9 @@ public class HttpEngine {
   /** The time when the request headers were written, or -1 if they haven't been written yet. */
   long sentRequestMillis = -1;
 
+  /** The time the request was fully written and flushed, or -1 if it hasn't been yet. */
+  private long requestFlushedNs = -1;
+
   /**
    * True if this client added an "Accept-Encoding: gzip" header field and is
    * therefore responsible for also decompressing the transfer stream.
@@ -197,7 +199,6 @@ public class HttpEngine {
       sendSocketRequest();
     } else if (connection != null) {
       policy.connectionPool.recycle(connection);
-      policy.getFailedRoutes().remove(connection.getRoute());
       connection = null;
     }
   }
@@ -280,15 +281,15 @@ public class HttpEngine {
       Address address = new Address(uriHost, getEffectivePort(uri), sslSocketFactory,
           hostnameVerifier, policy.requestedProxy);
       routeSelector = new RouteSelector(address, uri, policy.proxySelector, policy.connectionPool,
-          Dns.DEFAULT, policy.getFailedRoutes());
-    }
-    connection = routeSelector.next();
-    if (!connection.isConnected()) {
-      connection.connect(policy.getConnectTimeout(), policy.getReadTimeout(), getTunnelConfig());
-      policy.connectionPool.maybeShare(connection);
-      policy.getFailedRoutes().remove(connection.getRoute());
+          policy.dns, policy.getRouteDatabase());
     }
+    connection = routeSelector.nextConnected(policy.getConnectTimeout(), policy.getReadTimeout(),
+        getTunnelConfig());
     connected(connection);
+    if (policy.getUseCaches() && policy.responseCache != null) {
+      // Let the server's pushes on this connection warm the cache.
+      connection.setPushCache(policy.responseCache);
+    }
     if (connection.getRoute().getProxy() != policy.requestedProxy) {
       // Update the request line if the proxy changed; it may need a host name.
       requestHeaders.getHeaders().setRequestLine(getRequestLine());
@@ -451,7 +452,7 @@ public class HttpEngine {
       // the content encoding.
       responseHeaders.stripContentEncoding();
       responseHeaders.stripContentLength();
-      responseBodyIn = new GZIPInputStream(transferStream);
+      responseBodyIn = InflatingInputStream.gzip(transferStream);
     } else {
       responseBodyIn = transferStream;
     }
@@ -596,17 +597,12 @@ public class HttpEngine {
    * Flushes the remaining request header and body, parses the HTTP response
    * headers and starts reading the HTTP response body if it exists.
    */
-  public final void readResponse() throws IOException {
-    if (hasResponse()) {
-      responseHeaders.setResponseSource(responseSource);
-      return;
-    }
-
-    if (responseSource == null) {
-      throw new IllegalStateException("readResponse() without sendRequest()");
-    }
-
-    if (!responseSource.requiresConnection()) {
+  /**
+   * Writes whatever remains of the request and flushes it, unless that has
+   * already been done.
+   */
+  private void flushRequest() throws IOException {
+    if (requestFlushedNs != -1) {
       return;
     }
 
@@ -626,8 +622,45 @@ public class HttpEngine {
     }
 
     transport.flushRequest();
+    requestFlushedNs = System.nanoTime();
+  }
+
+  /**
+   * Flushes the request and arranges for {@code callback} to run once
+   * {@link #readResponse} can proceed without waiting for the network, so
+   * that no thread is tied up while the server prepares its response. This
+   * is only supported on SPDY connections. Returns false if the callback
+   * won't be called; the caller should then read the response directly.
+   */
+  public final boolean readResponseLater(Runnable callback) throws IOException {
+    if (hasResponse() || responseSource == null || !responseSource.requiresConnection()
+        || !(transport instanceof SpdyTransport)) {
+      return false;
+    }
+    flushRequest();
+    ((SpdyTransport) transport).setResponseHeadersCallback(callback);
+    return true;
+  }
+
+  public final void readResponse() throws IOException {
+    if (hasResponse()) {
+      responseHeaders.setResponseSource(responseSource);
+      return;
+    }
+
+    if (responseSource == null) {
+      throw new IllegalStateException("readResponse() without sendRequest()");
+    }
+
+    if (!responseSource.requiresConnection()) {
+      return;
+    }
+
+    flushRequest();
 
     responseHeaders = transport.readResponseHeaders();
+    policy.getRouteDatabase().roundTrip(connection.getRoute(),
+        System.nanoTime() - requestFlushedNs);
     responseHeaders.setLocalTimestamps(sentRequestMillis, System.currentTimeMillis());
     responseHeaders.setResponseSource(responseSource);
 
@@ -82,7 +82,17 @@ public final class HttpResponseCache extends ResponseCache implements OkResponse
   private int requestCount;
 
   public HttpResponseCache(File directory, long maxSize) throws IOException {
-    cache = DiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize);
+    this(directory, maxSize, false);
+  }
+
+  /**
+   * @param binaryJournal true to keep the cache's journal in a compact binary
+   *     format that opens faster when there are many entries. The journal is
+   *     migrated whenever the cache is opened with the other format.
+   */
+  public HttpResponseCache(File directory, long maxSize, boolean binaryJournal)
+      throws IOException {
+    cache = DiskLruCache.open(directory, VERSION, ENTRY_COUNT, maxSize, binaryJournal);
   }
 
   private String uriToKey(URI uri) {
@@ -18,8 +18,8 @@ package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.internal.AbstractOutputStream;
+import com.squareup.okhttp.internal.BufferPool;
 import com.squareup.okhttp.internal.Util;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -89,13 +89,13 @@ public final class HttpTransport implements Transport {
     int contentLength = httpEngine.requestHeaders.getContentLength();
     if (contentLength != -1) {
       writeRequestHeaders();
-      return new RetryableOutputStream(contentLength);
+      return new RetryableOutputStream(contentLength, httpEngine.policy.requestBodySpoolDirectory);
     }
 
     // Buffer a request body of an unknown length. Don't write request
     // headers until the entire body is ready; otherwise we can't set the
     // Content-Length header correctly.
-    return new RetryableOutputStream();
+    return new RetryableOutputStream(-1, httpEngine.policy.requestBodySpoolDirectory);
   }
 
   @Override public void flushRequest() throws IOException {
@@ -264,12 +264,13 @@ public final class HttpTransport implements Transport {
 
     private final OutputStream socketOut;
     private final int maxChunkLength;
-    private final ByteArrayOutputStream bufferedChunk;
+    /** A pooled buffer holding the first {@code bufferedCount} bytes of the next chunk. */
+    private byte[] bufferedChunk;
+    private int bufferedCount;
 
     private ChunkedOutputStream(OutputStream socketOut, int maxChunkLength) {
       this.socketOut = socketOut;
       this.maxChunkLength = Math.max(1, dataLength(maxChunkLength));
-      this.bufferedChunk = new ByteArrayOutputStream(maxChunkLength);
     }
 
     /**
@@ -293,12 +294,15 @@ public final class HttpTransport implements Transport {
       while (count > 0) {
         int numBytesWritten;
 
-        if (bufferedChunk.size() > 0 || count < maxChunkLength) {
+        if (bufferedCount > 0 || count < maxChunkLength) {
           // fill the buffered chunk and then maybe write that to the stream
-          numBytesWritten = Math.min(count, maxChunkLength - bufferedChunk.size());
-          // TODO: skip unnecessary copies from buffer->bufferedChunk?
-          bufferedChunk.write(buffer, offset, numBytesWritten);
-          if (bufferedChunk.size() == maxChunkLength) {
+          if (bufferedChunk == null) {
+            bufferedChunk = BufferPool.take(maxChunkLength);
+          }
+          numBytesWritten = Math.min(count, maxChunkLength - bufferedCount);
+          System.arraycopy(buffer, offset, bufferedChunk, bufferedCount, numBytesWritten);
+          bufferedCount += numBytesWritten;
+          if (bufferedCount == maxChunkLength) {
             writeBufferedChunkToSocket();
           }
         } else {
@@ -339,19 +343,24 @@ public final class HttpTransport implements Transport {
         return;
       }
       closed = true;
-      writeBufferedChunkToSocket();
-      socketOut.write(FINAL_CHUNK);
+      try {
+        writeBufferedChunkToSocket();
+        socketOut.write(FINAL_CHUNK);
+      } finally {
+        BufferPool.recycle(bufferedChunk);
+        bufferedChunk = null;
+      }
     }
 
     private void writeBufferedChunkToSocket() throws IOException {
-      int size = bufferedChunk.size();
+      int size = bufferedCount;
       if (size <= 0) {
         return;
       }
 
       writeHex(size);
-      bufferedChunk.writeTo(socketOut);
-      bufferedChunk.reset();
+      socketOut.write(bufferedChunk, 0, size);
+      bufferedCount = 0;
       socketOut.write(CRLF);
     }
   }
@@ -19,11 +19,13 @@ package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.HostResolver;
 import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Route;
 import com.squareup.okhttp.internal.AbstractOutputStream;
 import com.squareup.okhttp.internal.FaultRecoveringOutputStream;
+import com.squareup.okhttp.internal.RouteDatabase;
 import com.squareup.okhttp.internal.Util;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,7 +43,6 @@ import java.security.Permission;
 import java.security.cert.CertificateException;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLHandshakeException;
 import javax.net.ssl.SSLSocketFactory;
@@ -89,35 +90,42 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
   final CookieHandler cookieHandler;
   final OkResponseCache responseCache;
   final ConnectionPool connectionPool;
+  final HostResolver dns;
+  final File requestBodySpoolDirectory;
   /* SSL configuration; necessary for HTTP requests that get redirected to HTTPS. */
   SSLSocketFactory sslSocketFactory;
   HostnameVerifier hostnameVerifier;
-  final Set<Route> failedRoutes;
+  final RouteDatabase routeDatabase;
 
   private final RawHeaders rawRequestHeaders = new RawHeaders();
 
   private int redirectionCount;
   private FaultRecoveringOutputStream faultRecoveringRequestBody;
+  private RetryableOutputStream fileRequestBody;
 
   protected IOException httpEngineFailure;
   protected HttpEngine httpEngine;
 
   public HttpURLConnectionImpl(URL url, OkHttpClient client, OkResponseCache responseCache,
-      Set<Route> failedRoutes) {
+      RouteDatabase routeDatabase) {
     super(url);
     this.followProtocolRedirects = client.getFollowProtocolRedirects();
-    this.failedRoutes = failedRoutes;
+    this.routeDatabase = routeDatabase;
     this.requestedProxy = client.getProxy();
     this.proxySelector = client.getProxySelector();
     this.cookieHandler = client.getCookieHandler();
     this.connectionPool = client.getConnectionPool();
+    this.dns = client.getHostResolver();
+    this.requestBodySpoolDirectory = client.getRequestBodySpoolDirectory();
     this.sslSocketFactory = client.getSslSocketFactory();
     this.hostnameVerifier = client.getHostnameVerifier();
     this.responseCache = responseCache;
+    setConnectTimeout(client.getConnectTimeout());
+    setReadTimeout(client.getReadTimeout());
   }
 
-  Set<Route> getFailedRoutes() {
-    return failedRoutes;
+  RouteDatabase getRouteDatabase() {
+    return routeDatabase;
   }
 
   @Override public final void connect() throws IOException {
@@ -134,11 +142,12 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
       // We close the response body here instead of in
       // HttpEngine.release because that is called when input
       // has been completely read from the underlying socket.
-      // However the response body can be a GZIPInputStream that
+      // However the response body can be a gzip stream that
       // still has unread data.
       if (httpEngine.hasResponse()) {
         Util.closeQuietly(httpEngine.getResponseBody());
       }
+      discardRequestBody();
       httpEngine.release(true);
     }
   }
@@ -277,6 +286,31 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
     return rawRequestHeaders.get(field);
   }
 
+  /**
+   * Sends the request and arranges for {@code callback} to run once the
+   * response can be read without blocking. Returns false if the callback
+   * won't be called, in which case the response should be read directly.
+   *
+   * @throws IOException if the request couldn't be sent.
+   */
+  public final boolean readResponseLater(Runnable callback) throws IOException {
+    connect();
+    return httpEngine.readResponseLater(callback);
+  }
+
+  /**
+   * Sends the contents of {@code file} as the request body. The file is read
+   * each time the request is sent, so it must not change until the response
+   * has been read. This must be called before connecting.
+   */
+  public final void setRequestBody(File file) throws IOException {
+    if (connected) {
+      throw new IllegalStateException("Already connected");
+    }
+    fileRequestBody = new RetryableOutputStream(file);
+    setDoOutput(true);
+  }
+
   private void initHttpEngine() throws IOException {
     if (httpEngineFailure != null) {
       throw httpEngineFailure;
@@ -295,7 +329,7 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
           throw new ProtocolException(method + " does not support writing");
         }
       }
-      httpEngine = newHttpEngine(method, rawRequestHeaders, null, null);
+      httpEngine = newHttpEngine(method, rawRequestHeaders, null, fileRequestBody);
     } catch (IOException e) {
       httpEngineFailure = e;
       throw e;
@@ -337,6 +371,7 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
 
       Retry retry = processResponseHeaders();
       if (retry == Retry.NONE) {
+        discardRequestBody();
         httpEngine.automaticallyReleaseConnectionToPool();
         return httpEngine;
       }
@@ -354,6 +389,7 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
           || responseCode == HTTP_MOVED_TEMP
           || responseCode == HTTP_SEE_OTHER) {
         retryMethod = "GET";
+        discardRequestBody();
         requestBody = null;
       }
 
@@ -414,6 +450,7 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
         || !isRecoverable(e)
         || !canRetryRequestBody) {
       httpEngineFailure = e;
+      discardRequestBody();
       return false;
     }
 
@@ -430,6 +467,14 @@ public class HttpURLConnectionImpl extends HttpURLConnection {
     return true;
   }
 
+  /** Deletes any temporary file holding the request body once it won't be resent. */
+  private void discardRequestBody() {
+    OutputStream requestBody = httpEngine.getRequestBody();
+    if (requestBody instanceof RetryableOutputStream) {
+      ((RetryableOutputStream) requestBody).discard();
+    }
+  }
+
   private boolean isRecoverable(IOException e) {
     // If the problem was a CertificateException from the X509TrustManager,
     // do not retry, we didn't have an abrupt server initiated exception.
@@ -18,8 +18,9 @@ package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Route;
 import com.squareup.okhttp.TunnelRequest;
+import com.squareup.okhttp.internal.RouteDatabase;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -33,7 +34,6 @@ import java.security.Principal;
 import java.security.cert.Certificate;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -48,9 +48,9 @@ public final class HttpsURLConnectionImpl extends HttpsURLConnection {
   private final HttpUrlConnectionDelegate delegate;
 
   public HttpsURLConnectionImpl(URL url, OkHttpClient client, OkResponseCache responseCache,
-      Set<Route> failedRoutes) {
+      RouteDatabase routeDatabase) {
     super(url);
-    delegate = new HttpUrlConnectionDelegate(url, client, responseCache, failedRoutes);
+    delegate = new HttpUrlConnectionDelegate(url, client, responseCache, routeDatabase);
   }
 
   @Override public String getCipherSuite() {
@@ -119,6 +119,16 @@ public final class HttpsURLConnectionImpl extends HttpsURLConnection {
     return delegate.getHttpEngine();
   }
 
+  /** See {@link HttpURLConnectionImpl#setRequestBody}. */
+  public void setRequestBody(File file) throws IOException {
+    delegate.setRequestBody(file);
+  }
+
+  /** See {@link HttpURLConnectionImpl#readResponseLater}. */
+  public boolean readResponseLater(Runnable callback) throws IOException {
+    return delegate.readResponseLater(callback);
+  }
+
   private SSLSocket getSslSocket() {
     if (delegate.httpEngine == null || delegate.httpEngine.sentRequestMillis == -1) {
       throw new IllegalStateException("Connection has not yet been established");
@@ -403,8 +413,8 @@ public final class HttpsURLConnectionImpl extends HttpsURLConnection {
 
   private final class HttpUrlConnectionDelegate extends HttpURLConnectionImpl {
     private HttpUrlConnectionDelegate(URL url, OkHttpClient client, OkResponseCache responseCache,
-        Set<Route> failedRoutes) {
-      super(url, client, responseCache, failedRoutes);
+        RouteDatabase routeDatabase) {
+      super(url, client, responseCache, routeDatabase);
     }
 
     @Override protected HttpURLConnection getHttpConnectionToCache() {
@@ -24,6 +24,7 @@ import java.net.URI;
 import java.net.URLConnection;
 import java.util.List;
 import java.util.Map;
+import javax.net.ssl.SSLSession;
 
 /**
  * An extended response cache API. Unlike {@link java.net.ResponseCache}, this
@@ -52,4 +53,16 @@ public interface OkResponseCache {
 
   /** Track an HTTP response being satisfied by {@code source}. */
   void trackResponse(ResponseSource source);
+
+  /**
+   * Returns a request to store a response that the server pushed for a GET
+   * of {@code uri}, or null if it can't be stored. Pushes never replace a
+   * response that is already cached. {@code sslSession} is the session the
+   * push arrived on, or null if it wasn't secure.
+   */
+  CacheRequest putPushed(URI uri, ResponseHeaders response, SSLSession sslSession)
+      throws IOException;
+
+  /** Track a pushed response that was refused without being stored. */
+  void trackPushRejected();
 }
@@ -25,6 +25,7 @@ import java.net.URI;
 import java.net.URLConnection;
 import java.util.List;
 import java.util.Map;
+import javax.net.ssl.SSLSession;
 
 public final class OkResponseCacheAdapter implements OkResponseCache {
   private final ResponseCache responseCache;
@@ -50,4 +51,12 @@ public final class OkResponseCacheAdapter implements OkResponseCache {
 
   @Override public void trackResponse(ResponseSource source) {
   }
+
+  @Override public CacheRequest putPushed(URI uri, ResponseHeaders response,
+      SSLSession sslSession) throws IOException {
+    return null; // A ResponseCache can't be given a response without a URLConnection.
+  }
+
+  @Override public void trackPushRejected() {
+  }
 }
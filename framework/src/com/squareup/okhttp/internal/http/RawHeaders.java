@@ -18,11 +18,13 @@
 package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.internal.Util;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -48,6 +50,11 @@ import java.util.TreeMap;
  *
  * <p>This class trims whitespace from values. It never returns values with
  * leading or trailing whitespace.
+ *
+ * <p>Header lines read from the network are kept as slices of a single byte
+ * buffer; their names and values are only decoded to strings when they are
+ * asked for. Well-known field names are identified by a small integer id, so
+ * finding the value of one of them doesn't compare strings.
  */
 public final class RawHeaders {
   private static final Comparator<String> FIELD_NAME_COMPARATOR = new Comparator<String>() {
@@ -65,7 +72,87 @@ public final class RawHeaders {
     }
   };
 
-  private final List<String> namesAndValues = new ArrayList<String>(20);
+  /* Ids of well-known field names, indexes into WELL_KNOWN_NAMES. */
+  static final int UNKNOWN = -1;
+  static final int CACHE_CONTROL = 0;
+  static final int DATE = 1;
+  static final int EXPIRES = 2;
+  static final int LAST_MODIFIED = 3;
+  static final int ETAG = 4;
+  static final int PRAGMA = 5;
+  static final int AGE = 6;
+  static final int VARY = 7;
+  static final int CONTENT_ENCODING = 8;
+  static final int TRANSFER_ENCODING = 9;
+  static final int CONTENT_LENGTH = 10;
+  static final int CONNECTION = 11;
+  static final int CONTENT_TYPE = 12;
+  static final int LOCATION = 13;
+  static final int SET_COOKIE = 14;
+  static final int SET_COOKIE2 = 15;
+  static final int SERVER = 16;
+  static final int KEEP_ALIVE = 17;
+  static final int ACCEPT_RANGES = 18;
+  static final int WWW_AUTHENTICATE = 19;
+  static final int PROXY_AUTHENTICATE = 20;
+  static final int IF_NONE_MATCH = 21;
+  static final int IF_MODIFIED_SINCE = 22;
+  static final int AUTHORIZATION = 23;
+  static final int PROXY_AUTHORIZATION = 24;
+  static final int USER_AGENT = 25;
+  static final int HOST = 26;
+  static final int ACCEPT_ENCODING = 27;
+  static final int COOKIE = 28;
+  static final int SENT_MILLIS = 29;
+  static final int RECEIVED_MILLIS = 30;
+  static final int RESPONSE_SOURCE = 31;
+  static final int SPDY_STATUS = 32;
+  static final int SPDY_VERSION = 33;
+
+  private static final String[] WELL_KNOWN_NAMES = {
+      "Cache-Control", "Date", "Expires", "Last-Modified", "ETag", "Pragma", "Age", "Vary",
+      "Content-Encoding", "Transfer-Encoding", "Content-Length", "Connection", "Content-Type",
+      "Location", "Set-Cookie", "Set-Cookie2", "Server", "Keep-Alive", "Accept-Ranges",
+      "WWW-Authenticate", "Proxy-Authenticate", "If-None-Match", "If-Modified-Since",
+      "Authorization", "Proxy-Authorization", "User-Agent", "Host", "Accept-Encoding", "Cookie",
+      "X-Android-Sent-Millis", "X-Android-Received-Millis", "X-Android-Response-Source",
+      ":status", ":version"
+  };
+
+  /** Open-addressed table of well-known name ids plus one, by case-insensitive hash. */
+  private static final byte[] WELL_KNOWN_TABLE = new byte[128];
+
+  static {
+    for (int id = 0; id < WELL_KNOWN_NAMES.length; id++) {
+      String name = WELL_KNOWN_NAMES[id];
+      int hash = 0;
+      for (int i = 0; i < name.length(); i++) {
+        hash = 31 * hash + toLowerAscii(name.charAt(i));
+      }
+      int slot = hash & (WELL_KNOWN_TABLE.length - 1);
+      while (WELL_KNOWN_TABLE[slot] != 0) {
+        slot = (slot + 1) & (WELL_KNOWN_TABLE.length - 1);
+      }
+      WELL_KNOWN_TABLE[slot] = (byte) (id + 1);
+    }
+  }
+
+  /* Parallel arrays, one element per field. */
+  private int fieldCount;
+  private int[] ids = new int[20];
+  /** Decoded names and values. Null if still only in the buffer. */
+  private String[] names = new String[20];
+  private String[] values = new String[20];
+  /** Name offset, name length, value offset and value length in the buffer. */
+  private int[] slices;
+
+  /** Header lines read from the network. */
+  private byte[] buffer;
+  private int bufferLength;
+
+  /** The index of the last field with each well-known name, or -1. */
+  private final int[] lastIndexById = new int[WELL_KNOWN_NAMES.length];
+
   private String requestLine;
   private String statusLine;
   private int httpMinorVersion = 1;
@@ -73,10 +160,21 @@ public final class RawHeaders {
   private String responseMessage;
 
   public RawHeaders() {
+    Arrays.fill(lastIndexById, -1);
   }
 
   public RawHeaders(RawHeaders copyFrom) {
-    namesAndValues.addAll(copyFrom.namesAndValues);
+    fieldCount = copyFrom.fieldCount;
+    ids = copyFrom.ids.clone();
+    names = copyFrom.names.clone();
+    values = copyFrom.values.clone();
+    if (copyFrom.buffer != null) {
+      slices = copyFrom.slices.clone();
+      buffer = new byte[copyFrom.bufferLength];
+      System.arraycopy(copyFrom.buffer, 0, buffer, 0, copyFrom.bufferLength);
+      bufferLength = copyFrom.bufferLength;
+    }
+    System.arraycopy(copyFrom.lastIndexById, 0, lastIndexById, 0, lastIndexById.length);
     requestLine = copyFrom.requestLine;
     statusLine = copyFrom.statusLine;
     httpMinorVersion = copyFrom.httpMinorVersion;
@@ -123,16 +221,8 @@ public final class RawHeaders {
   }
 
   public void computeResponseStatusLineFromSpdyHeaders() throws IOException {
-    String status = null;
-    String version = null;
-    for (int i = 0; i < namesAndValues.size(); i += 2) {
-      String name = namesAndValues.get(i);
-      if (":status".equals(name)) {
-        status = namesAndValues.get(i + 1);
-      } else if (":version".equals(name)) {
-        version = namesAndValues.get(i + 1);
-      }
-    }
+    String status = get(":status");
+    String version = get(":version");
     if (status == null || version == null) {
       throw new ProtocolException("Expected ':status' and ':version' headers not present");
     }
@@ -206,15 +296,66 @@ public final class RawHeaders {
    * appropriate for headers from the remote peer.
    */
   private void addLenient(String fieldName, String value) {
-    namesAndValues.add(fieldName);
-    namesAndValues.add(value.trim());
+    addField(wellKnownId(fieldName), fieldName, value.trim());
+  }
+
+  private void addField(int id, String fieldName, String value) {
+    if (fieldCount == ids.length) {
+      grow();
+    }
+    ids[fieldCount] = id;
+    names[fieldCount] = fieldName;
+    values[fieldCount] = value;
+    if (id != UNKNOWN) {
+      lastIndexById[id] = fieldCount;
+    }
+    fieldCount++;
+  }
+
+  private void grow() {
+    int capacity = ids.length * 2;
+    int[] newIds = new int[capacity];
+    String[] newNames = new String[capacity];
+    String[] newValues = new String[capacity];
+    System.arraycopy(ids, 0, newIds, 0, fieldCount);
+    System.arraycopy(names, 0, newNames, 0, fieldCount);
+    System.arraycopy(values, 0, newValues, 0, fieldCount);
+    ids = newIds;
+    names = newNames;
+    values = newValues;
+    if (slices != null) {
+      int[] newSlices = new int[capacity * 4];
+      System.arraycopy(slices, 0, newSlices, 0, fieldCount * 4);
+      slices = newSlices;
+    }
   }
 
   public void removeAll(String fieldName) {
-    for (int i = 0; i < namesAndValues.size(); i += 2) {
-      if (fieldName.equalsIgnoreCase(namesAndValues.get(i))) {
-        namesAndValues.remove(i); // field name
-        namesAndValues.remove(i); // value
+    int id = wellKnownId(fieldName);
+    int kept = 0;
+    for (int i = 0; i < fieldCount; i++) {
+      boolean remove = id != UNKNOWN ? ids[i] == id : fieldName.equalsIgnoreCase(getFieldName(i));
+      if (remove) {
+        continue;
+      }
+      ids[kept] = ids[i];
+      names[kept] = names[i];
+      values[kept] = values[i];
+      if (slices != null) {
+        System.arraycopy(slices, i * 4, slices, kept * 4, 4);
+      }
+      kept++;
+    }
+    for (int i = kept; i < fieldCount; i++) {
+      names[i] = null;
+      values[i] = null;
+    }
+    fieldCount = kept;
+
+    Arrays.fill(lastIndexById, -1);
+    for (int i = 0; i < fieldCount; i++) {
+      if (ids[i] != UNKNOWN) {
+        lastIndexById[ids[i]] = i;
       }
     }
   }
@@ -236,32 +377,52 @@ public final class RawHeaders {
 
   /** Returns the number of field values. */
   public int length() {
-    return namesAndValues.size() / 2;
+    return fieldCount;
   }
 
   /** Returns the field at {@code position} or null if that is out of range. */
   public String getFieldName(int index) {
-    int fieldNameIndex = index * 2;
-    if (fieldNameIndex < 0 || fieldNameIndex >= namesAndValues.size()) {
+    if (index < 0 || index >= fieldCount) {
       return null;
     }
-    return namesAndValues.get(fieldNameIndex);
+    String result = names[index];
+    if (result == null) {
+      result = decode(slices[index * 4], slices[index * 4 + 1]);
+      names[index] = result;
+    }
+    return result;
   }
 
   /** Returns the value at {@code index} or null if that is out of range. */
   public String getValue(int index) {
-    int valueIndex = index * 2 + 1;
-    if (valueIndex < 0 || valueIndex >= namesAndValues.size()) {
+    if (index < 0 || index >= fieldCount) {
       return null;
     }
-    return namesAndValues.get(valueIndex);
+    String result = values[index];
+    if (result == null) {
+      result = decode(slices[index * 4 + 2], slices[index * 4 + 3]);
+      values[index] = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the id of the well-known name of the field at {@code index}, or
+   * {@link #UNKNOWN}.
+   */
+  int getFieldId(int index) {
+    return ids[index];
   }
 
   /** Returns the last value corresponding to the specified field, or null. */
   public String get(String fieldName) {
-    for (int i = namesAndValues.size() - 2; i >= 0; i -= 2) {
-      if (fieldName.equalsIgnoreCase(namesAndValues.get(i))) {
-        return namesAndValues.get(i + 1);
+    int id = wellKnownId(fieldName);
+    if (id != UNKNOWN) {
+      return getValue(lastIndexById[id]);
+    }
+    for (int i = fieldCount - 1; i >= 0; i--) {
+      if (ids[i] == UNKNOWN && fieldName.equalsIgnoreCase(getFieldName(i))) {
+        return getValue(i);
       }
     }
     return null;
@@ -270,10 +431,10 @@ public final class RawHeaders {
   /** @param fieldNames a case-insensitive set of HTTP header field names. */
   public RawHeaders getAll(Set<String> fieldNames) {
     RawHeaders result = new RawHeaders();
-    for (int i = 0; i < namesAndValues.size(); i += 2) {
-      String fieldName = namesAndValues.get(i);
+    for (int i = 0; i < fieldCount; i++) {
+      String fieldName = getFieldName(i);
       if (fieldNames.contains(fieldName)) {
-        result.add(fieldName, namesAndValues.get(i + 1));
+        result.add(fieldName, getValue(i));
       }
     }
     return result;
@@ -283,10 +444,10 @@ public final class RawHeaders {
   public byte[] toBytes() throws UnsupportedEncodingException {
     StringBuilder result = new StringBuilder(256);
     result.append(requestLine).append("\r\n");
-    for (int i = 0; i < namesAndValues.size(); i += 2) {
-      result.append(namesAndValues.get(i))
+    for (int i = 0; i < fieldCount; i++) {
+      result.append(getFieldName(i))
           .append(": ")
-          .append(namesAndValues.get(i + 1))
+          .append(getValue(i))
           .append("\r\n");
     }
     result.append("\r\n");
@@ -307,21 +468,199 @@ public final class RawHeaders {
   /** Reads headers or trailers into {@code out}. */
   public static void readHeaders(InputStream in, RawHeaders out) throws IOException {
     // parse the result headers until the first blank line
-    String line;
-    while ((line = Util.readAsciiLine(in)).length() != 0) {
-      out.addLine(line);
+    if (in.markSupported()) {
+      out.readLines(in);
+    } else {
+      while (out.readLine(in)) {
+      }
+    }
+  }
+
+  /**
+   * Reads header lines a chunk at a time, then rewinds {@code in} to just
+   * after the blank line that ends them.
+   */
+  private void readLines(InputStream in) throws IOException {
+    final int chunkSize = 512;
+    int lineStart = bufferLength;
+    while (true) {
+      ensureBufferCapacity(chunkSize);
+      int chunkStart = bufferLength;
+      in.mark(chunkSize);
+      int count = in.read(buffer, chunkStart, chunkSize);
+      if (count == -1) {
+        throw new EOFException();
+      }
+      bufferLength += count;
+      for (int i = chunkStart; i < bufferLength; i++) {
+        if (buffer[i] != '\n') {
+          continue;
+        }
+        if (!addBufferedLine(lineStart, i)) {
+          in.reset();
+          skipFully(in, i + 1 - chunkStart);
+          bufferLength = lineStart;
+          return;
+        }
+        lineStart = i + 1;
+      }
     }
   }
 
+  /**
+   * Reads a header line a byte at a time and adds its field. Returns false if
+   * the line was blank.
+   */
+  private boolean readLine(InputStream in) throws IOException {
+    int lineStart = bufferLength;
+    while (true) {
+      int c = in.read();
+      if (c == -1) {
+        throw new EOFException();
+      } else if (c == '\n') {
+        break;
+      }
+      ensureBufferCapacity(1);
+      buffer[bufferLength++] = (byte) c;
+    }
+    if (!addBufferedLine(lineStart, bufferLength)) {
+      bufferLength = lineStart;
+      return false;
+    }
+    return true;
+  }
+
+  private void ensureBufferCapacity(int count) {
+    if (buffer == null) {
+      buffer = new byte[Math.max(512, count)];
+    } else if (bufferLength + count > buffer.length) {
+      byte[] newBuffer = new byte[Math.max(buffer.length * 2, bufferLength + count)];
+      System.arraycopy(buffer, 0, newBuffer, 0, bufferLength);
+      buffer = newBuffer;
+    }
+  }
+
+  private static void skipFully(InputStream in, long byteCount) throws IOException {
+    while (byteCount > 0) {
+      long skipped = in.skip(byteCount);
+      if (skipped <= 0) {
+        throw new EOFException();
+      }
+      byteCount -= skipped;
+    }
+  }
+
+  /**
+   * Adds the field of the line in {@code buffer[lineStart..lineEnd)}, which
+   * may end with '\r'. Returns false if the line is blank.
+   */
+  private boolean addBufferedLine(int lineStart, int lineEnd) {
+    if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+      lineEnd--;
+    }
+    if (lineEnd == lineStart) {
+      return false;
+    }
+    int colon = -1;
+    for (int i = lineStart; i < lineEnd; i++) {
+      if (buffer[i] == ':') {
+        colon = i;
+        break;
+      }
+    }
+
+    int nameStart = lineStart;
+    int nameEnd = colon != -1 ? colon : lineStart; // Lines without a colon have an empty name.
+    int valueStart = colon != -1 ? colon + 1 : lineStart;
+    int valueEnd = lineEnd;
+    // Trim the value like String.trim().
+    while (valueStart < valueEnd && (buffer[valueStart] & 0xff) <= ' ') {
+      valueStart++;
+    }
+    while (valueEnd > valueStart && (buffer[valueEnd - 1] & 0xff) <= ' ') {
+      valueEnd--;
+    }
+
+    int id = wellKnownId(buffer, nameStart, nameEnd - nameStart);
+    // Share the well-known name's string when the case matches too.
+    String name = (id != UNKNOWN && equals(buffer, nameStart, nameEnd - nameStart,
+        WELL_KNOWN_NAMES[id])) ? WELL_KNOWN_NAMES[id] : null;
+    if (slices == null) {
+      slices = new int[ids.length * 4];
+    }
+    addField(id, nameEnd == nameStart ? "" : name, null);
+    int slice = (fieldCount - 1) * 4;
+    slices[slice] = nameStart;
+    slices[slice + 1] = nameEnd - nameStart;
+    slices[slice + 2] = valueStart;
+    slices[slice + 3] = valueEnd - valueStart;
+    return true;
+  }
+
+  private String decode(int offset, int length) {
+    return new String(buffer, offset, length, Util.ISO_8859_1);
+  }
+
+  /** Returns the id of {@code name} if it is well-known, ignoring case. */
+  private static int wellKnownId(String name) {
+    int hash = 0;
+    for (int i = 0; i < name.length(); i++) {
+      hash = 31 * hash + toLowerAscii(name.charAt(i));
+    }
+    for (int slot = hash & (WELL_KNOWN_TABLE.length - 1); WELL_KNOWN_TABLE[slot] != 0;
+        slot = (slot + 1) & (WELL_KNOWN_TABLE.length - 1)) {
+      int id = WELL_KNOWN_TABLE[slot] - 1;
+      if (WELL_KNOWN_NAMES[id].equalsIgnoreCase(name)) {
+        return id;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private static int wellKnownId(byte[] bytes, int offset, int length) {
+    int hash = 0;
+    for (int i = offset; i < offset + length; i++) {
+      hash = 31 * hash + toLowerAscii(bytes[i] & 0xff);
+    }
+    for (int slot = hash & (WELL_KNOWN_TABLE.length - 1); WELL_KNOWN_TABLE[slot] != 0;
+        slot = (slot + 1) & (WELL_KNOWN_TABLE.length - 1)) {
+      int id = WELL_KNOWN_TABLE[slot] - 1;
+      if (equalsIgnoreCase(bytes, offset, length, WELL_KNOWN_NAMES[id])) {
+        return id;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  private static boolean equals(byte[] bytes, int offset, int length, String s) {
+    if (length != s.length()) return false;
+    for (int i = 0; i < length; i++) {
+      if ((bytes[offset + i] & 0xff) != s.charAt(i)) return false;
+    }
+    return true;
+  }
+
+  private static boolean equalsIgnoreCase(byte[] bytes, int offset, int length, String s) {
+    if (length != s.length()) return false;
+    for (int i = 0; i < length; i++) {
+      if (toLowerAscii(bytes[offset + i] & 0xff) != toLowerAscii(s.charAt(i))) return false;
+    }
+    return true;
+  }
+
+  private static int toLowerAscii(int c) {
+    return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+  }
+
   /**
    * Returns an immutable map containing each field to its list of values. The
    * status line is mapped to null.
    */
   public Map<String, List<String>> toMultimap(boolean response) {
     Map<String, List<String>> result = new TreeMap<String, List<String>>(FIELD_NAME_COMPARATOR);
-    for (int i = 0; i < namesAndValues.size(); i += 2) {
-      String fieldName = namesAndValues.get(i);
-      String value = namesAndValues.get(i + 1);
+    for (int i = 0; i < fieldCount; i++) {
+      String fieldName = getFieldName(i);
+      String value = getValue(i);
 
       List<String> allValues = new ArrayList<String>();
       List<String> otherValues = result.get(fieldName);
@@ -370,9 +709,9 @@ public final class RawHeaders {
   public List<String> toNameValueBlock() {
     Set<String> names = new HashSet<String>();
     List<String> result = new ArrayList<String>();
-    for (int i = 0; i < namesAndValues.size(); i += 2) {
-      String name = namesAndValues.get(i).toLowerCase(Locale.US);
-      String value = namesAndValues.get(i + 1);
+    for (int i = 0; i < fieldCount; i++) {
+      String name = getFieldName(i).toLowerCase(Locale.US);
+      String value = getValue(i);
 
       // Drop headers that are forbidden when layering HTTP over SPDY.
       if (name.equals("connection")
@@ -409,13 +748,13 @@ public final class RawHeaders {
     for (int i = 0; i < nameValueBlock.size(); i += 2) {
       String name = nameValueBlock.get(i);
       String values = nameValueBlock.get(i + 1);
+      int id = wellKnownId(name);
       for (int start = 0; start < values.length(); ) {
         int end = values.indexOf('\0', start);
         if (end == -1) {
           end = values.length();
         }
-        result.namesAndValues.add(name);
-        result.namesAndValues.add(values.substring(start, end));
+        result.addField(id, name, values.substring(start, end));
         start = end + 1;
       }
     }
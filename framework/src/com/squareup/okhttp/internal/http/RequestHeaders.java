@@ -80,39 +80,53 @@ public final class RequestHeaders {
     };
 
     for (int i = 0; i < headers.length(); i++) {
-      String fieldName = headers.getFieldName(i);
-      String value = headers.getValue(i);
-      if ("Cache-Control".equalsIgnoreCase(fieldName)) {
-        HeaderParser.parseCacheControl(value, handler);
-      } else if ("Pragma".equalsIgnoreCase(fieldName)) {
-        if ("no-cache".equalsIgnoreCase(value)) {
-          noCache = true;
-        }
-      } else if ("If-None-Match".equalsIgnoreCase(fieldName)) {
-        ifNoneMatch = value;
-      } else if ("If-Modified-Since".equalsIgnoreCase(fieldName)) {
-        ifModifiedSince = value;
-      } else if ("Authorization".equalsIgnoreCase(fieldName)) {
-        hasAuthorization = true;
-      } else if ("Content-Length".equalsIgnoreCase(fieldName)) {
-        try {
-          contentLength = Integer.parseInt(value);
-        } catch (NumberFormatException ignored) {
-        }
-      } else if ("Transfer-Encoding".equalsIgnoreCase(fieldName)) {
-        transferEncoding = value;
-      } else if ("User-Agent".equalsIgnoreCase(fieldName)) {
-        userAgent = value;
-      } else if ("Host".equalsIgnoreCase(fieldName)) {
-        host = value;
-      } else if ("Connection".equalsIgnoreCase(fieldName)) {
-        connection = value;
-      } else if ("Accept-Encoding".equalsIgnoreCase(fieldName)) {
-        acceptEncoding = value;
-      } else if ("Content-Type".equalsIgnoreCase(fieldName)) {
-        contentType = value;
-      } else if ("Proxy-Authorization".equalsIgnoreCase(fieldName)) {
-        proxyAuthorization = value;
+      switch (headers.getFieldId(i)) {
+        case RawHeaders.CACHE_CONTROL:
+          HeaderParser.parseCacheControl(headers.getValue(i), handler);
+          break;
+        case RawHeaders.PRAGMA:
+          if ("no-cache".equalsIgnoreCase(headers.getValue(i))) {
+            noCache = true;
+          }
+          break;
+        case RawHeaders.IF_NONE_MATCH:
+          ifNoneMatch = headers.getValue(i);
+          break;
+        case RawHeaders.IF_MODIFIED_SINCE:
+          ifModifiedSince = headers.getValue(i);
+          break;
+        case RawHeaders.AUTHORIZATION:
+          hasAuthorization = true;
+          break;
+        case RawHeaders.CONTENT_LENGTH:
+          try {
+            contentLength = Integer.parseInt(headers.getValue(i));
+          } catch (NumberFormatException ignored) {
+          }
+          break;
+        case RawHeaders.TRANSFER_ENCODING:
+          transferEncoding = headers.getValue(i);
+          break;
+        case RawHeaders.USER_AGENT:
+          userAgent = headers.getValue(i);
+          break;
+        case RawHeaders.HOST:
+          host = headers.getValue(i);
+          break;
+        case RawHeaders.CONNECTION:
+          connection = headers.getValue(i);
+          break;
+        case RawHeaders.ACCEPT_ENCODING:
+          acceptEncoding = headers.getValue(i);
+          break;
+        case RawHeaders.CONTENT_TYPE:
+          contentType = headers.getValue(i);
+          break;
+        case RawHeaders.PROXY_AUTHORIZATION:
+          proxyAuthorization = headers.getValue(i);
+          break;
+        default:
+          break;
       }
     }
   }
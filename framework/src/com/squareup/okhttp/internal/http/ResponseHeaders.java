@@ -136,47 +136,62 @@ public final class ResponseHeaders {
     };
 
     for (int i = 0; i < headers.length(); i++) {
-      String fieldName = headers.getFieldName(i);
-      String value = headers.getValue(i);
-      if ("Cache-Control".equalsIgnoreCase(fieldName)) {
-        HeaderParser.parseCacheControl(value, handler);
-      } else if ("Date".equalsIgnoreCase(fieldName)) {
-        servedDate = HttpDate.parse(value);
-      } else if ("Expires".equalsIgnoreCase(fieldName)) {
-        expires = HttpDate.parse(value);
-      } else if ("Last-Modified".equalsIgnoreCase(fieldName)) {
-        lastModified = HttpDate.parse(value);
-      } else if ("ETag".equalsIgnoreCase(fieldName)) {
-        etag = value;
-      } else if ("Pragma".equalsIgnoreCase(fieldName)) {
-        if ("no-cache".equalsIgnoreCase(value)) {
-          noCache = true;
-        }
-      } else if ("Age".equalsIgnoreCase(fieldName)) {
-        ageSeconds = HeaderParser.parseSeconds(value);
-      } else if ("Vary".equalsIgnoreCase(fieldName)) {
-        // Replace the immutable empty set with something we can mutate.
-        if (varyFields.isEmpty()) {
-          varyFields = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
-        }
-        for (String varyField : value.split(",")) {
-          varyFields.add(varyField.trim());
-        }
-      } else if ("Content-Encoding".equalsIgnoreCase(fieldName)) {
-        contentEncoding = value;
-      } else if ("Transfer-Encoding".equalsIgnoreCase(fieldName)) {
-        transferEncoding = value;
-      } else if ("Content-Length".equalsIgnoreCase(fieldName)) {
-        try {
-          contentLength = Integer.parseInt(value);
-        } catch (NumberFormatException ignored) {
-        }
-      } else if ("Connection".equalsIgnoreCase(fieldName)) {
-        connection = value;
-      } else if (SENT_MILLIS.equalsIgnoreCase(fieldName)) {
-        sentRequestMillis = Long.parseLong(value);
-      } else if (RECEIVED_MILLIS.equalsIgnoreCase(fieldName)) {
-        receivedResponseMillis = Long.parseLong(value);
+      switch (headers.getFieldId(i)) {
+        case RawHeaders.CACHE_CONTROL:
+          HeaderParser.parseCacheControl(headers.getValue(i), handler);
+          break;
+        case RawHeaders.DATE:
+          servedDate = HttpDate.parse(headers.getValue(i));
+          break;
+        case RawHeaders.EXPIRES:
+          expires = HttpDate.parse(headers.getValue(i));
+          break;
+        case RawHeaders.LAST_MODIFIED:
+          lastModified = HttpDate.parse(headers.getValue(i));
+          break;
+        case RawHeaders.ETAG:
+          etag = headers.getValue(i);
+          break;
+        case RawHeaders.PRAGMA:
+          if ("no-cache".equalsIgnoreCase(headers.getValue(i))) {
+            noCache = true;
+          }
+          break;
+        case RawHeaders.AGE:
+          ageSeconds = HeaderParser.parseSeconds(headers.getValue(i));
+          break;
+        case RawHeaders.VARY:
+          // Replace the immutable empty set with something we can mutate.
+          if (varyFields.isEmpty()) {
+            varyFields = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+          }
+          for (String varyField : headers.getValue(i).split(",")) {
+            varyFields.add(varyField.trim());
+          }
+          break;
+        case RawHeaders.CONTENT_ENCODING:
+          contentEncoding = headers.getValue(i);
+          break;
+        case RawHeaders.TRANSFER_ENCODING:
+          transferEncoding = headers.getValue(i);
+          break;
+        case RawHeaders.CONTENT_LENGTH:
+          try {
+            contentLength = Integer.parseInt(headers.getValue(i));
+          } catch (NumberFormatException ignored) {
+          }
+          break;
+        case RawHeaders.CONNECTION:
+          connection = headers.getValue(i);
+          break;
+        case RawHeaders.SENT_MILLIS:
+          sentRequestMillis = Long.parseLong(headers.getValue(i));
+          break;
+        case RawHeaders.RECEIVED_MILLIS:
+          receivedResponseMillis = Long.parseLong(headers.getValue(i));
+          break;
+        default:
+          break;
       }
     }
   }
@@ -17,30 +17,70 @@
 package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.internal.AbstractOutputStream;
+import com.squareup.okhttp.internal.Util;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 import static com.squareup.okhttp.internal.Util.checkOffsetAndCount;
 
 /**
- * An HTTP request body that's completely buffered in memory. This allows
- * the post body to be transparently re-sent if the HTTP request must be
- * sent multiple times.
+ * An HTTP request body that's completely buffered. This allows the post body
+ * to be transparently re-sent if the HTTP request must be sent multiple times.
+ *
+ * <p>Small bodies are buffered in memory. Once a body grows past {@link
+ * #SPOOL_THRESHOLD} it is moved to a temporary file in the spool directory,
+ * which is deleted by {@link #discard}. Without a spool directory, or if the
+ * file can't be created or written, the body stays in memory. A body may also
+ * be backed by an existing file, which is read each time the body is sent and
+ * never copied.
  */
 final class RetryableOutputStream extends AbstractOutputStream {
+  /** Bodies larger than this many bytes are spooled to a temporary file. */
+  static final int SPOOL_THRESHOLD = 64 * 1024;
+
   private final int limit;
-  private final ByteArrayOutputStream content;
+  private File spoolDirectory;
+  private ByteArrayOutputStream content;
+  private File file;
+  private boolean ownsFile;
+  private OutputStream fileOut;
+  private int size;
 
-  public RetryableOutputStream(int limit) {
+  /**
+   * @param limit the body's length, or -1 if it isn't known.
+   * @param spoolDirectory the directory to spool large bodies to, or null.
+   */
+  public RetryableOutputStream(int limit, File spoolDirectory) {
     this.limit = limit;
-    this.content = new ByteArrayOutputStream(limit);
+    this.spoolDirectory = spoolDirectory;
+    this.content = limit != -1
+        ? new ByteArrayOutputStream(Math.min(limit, SPOOL_THRESHOLD))
+        : new ByteArrayOutputStream();
   }
 
-  public RetryableOutputStream() {
-    this.limit = -1;
-    this.content = new ByteArrayOutputStream();
+  /** Creates a complete body with the contents of {@code file}. */
+  public RetryableOutputStream(File file) throws IOException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(file.getPath());
+    }
+    long length = file.length();
+    if (length > Integer.MAX_VALUE) {
+      throw new ProtocolException("request body too large: " + length + " bytes");
+    }
+    this.limit = (int) length;
+    this.spoolDirectory = null;
+    this.file = file;
+    this.size = (int) length;
+    this.closed = true;
   }
 
   @Override public synchronized void close() throws IOException {
@@ -48,9 +88,12 @@ final class RetryableOutputStream extends AbstractOutputStream {
       return;
     }
     closed = true;
-    if (content.size() < limit) {
+    if (fileOut != null) {
+      fileOut.close();
+    }
+    if (size < limit) {
       throw new ProtocolException(
-          "content-length promised " + limit + " bytes, but received " + content.size());
+          "content-length promised " + limit + " bytes, but received " + size);
     }
   }
 
@@ -58,18 +101,128 @@ final class RetryableOutputStream extends AbstractOutputStream {
       throws IOException {
     checkNotClosed();
     checkOffsetAndCount(buffer.length, offset, count);
-    if (limit != -1 && content.size() > limit - count) {
+    if (limit != -1 && size > limit - count) {
       throw new ProtocolException("exceeded content-length limit of " + limit + " bytes");
     }
+    if (content != null && spoolDirectory != null && size > SPOOL_THRESHOLD - count) {
+      spool();
+    }
+    if (content == null) {
+      try {
+        fileOut.write(buffer, offset, count);
+        size += count;
+        return;
+      } catch (IOException e) {
+        unspool(e); // The disk may be full.
+      }
+    }
     content.write(buffer, offset, count);
+    size += count;
+  }
+
+  /**
+   * Moves the buffered content to a temporary file. If that fails, the
+   * content stays in memory and this doesn't try again.
+   */
+  private void spool() {
+    File spoolFile = null;
+    OutputStream spoolOut = null;
+    try {
+      spoolFile = File.createTempFile("okhttp", ".body", spoolDirectory);
+      spoolOut = new FileOutputStream(spoolFile);
+      content.writeTo(spoolOut);
+    } catch (IOException e) {
+      Util.closeQuietly(spoolOut);
+      if (spoolFile != null) {
+        spoolFile.delete();
+      }
+      spoolDirectory = null;
+      return;
+    }
+    file = spoolFile;
+    ownsFile = true;
+    fileOut = spoolOut;
+    content = null;
+  }
+
+  /**
+   * Moves the spooled content back into memory after writing to the file
+   * failed with {@code cause}, and stops spooling. Throws {@code cause} if
+   * the file can't be read back.
+   */
+  private void unspool(IOException cause) throws IOException {
+    Util.closeQuietly(fileOut);
+    fileOut = null;
+    ByteArrayOutputStream memory = new ByteArrayOutputStream(size);
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      byte[] buffer = new byte[8192];
+      for (int remaining = size; remaining > 0; ) {
+        int count = in.read(buffer, 0, Math.min(buffer.length, remaining));
+        if (count == -1) throw cause;
+        memory.write(buffer, 0, count);
+        remaining -= count;
+      }
+    } catch (IOException e) {
+      throw cause;
+    } finally {
+      Util.closeQuietly(in);
+      file.delete();
+      file = null;
+      ownsFile = false;
+      spoolDirectory = null;
+    }
+    content = memory;
   }
 
   public synchronized int contentLength() throws IOException {
     close();
-    return content.size();
+    return size;
+  }
+
+  /**
+   * Writes this body to {@code socketOut}. File-backed bodies are sent with
+   * {@link FileChannel#transferTo}, but {@code socketOut} isn't a channel,
+   * so the transfer still copies through the 8 KiB buffer of the stream
+   * adapter. That keeps only a small part of the body on the heap at a time;
+   * it doesn't avoid the copy. This holds the lock while sending so that a
+   * concurrent {@link #discard} can't delete the file midway.
+   */
+  public synchronized void writeToSocket(OutputStream socketOut) throws IOException {
+    if (content != null) {
+      content.writeTo(socketOut);
+      return;
+    }
+    if (file == null) {
+      throw new IllegalStateException("discarded");
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel target = Channels.newChannel(socketOut);
+      for (long position = 0; position < size; ) {
+        long count = channel.transferTo(position, size - position, target);
+        if (count <= 0) {
+          throw new ProtocolException("request body file shrank to " + position + " bytes");
+        }
+        position += count;
+      }
+    } finally {
+      in.close();
+    }
   }
 
-  public void writeToSocket(OutputStream socketOut) throws IOException {
-    content.writeTo(socketOut);
+  /**
+   * Releases this body once it won't be sent again, deleting its temporary
+   * file if it has one.
+   */
+  public synchronized void discard() {
+    if (ownsFile) {
+      Util.closeQuietly(fileOut);
+      file.delete();
+      file = null;
+      ownsFile = false;
+    }
   }
 }
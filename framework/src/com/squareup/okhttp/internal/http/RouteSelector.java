@@ -18,9 +18,14 @@ package com.squareup.okhttp.internal.http;
 import com.squareup.okhttp.Address;
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.HostResolver;
 import com.squareup.okhttp.Route;
-import com.squareup.okhttp.internal.Dns;
+import com.squareup.okhttp.TunnelRequest;
+import com.squareup.okhttp.internal.NamedRunnable;
+import com.squareup.okhttp.internal.RouteDatabase;
+import com.squareup.okhttp.internal.Util;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -28,11 +33,22 @@ import java.net.ProxySelector;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLHandshakeException;
 
 import static com.squareup.okhttp.internal.Util.getEffectivePort;
@@ -50,12 +66,28 @@ public final class RouteSelector {
   /** No TLS mode. */
   private static final int TLS_MODE_NULL = -1;
 
+  /** The number of routes {@link #nextConnected} races against each other. */
+  private static final int MAX_PARALLEL_CONNECTS = 2;
+  /** How long an attempt gets before the next route is tried alongside it. */
+  private static final long CONNECT_STAGGER_MS = 250;
+
+  /**
+   * Enough threads for every call of a default {@link com.squareup.okhttp.Dispatcher}
+   * to race {@link #MAX_PARALLEL_CONNECTS} routes. Attempts beyond this run on
+   * the caller's thread, one at a time.
+   */
+  private static final int MAX_CONNECT_THREADS = 64 * MAX_PARALLEL_CONNECTS;
+
+  private static final ExecutorService connectExecutor =
+      new ThreadPoolExecutor(0, MAX_CONNECT_THREADS, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>());
+
   private final Address address;
   private final URI uri;
   private final ProxySelector proxySelector;
   private final ConnectionPool pool;
-  private final Dns dns;
-  private final Set<Route> failedRoutes;
+  private final HostResolver dns;
+  private final RouteDatabase routeDatabase;
 
   /* The most recently attempted route. */
   private Proxy lastProxy;
@@ -78,13 +110,13 @@ public final class RouteSelector {
   private final List<Route> postponedRoutes;
 
   public RouteSelector(Address address, URI uri, ProxySelector proxySelector, ConnectionPool pool,
-      Dns dns, Set<Route> failedRoutes) {
+      HostResolver dns, RouteDatabase routeDatabase) {
     this.address = address;
     this.uri = uri;
     this.proxySelector = proxySelector;
     this.pool = pool;
     this.dns = dns;
-    this.failedRoutes = failedRoutes;
+    this.routeDatabase = routeDatabase;
     this.postponedRoutes = new LinkedList<Route>();
 
     resetNextProxy(uri, address.getProxy());
@@ -128,7 +160,7 @@ public final class RouteSelector {
 
     boolean modernTls = nextTlsMode() == TLS_MODE_MODERN;
     Route route = new Route(address, lastProxy, lastInetSocketAddress, modernTls);
-    if (failedRoutes.contains(route)) {
+    if (routeDatabase.shouldPostpone(route)) {
       postponedRoutes.add(route);
       // We will only recurse in order to skip previously failed routes. They will be
       // tried last.
@@ -138,6 +170,207 @@ public final class RouteSelector {
     return new Connection(route);
   }
 
+  /**
+   * Returns a connected connection: either a pooled one, or a new one made
+   * by racing connection attempts over the next few distinct socket
+   * addresses. Each attempt starts {@link #CONNECT_STAGGER_MS} after the
+   * previous one, or as soon as the previous one fails. The first attempt to
+   * succeed wins and the others are closed. This keeps an unreachable
+   * address, such as a blackholed IPv6 route, from costing a full connect
+   * timeout before other addresses are tried.
+   *
+   * <p>Failed attempts are reported to {@link #connectFailed}. New
+   * connections are shared with the pool and recorded in the route database.
+   *
+   * @throws IOException the last failure, if every attempt failed.
+   * @throws NoSuchElementException if there are no more routes to attempt.
+   */
+  public Connection nextConnected(int connectTimeout, int readTimeout,
+      TunnelRequest tunnelRequest) throws IOException {
+    Connection first = next();
+    if (first.isConnected()) {
+      return first;
+    }
+
+    // Collect candidates with distinct socket addresses. The other TLS mode
+    // for the same address is only useful once the modern one has failed.
+    List<Connection> candidates = new ArrayList<Connection>(MAX_PARALLEL_CONNECTS);
+    candidates.add(first);
+    while (candidates.size() < MAX_PARALLEL_CONNECTS && hasNextUnattempted()) {
+      Connection candidate = next();
+      if (candidate.isConnected()) {
+        postponeAll(candidates);
+        return candidate;
+      }
+      if (sameEndpoint(candidate, candidates)) {
+        postponedRoutes.add(candidate.getRoute());
+      } else {
+        candidates.add(candidate);
+      }
+    }
+
+    Connection connection = candidates.size() == 1
+        ? connectSerially(first, connectTimeout, readTimeout, tunnelRequest)
+        : connectInParallel(candidates, connectTimeout, readTimeout, tunnelRequest);
+    pool.maybeShare(connection);
+    return connection;
+  }
+
+  private Connection connectSerially(Connection connection, int connectTimeout, int readTimeout,
+      TunnelRequest tunnelRequest) throws IOException {
+    try {
+      long startNs = System.nanoTime();
+      connection.connect(connectTimeout, readTimeout, tunnelRequest);
+      routeDatabase.connected(connection.getRoute(), System.nanoTime() - startNs);
+      return connection;
+    } catch (IOException e) {
+      connectFailed(connection, e);
+      Util.closeQuietly(connection.getSocket());
+      throw e;
+    }
+  }
+
+  private Connection connectInParallel(List<Connection> candidates, int connectTimeout,
+      int readTimeout, TunnelRequest tunnelRequest) throws IOException {
+    Race race = new Race(connectTimeout, readTimeout, tunnelRequest);
+    if (!race.start(candidates.get(0))) {
+      // Every connect thread is busy. Try the routes one at a time instead.
+      postponeAll(candidates.subList(1, candidates.size()));
+      return connectSerially(candidates.get(0), connectTimeout, readTimeout, tunnelRequest);
+    }
+    int started = 1;
+    int count = candidates.size();
+    IOException lastFailure = null;
+    try {
+      for (int finished = 0; finished < count; ) {
+        ConnectAttempt attempt = started < count
+            ? race.results.poll(CONNECT_STAGGER_MS, TimeUnit.MILLISECONDS)
+            : race.results.take();
+        if (attempt != null) {
+          finished++;
+          if (attempt.failure == null) {
+            routeDatabase.connected(attempt.connection.getRoute(), attempt.durationNs);
+            race.finish(attempt.connection);
+            postponeAll(candidates.subList(started, count));
+            return attempt.connection;
+          }
+          connectFailed(attempt.connection, attempt.failure);
+          Util.closeQuietly(attempt.connection.getSocket());
+          lastFailure = attempt.failure;
+        }
+        // The stagger elapsed or an attempt failed. Start the next candidate.
+        if (started < count) {
+          if (race.start(candidates.get(started))) {
+            started++;
+          } else {
+            // No connect thread is free. Leave the rest for later.
+            postponeAll(candidates.subList(started, count));
+            count = started;
+          }
+        }
+      }
+      throw lastFailure;
+    } catch (InterruptedException e) {
+      race.finish(null);
+      postponeAll(candidates.subList(started, count));
+      throw new InterruptedIOException("interrupted while connecting");
+    }
+  }
+
+  /** Returns true if {@code connection} goes to the same socket address as one of {@code others}. */
+  private static boolean sameEndpoint(Connection connection, List<Connection> others) {
+    Route route = connection.getRoute();
+    for (Connection other : others) {
+      if (other.getRoute().getSocketAddress().equals(route.getSocketAddress())
+          && other.getRoute().getProxy().equals(route.getProxy())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the routes of unattempted {@code connections} to the selector, to be tried last. */
+  private void postponeAll(List<Connection> connections) {
+    for (Connection connection : connections) {
+      postponedRoutes.add(connection.getRoute());
+    }
+  }
+
+  /** A set of concurrent connection attempts, of which at most one is kept. */
+  private static final class Race {
+    final BlockingQueue<ConnectAttempt> results = new LinkedBlockingQueue<ConnectAttempt>();
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final TunnelRequest tunnelRequest;
+    private final List<Connection> started = new ArrayList<Connection>();
+    /** True once a winner has been chosen. Guarded by this. */
+    private boolean finished;
+
+    Race(int connectTimeout, int readTimeout, TunnelRequest tunnelRequest) {
+      this.connectTimeout = connectTimeout;
+      this.readTimeout = readTimeout;
+      this.tunnelRequest = tunnelRequest;
+    }
+
+    /** Returns false if no connect thread is available to attempt {@code connection}. */
+    boolean start(final Connection connection) {
+      try {
+        connectExecutor.execute(new NamedRunnable("OkHttp Connect " + connection.getRoute()
+            .getSocketAddress()) {
+          @Override protected void execute() {
+            IOException failure = null;
+            long startNs = System.nanoTime();
+            try {
+              connection.connect(connectTimeout, readTimeout, tunnelRequest);
+            } catch (IOException e) {
+              failure = e;
+            }
+            long durationNs = System.nanoTime() - startNs;
+            synchronized (Race.this) {
+              if (finished) {
+                // A late finisher. Its socket may already have been closed.
+                Util.closeQuietly(connection.getSocket());
+                return;
+              }
+            }
+            results.add(new ConnectAttempt(connection, failure, durationNs));
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        return false;
+      }
+      synchronized (this) {
+        started.add(connection);
+      }
+      return true;
+    }
+
+    /** Ends the race, closing every attempt other than {@code winner}. */
+    void finish(Connection winner) {
+      List<Connection> losers;
+      synchronized (this) {
+        finished = true;
+        losers = new ArrayList<Connection>(started);
+      }
+      losers.remove(winner);
+      for (Connection loser : losers) {
+        Util.closeQuietly(loser.getSocket());
+      }
+    }
+  }
+
+  private static final class ConnectAttempt {
+    final Connection connection;
+    final IOException failure;
+    final long durationNs;
+
+    ConnectAttempt(Connection connection, IOException failure, long durationNs) {
+      this.connection = connection;
+      this.failure = failure;
+      this.durationNs = durationNs;
+    }
+  }
+
   /**
    * Clients should invoke this method when they encounter a connectivity
    * failure on a connection returned by this route selector.
@@ -149,14 +382,19 @@ public final class RouteSelector {
       proxySelector.connectFailed(uri, failedRoute.getProxy().address(), failure);
     }
 
-    failedRoutes.add(failedRoute);
+    routeDatabase.failed(failedRoute);
     if (!(failure instanceof SSLHandshakeException)) {
       // If the problem was not related to SSL then it will also fail with
       // a different Tls mode therefore we can be proactive about it.
-      failedRoutes.add(failedRoute.flipTlsMode());
+      routeDatabase.failed(failedRoute.flipTlsMode());
     }
   }
 
+  /** Returns true if there's another route that hasn't been postponed. */
+  private boolean hasNextUnattempted() {
+    return hasNextTlsMode() || hasNextInetSocketAddress() || hasNextProxy();
+  }
+
   /** Resets {@link #nextProxy} to the first option. */
   private void resetNextProxy(URI uri, Proxy proxy) {
     this.hasNextProxy = true; // This includes NO_PROXY!
@@ -221,6 +459,26 @@ public final class RouteSelector {
     // Try each address for best behavior in mixed IPv4/IPv6 environments.
     socketAddresses = dns.getAllByName(socketHost);
     nextSocketAddressIndex = 0;
+    sortByHealth(socketAddresses, proxy);
+  }
+
+  /**
+   * Orders {@code addresses} by the health of their routes, best first. The
+   * sort is stable so that addresses with equal scores keep the DNS order.
+   */
+  private void sortByHealth(InetAddress[] addresses, Proxy proxy) {
+    final Map<InetAddress, Double> scores = new HashMap<InetAddress, Double>();
+    boolean modernTls = address.getSslSocketFactory() != null;
+    for (InetAddress inetAddress : addresses) {
+      Route route = new Route(address, proxy, new InetSocketAddress(inetAddress, socketPort),
+          modernTls);
+      scores.put(inetAddress, routeDatabase.score(route));
+    }
+    Arrays.sort(addresses, new Comparator<InetAddress>() {
+      @Override public int compare(InetAddress a, InetAddress b) {
+        return Double.compare(scores.get(b), scores.get(a));
+      }
+    });
   }
 
   /** Returns true if there's another socket address to try. */
@@ -59,7 +59,8 @@ public final class SpdyTransport implements Transport {
   }
 
   @Override public void writeRequestBody(RetryableOutputStream requestBody) throws IOException {
-    throw new UnsupportedOperationException();
+    // Only retried and file-backed bodies are buffered; others are written as they are produced.
+    requestBody.writeToSocket(stream.getOutputStream());
   }
 
   @Override public void flushRequest() throws IOException {
@@ -74,6 +75,11 @@ public final class SpdyTransport implements Transport {
     return new ResponseHeaders(httpEngine.uri, rawHeaders);
   }
 
+  /** Arranges for {@code callback} to run once {@link #readResponseHeaders} won't block. */
+  void setResponseHeadersCallback(Runnable callback) {
+    stream.setResponseHeadersCallback(callback);
+  }
+
   @Override public InputStream getTransferStream(CacheRequest cacheRequest) throws IOException {
     return new UnknownLengthHttpInputStream(stream.getInputStream(), cacheRequest, httpEngine);
   }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal.spdy;
+
+import com.squareup.okhttp.internal.Platform;
+import com.squareup.okhttp.internal.Util;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings that servers asked to have persisted with {@link
+ * Settings#PERSIST_VALUE}, remembered per origin. A new client session to a
+ * remembered origin starts from these values, and sends them back to the
+ * server flagged {@link Settings#PERSISTED} before its first stream.
+ *
+ * <p>The store holds a bounded number of origins, evicting the least recently
+ * used first. If it has a file, the file is read when the store is first used
+ * and rewritten whenever a server changes what is remembered.
+ */
+public final class PersistedSettings {
+  private static PersistedSettings defaultStore = new PersistedSettings(null, 64);
+
+  private final File file;
+  private final LinkedHashMap<String, Settings> entries;
+  private boolean loaded;
+  private boolean dirty;
+  private int hitCount;
+  private int missCount;
+
+  /**
+   * @param file the file to keep settings in across processes, or null to
+   *     keep them in memory only.
+   * @param maxOrigins the maximum number of origins to remember.
+   */
+  public PersistedSettings(File file, final int maxOrigins) {
+    if (maxOrigins <= 0) throw new IllegalArgumentException("maxOrigins <= 0");
+    this.file = file;
+    this.loaded = file == null;
+    this.entries = new LinkedHashMap<String, Settings>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Settings> eldest) {
+        return size() > maxOrigins;
+      }
+    };
+  }
+
+  /** Returns the store used by connections that don't specify one. */
+  public static synchronized PersistedSettings getDefault() {
+    return defaultStore;
+  }
+
+  /** Sets the store used by connections that don't specify one. */
+  public static synchronized void setDefault(PersistedSettings store) {
+    if (store == null) throw new IllegalArgumentException("store == null");
+    defaultStore = store;
+  }
+
+  /**
+   * Returns a copy of the settings remembered for {@code origin}, each flagged
+   * {@link Settings#PERSISTED}, or null if there are none. This may read the
+   * store's file.
+   */
+  synchronized Settings get(String origin) {
+    load();
+    Settings remembered = entries.get(origin);
+    if (remembered == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    Settings result = new Settings();
+    result.merge(remembered);
+    return result;
+  }
+
+  /**
+   * Updates what is remembered for {@code origin} with a SETTINGS frame the
+   * server sent. Returns true if the store's file needs to be rewritten.
+   */
+  synchronized boolean receive(String origin, int flags, Settings settings) {
+    load();
+    Settings remembered = entries.get(origin);
+    boolean changed = false;
+    if (remembered != null && (flags & Settings.FLAG_CLEAR_PREVIOUSLY_PERSISTED_SETTINGS) != 0) {
+      entries.remove(origin);
+      remembered = null;
+      changed = true;
+    }
+    for (int i = 0; i < Settings.COUNT; i++) {
+      if (!settings.isSet(i) || !settings.persistValue(i)) continue;
+      if (remembered == null) {
+        remembered = new Settings();
+        entries.put(origin, remembered);
+      }
+      if (!remembered.isSet(i) || remembered.get(i) != settings.get(i)) {
+        remembered.set(i, Settings.PERSISTED, settings.get(i));
+        changed = true;
+      }
+    }
+    if (changed && file != null) {
+      dirty = true;
+    }
+    return dirty;
+  }
+
+  /** Forgets all remembered settings, deleting the store's file. */
+  public synchronized void clear() {
+    loaded = true;
+    dirty = false;
+    entries.clear();
+    if (file != null) {
+      file.delete();
+    }
+  }
+
+  /** Returns the number of origins with remembered settings. */
+  public synchronized int size() {
+    load();
+    return entries.size();
+  }
+
+  /** Returns the number of sessions that started from remembered settings. */
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of sessions to origins with nothing remembered. */
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  private void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(new FileInputStream(file), Util.US_ASCII));
+      try {
+        for (String line; (line = reader.readLine()) != null; ) {
+          String[] parts = line.split(" ");
+          Settings settings = new Settings();
+          for (int i = 1; i < parts.length; i++) {
+            int equals = parts[i].indexOf('=');
+            if (equals == -1) continue;
+            int id = Integer.parseInt(parts[i].substring(0, equals));
+            if (id < 0) continue;
+            settings.set(id, Settings.PERSISTED, Integer.parseInt(parts[i].substring(equals + 1)));
+          }
+          if (settings.size() > 0) {
+            entries.put(parts[0], settings);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      Platform.get().logW("Unable to read persisted SPDY settings: " + e);
+    } catch (NumberFormatException e) {
+      Platform.get().logW("Discarding damaged persisted SPDY settings: " + e);
+      entries.clear();
+    }
+  }
+
+  /** Rewrites the store's file if it is out of date. */
+  synchronized void save() throws IOException {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    StringBuilder contents = new StringBuilder();
+    for (Map.Entry<String, Settings> entry : entries.entrySet()) {
+      contents.append(entry.getKey());
+      Settings settings = entry.getValue();
+      for (int i = 0; i < Settings.COUNT; i++) {
+        if (!settings.isSet(i)) continue;
+        contents.append(' ').append(i).append('=').append(settings.get(i));
+      }
+      contents.append('\n');
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), Util.US_ASCII);
+    try {
+      writer.write(contents.toString());
+    } finally {
+      writer.close();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Unable to rename " + tmp + " to " + file);
+    }
+  }
+}
@@ -46,6 +46,11 @@ public final class Ping {
     latch.countDown();
   }
 
+  /** Returns the round trip time in nanoseconds. Only valid after {@link #receive}. */
+  long receivedRoundTripTime() {
+    return received - sent;
+  }
+
   /**
    * Returns the round trip time for this ping in nanoseconds, waiting for the
    * response to arrive if necessary. Returns -1 if the response was
@@ -17,6 +17,7 @@
 package com.squareup.okhttp.internal.spdy;
 
 import com.squareup.okhttp.internal.NamedRunnable;
+import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
 import java.io.Closeable;
 import java.io.IOException;
@@ -31,6 +32,8 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.concurrent.Executors.defaultThreadFactory;
 
@@ -48,12 +51,12 @@ public final class SpdyConnection implements Closeable {
   // Internal state of this connection is guarded by 'this'. No blocking
   // operations may be performed while holding this lock!
   //
-  // Socket writes are guarded by spdyWriter.
+  // Socket writes are queued and batched by spdyWriter.
   //
   // Socket reads are unguarded but are only made by the reader thread.
   //
   // Certain operations (like SYN_STREAM) need to synchronize on both the
-  // spdyWriter (to do blocking I/O) and this (to create streams). Such
+  // spdyWriter (to order frames) and this (to create streams). Such
   // operations must synchronize on 'this' last. This ensures that we never
   // wait for a blocking operation while holding 'this'.
 
@@ -77,6 +80,25 @@ public final class SpdyConnection implements Closeable {
   static final int GOAWAY_PROTOCOL_ERROR = 1;
   static final int GOAWAY_INTERNAL_ERROR = 2;
 
+  /**
+   * The most bytes by which this connection's stream receive windows may grow
+   * past their initial size, in total.
+   */
+  static final int MAX_RECEIVE_WINDOW_GROWTH = 1024 * 1024;
+
+  /** The largest receive window that new streams start with. */
+  static final int MAX_INITIAL_RECEIVE_WINDOW_SIZE = 256 * 1024;
+
+  /** How long a round trip time estimate is trusted before pinging again. */
+  private static final long ROUND_TRIP_TIME_MAX_AGE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  /**
+   * The maximum number of incoming stream callbacks each connection runs at
+   * once. Streams that arrive while that many are running are refused, so a
+   * peer with slow streams only holds back its own connection.
+   */
+  static final int MAX_CONCURRENT_CALLBACKS = 8;
+
   private static final ExecutorService executor =
       new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
           new SynchronousQueue<Runnable>(), defaultThreadFactory());
@@ -97,6 +119,8 @@ public final class SpdyConnection implements Closeable {
   private int lastGoodStreamId;
   private int nextStreamId;
   private boolean shutdown;
+  /** Incoming stream callbacks that haven't returned yet. Guarded by this. */
+  private int runningCallbacks;
   private long idleStartTimeNs = System.nanoTime();
 
   /** Lazily-created map of in-flight pings awaiting a response. Guarded by this. */
@@ -106,6 +130,28 @@ public final class SpdyConnection implements Closeable {
   /** Lazily-created settings for this connection. */
   Settings settings;
 
+  /** Where settings the peer asks to be persisted are kept, or null. */
+  private final PersistedSettings persistedSettings;
+  private final String origin;
+  /** Remembered settings not yet sent back to the peer. Guarded by spdyWriter. */
+  private Settings persistedSettingsToSend;
+
+  /**
+   * The receive window that new streams grow to as soon as they are opened,
+   * taken from the last stream whose window was tuned. The window advertised
+   * in SETTINGS is always the default, so that every byte of growth is
+   * charged to {@link #receiveWindowGrowth}.
+   */
+  private volatile int receiveWindowHint = Settings.DEFAULT_INITIAL_WINDOW_SIZE;
+
+  /** Bytes by which stream receive windows have grown past their initial size. */
+  private final AtomicInteger receiveWindowGrowth = new AtomicInteger();
+
+  /** Smoothed round trip time in nanoseconds, or -1 until a ping returns. */
+  private volatile long roundTripTimeNanos = -1;
+  private volatile long roundTripTimeSampledAtNanos;
+  private final AtomicBoolean roundTripTimePingInFlight = new AtomicBoolean();
+
   private SpdyConnection(Builder builder) {
     client = builder.client;
     handler = builder.handler;
@@ -116,6 +162,28 @@ public final class SpdyConnection implements Closeable {
 
     hostName = builder.hostName;
 
+    persistedSettings = builder.client ? builder.persistedSettings : null;
+    origin = builder.origin;
+    if (persistedSettings != null) {
+      // Start from the values the server asked us to remember, and remind it
+      // of them before anything else is sent.
+      persistedSettingsToSend = persistedSettings.get(origin);
+      if (persistedSettingsToSend != null) {
+        settings = new Settings();
+        settings.merge(persistedSettingsToSend);
+        executor.submit(new NamedRunnable(String.format("Spdy Writer %s settings", hostName)) {
+          @Override public void execute() {
+            try {
+              synchronized (spdyWriter) {
+                writePersistedSettings();
+              }
+            } catch (IOException ignored) {
+            }
+          }
+        });
+      }
+    }
+
     new Thread(new Reader(), "Spdy Reader " + hostName).start();
   }
 
@@ -169,8 +237,10 @@ public final class SpdyConnection implements Closeable {
     int slot = 0; // TODO: permit the caller to specify a slot?
     SpdyStream stream;
     int streamId;
+    int windowGrowth = 0;
 
     synchronized (spdyWriter) {
+      writePersistedSettings();
       synchronized (this) {
         if (shutdown) {
           throw new IOException("shutdown");
@@ -178,6 +248,10 @@ public final class SpdyConnection implements Closeable {
         streamId = nextStreamId;
         nextStreamId += 2;
         stream = new SpdyStream(streamId, this, flags, priority, slot, requestHeaders, settings);
+        if (in) {
+          // Skip the growth that recent streams went through.
+          windowGrowth = stream.growReceiveWindow(receiveWindowHint);
+        }
         if (stream.isOpen()) {
           streams.put(streamId, stream);
           setIdle(false);
@@ -185,20 +259,43 @@ public final class SpdyConnection implements Closeable {
       }
 
       spdyWriter.synStream(flags, streamId, associatedStreamId, priority, slot, requestHeaders);
+      if (windowGrowth > 0) {
+        spdyWriter.windowUpdate(streamId, windowGrowth);
+      }
     }
 
     return stream;
   }
 
+  /** Sends the remembered settings to the peer if they haven't been sent yet. */
+  private void writePersistedSettings() throws IOException {
+    assert (Thread.holdsLock(spdyWriter));
+    Settings toSend = persistedSettingsToSend;
+    if (toSend != null) {
+      persistedSettingsToSend = null;
+      spdyWriter.settings(0, toSend);
+    }
+  }
+
+  private void savePersistedSettingsLater() {
+    executor.submit(new NamedRunnable(String.format("Spdy Settings Saver %s", hostName)) {
+      @Override public void execute() {
+        try {
+          persistedSettings.save();
+        } catch (IOException e) {
+          Platform.get().logW("Unable to save persisted SPDY settings: " + e);
+        }
+      }
+    });
+  }
+
   void writeSynReply(int streamId, int flags, List<String> alternating) throws IOException {
     spdyWriter.synReply(flags, streamId, alternating);
   }
 
-  /** Writes a complete data frame. */
-  void writeFrame(byte[] bytes, int offset, int length) throws IOException {
-    synchronized (spdyWriter) {
-      spdyWriter.out.write(bytes, offset, length);
-    }
+  /** Writes a complete data frame for a stream with {@code priority}. */
+  void writeFrame(int priority, byte[] bytes, int offset, int length) throws IOException {
+    spdyWriter.dataFrame(priority, bytes, offset, length);
   }
 
   void writeSynResetLater(final int streamId, final int statusCode) {
@@ -233,6 +330,64 @@ public final class SpdyConnection implements Closeable {
     spdyWriter.windowUpdate(streamId, deltaWindowSize);
   }
 
+  /**
+   * Returns the smoothed round trip time in nanoseconds, or -1 if it isn't
+   * known yet. Sends a ping to measure it if the estimate is missing or old.
+   * Doesn't block and doesn't take this connection's lock.
+   */
+  long roundTripTime() {
+    long now = System.nanoTime();
+    if ((roundTripTimeNanos == -1
+        || now - roundTripTimeSampledAtNanos > ROUND_TRIP_TIME_MAX_AGE_NANOS)
+        && roundTripTimePingInFlight.compareAndSet(false, true)) {
+      executor.submit(new NamedRunnable(String.format("Spdy Writer %s ping", hostName)) {
+        @Override public void execute() {
+          try {
+            ping();
+          } catch (IOException ignored) {
+            // The connection is unusable; don't try again.
+          }
+        }
+      });
+    }
+    return roundTripTimeNanos;
+  }
+
+  private void sampleRoundTripTime(long sample) {
+    long estimate = roundTripTimeNanos;
+    // Like TCP, weight each new sample by 1/8.
+    roundTripTimeNanos = estimate == -1 ? sample : estimate + (sample - estimate) / 8;
+    roundTripTimeSampledAtNanos = System.nanoTime();
+    roundTripTimePingInFlight.set(false);
+  }
+
+  /**
+   * Returns how many of {@code byteCount} bytes a stream may grow its receive
+   * window by without exceeding this connection's limit, and reserves them.
+   */
+  int reserveReceiveWindow(int byteCount) {
+    while (true) {
+      int growth = receiveWindowGrowth.get();
+      int granted = Math.max(0, Math.min(byteCount, MAX_RECEIVE_WINDOW_GROWTH - growth));
+      if (granted == 0 || receiveWindowGrowth.compareAndSet(growth, growth + granted)) {
+        return granted;
+      }
+    }
+  }
+
+  void releaseReceiveWindow(int byteCount) {
+    receiveWindowGrowth.addAndGet(-byteCount);
+  }
+
+  /**
+   * Records the window a tuned stream finished with, so that new streams can
+   * start there, up to {@link #MAX_INITIAL_RECEIVE_WINDOW_SIZE}.
+   */
+  void setReceiveWindowHint(int windowSize) {
+    receiveWindowHint = Math.max(Settings.DEFAULT_INITIAL_WINDOW_SIZE,
+        Math.min(windowSize, MAX_INITIAL_RECEIVE_WINDOW_SIZE));
+  }
+
   /**
    * Sends a ping frame to the peer. Use the returned object to await the
    * ping's response and observe its round trip time.
@@ -282,9 +437,7 @@ public final class SpdyConnection implements Closeable {
   }
 
   public void flush() throws IOException {
-    synchronized (spdyWriter) {
-      spdyWriter.out.flush();
-    }
+    spdyWriter.flush();
   }
 
   /**
@@ -377,6 +530,8 @@ public final class SpdyConnection implements Closeable {
     private InputStream in;
     private OutputStream out;
     private IncomingStreamHandler handler = IncomingStreamHandler.REFUSE_INCOMING_STREAMS;
+    private PersistedSettings persistedSettings;
+    private String origin;
     public boolean client;
 
     public Builder(boolean client, Socket socket) throws IOException {
@@ -411,6 +566,17 @@ public final class SpdyConnection implements Closeable {
       return this;
     }
 
+    /**
+     * Remembers the settings that the server asks to have persisted in {@code
+     * store} under {@code origin}, and starts from those remembered earlier.
+     * Ignored unless this peer is the client.
+     */
+    public Builder persistedSettings(PersistedSettings store, String origin) {
+      this.persistedSettings = store;
+      this.origin = origin;
+      return this;
+    }
+
     public SpdyConnection build() {
       return new SpdyConnection(this);
     }
@@ -471,6 +637,17 @@ public final class SpdyConnection implements Closeable {
         return;
       }
 
+      boolean refused;
+      synchronized (SpdyConnection.this) {
+        refused = runningCallbacks == MAX_CONCURRENT_CALLBACKS;
+        if (!refused) runningCallbacks++;
+      }
+      if (refused) {
+        synStream.closeLater(SpdyStream.RST_REFUSED_STREAM);
+        removeStream(streamId);
+        return;
+      }
+
       executor.submit(
           new NamedRunnable(String.format("Callback %s stream %d", hostName, streamId)) {
         @Override public void execute() {
@@ -478,6 +655,10 @@ public final class SpdyConnection implements Closeable {
             handler.receive(synStream);
           } catch (IOException e) {
             throw new RuntimeException(e);
+          } finally {
+            synchronized (SpdyConnection.this) {
+              runningCallbacks--;
+            }
           }
         }
       });
@@ -512,6 +693,9 @@ public final class SpdyConnection implements Closeable {
     }
 
     @Override public void settings(int flags, Settings newSettings) {
+      if (persistedSettings != null && persistedSettings.receive(origin, flags, newSettings)) {
+        savePersistedSettingsLater();
+      }
       SpdyStream[] streamsToNotify = null;
       synchronized (SpdyConnection.this) {
         if (settings == null || (flags & Settings.FLAG_CLEAR_PREVIOUSLY_PERSISTED_SETTINGS) != 0) {
@@ -529,7 +713,7 @@ public final class SpdyConnection implements Closeable {
           // reads to 'settings'. We synchronize on 'stream' to guard the state change.
           // And we need to acquire the 'stream' lock first, since that may block.
           synchronized (stream) {
-            synchronized (this) {
+            synchronized (SpdyConnection.this) {
               stream.receiveSettings(settings);
             }
           }
@@ -548,6 +732,7 @@ public final class SpdyConnection implements Closeable {
         Ping ping = removePing(streamId);
         if (ping != null) {
           ping.receive();
+          sampleRoundTripTime(ping.receivedRoundTripTime());
         }
       }
     }
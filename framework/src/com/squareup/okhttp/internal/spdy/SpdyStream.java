@@ -16,6 +16,7 @@
 
 package com.squareup.okhttp.internal.spdy;
 
+import com.squareup.okhttp.internal.BufferPool;
 import com.squareup.okhttp.internal.Util;
 import java.io.IOException;
 import java.io.InputStream;
@@ -68,10 +69,14 @@ public final class SpdyStream {
    * The number of unacknowledged bytes at which the input stream will send
    * the peer a {@code WINDOW_UPDATE} frame. Must be less than this client's
    * window size, otherwise the remote peer will stop sending data on this
-   * stream. (Chrome 25 uses 5 MiB.)
+   * stream. (Chrome 25 uses 5 MiB.) This is the threshold for the default
+   * window; streams whose windows have been tuned use half their window.
    */
   public static final int WINDOW_UPDATE_THRESHOLD = Settings.DEFAULT_INITIAL_WINDOW_SIZE / 2;
 
+  /** The largest receive window that a stream's window is tuned up to. */
+  static final int MAX_RECEIVE_WINDOW_SIZE = 512 * 1024;
+
   private final int id;
   private final SpdyConnection connection;
   private final int priority;
@@ -85,6 +90,12 @@ public final class SpdyStream {
   /** Headers sent in the stream reply. Null if reply is either not sent or not sent yet. */
   private List<String> responseHeaders;
 
+  /**
+   * False if the peer opened this stream with {@code FLAG_UNIDIRECTIONAL},
+   * like a server push. Such streams are never replied to.
+   */
+  private final boolean expectsReply;
+
   private final SpdyDataInputStream in = new SpdyDataInputStream();
   private final SpdyDataOutputStream out = new SpdyDataOutputStream();
 
@@ -95,6 +106,9 @@ public final class SpdyStream {
    */
   private int rstStatusCode = -1;
 
+  /** Runs once the response headers arrive or the stream is reset. Guarded by this. */
+  private Runnable responseHeadersCallback;
+
   SpdyStream(int id, SpdyConnection connection, int flags, int priority, int slot,
       List<String> requestHeaders, Settings settings) {
     if (connection == null) throw new NullPointerException("connection == null");
@@ -104,6 +118,8 @@ public final class SpdyStream {
     this.priority = priority;
     this.slot = slot;
     this.requestHeaders = requestHeaders;
+    in.initialWindowSize = Settings.DEFAULT_INITIAL_WINDOW_SIZE;
+    in.windowSize = Settings.DEFAULT_INITIAL_WINDOW_SIZE;
 
     if (isLocallyInitiated()) {
       // I am the sender
@@ -114,6 +130,7 @@ public final class SpdyStream {
       in.finished = (flags & SpdyConnection.FLAG_FIN) != 0;
       out.finished = (flags & SpdyConnection.FLAG_UNIDIRECTIONAL) != 0;
     }
+    expectsReply = isLocallyInitiated() || !out.finished;
 
     setSettings(settings);
   }
@@ -132,7 +149,8 @@ public final class SpdyStream {
     if (rstStatusCode != -1) {
       return false;
     }
-    if ((in.finished || in.closed) && (out.finished || out.closed) && responseHeaders != null) {
+    if ((in.finished || in.closed) && (out.finished || out.closed)
+        && (responseHeaders != null || !expectsReply)) {
       return false;
     }
     return true;
@@ -172,6 +190,31 @@ public final class SpdyStream {
     }
   }
 
+  /**
+   * Arranges for {@code callback} to run once the response headers have been
+   * received or the stream has been reset, so that {@link #getResponseHeaders}
+   * won't block. The callback runs on the thread that delivers the event,
+   * typically the connection's reader thread, and should return quickly. If
+   * the event already happened the callback runs immediately.
+   */
+  public void setResponseHeadersCallback(Runnable callback) {
+    synchronized (this) {
+      if (responseHeaders == null && rstStatusCode == -1) {
+        responseHeadersCallback = callback;
+        return;
+      }
+    }
+    callback.run();
+  }
+
+  /** Returns and clears the pending response headers callback. */
+  private Runnable takeResponseHeadersCallback() {
+    assert (Thread.holdsLock(this));
+    Runnable callback = responseHeadersCallback;
+    responseHeadersCallback = null;
+    return callback;
+  }
+
   /**
    * Returns the reason why this stream was closed, or -1 if it closed
    * normally or has not yet been closed. Valid reasons are {@link
@@ -269,6 +312,7 @@ public final class SpdyStream {
   /** Returns true if this stream was closed. */
   private boolean closeInternal(int rstStatusCode) {
     assert (!Thread.holdsLock(this));
+    Runnable callback;
     synchronized (this) {
       if (this.rstStatusCode != -1) {
         return false;
@@ -277,8 +321,11 @@ public final class SpdyStream {
         return false;
       }
       this.rstStatusCode = rstStatusCode;
+      in.releaseBuffer();
+      callback = takeResponseHeadersCallback();
       notifyAll();
     }
+    if (callback != null) callback.run();
     connection.removeStream(id);
     return true;
   }
@@ -287,15 +334,18 @@ public final class SpdyStream {
     assert (!Thread.holdsLock(SpdyStream.this));
     boolean streamInUseError = false;
     boolean open = true;
+    Runnable callback = null;
     synchronized (this) {
       if (isLocallyInitiated() && responseHeaders == null) {
         responseHeaders = strings;
         open = isOpen();
+        callback = takeResponseHeadersCallback();
         notifyAll();
       } else {
         streamInUseError = true;
       }
     }
+    if (callback != null) callback.run();
     if (streamInUseError) {
       closeLater(SpdyStream.RST_STREAM_IN_USE);
     } else if (!open) {
@@ -306,16 +356,23 @@ public final class SpdyStream {
   void receiveHeaders(List<String> headers) throws IOException {
     assert (!Thread.holdsLock(SpdyStream.this));
     boolean protocolError = false;
+    Runnable callback = null;
     synchronized (this) {
       if (responseHeaders != null) {
         List<String> newHeaders = new ArrayList<String>();
         newHeaders.addAll(responseHeaders);
         newHeaders.addAll(headers);
         this.responseHeaders = newHeaders;
+      } else if (!expectsReply) {
+        // A pushed stream gets no reply; its response headers may follow its SYN_STREAM.
+        responseHeaders = headers;
+        callback = takeResponseHeadersCallback();
+        notifyAll();
       } else {
         protocolError = true;
       }
     }
+    if (callback != null) callback.run();
     if (protocolError) {
       closeLater(SpdyStream.RST_PROTOCOL_ERROR);
     }
@@ -339,11 +396,17 @@ public final class SpdyStream {
     }
   }
 
-  synchronized void receiveRstStream(int statusCode) {
-    if (rstStatusCode == -1) {
-      rstStatusCode = statusCode;
-      notifyAll();
+  void receiveRstStream(int statusCode) {
+    Runnable callback = null;
+    synchronized (this) {
+      if (rstStatusCode == -1) {
+        rstStatusCode = statusCode;
+        in.releaseBuffer();
+        callback = takeResponseHeadersCallback();
+        notifyAll();
+      }
     }
+    if (callback != null) callback.run();
   }
 
   private void setSettings(Settings settings) {
@@ -359,6 +422,20 @@ public final class SpdyStream {
     notifyAll();
   }
 
+  /**
+   * Grows this stream's receive window towards {@code windowSize}, as far as
+   * the connection's limit on window growth allows. Returns the growth, which
+   * the caller must send to the peer in a {@code WINDOW_UPDATE} frame.
+   */
+  synchronized int growReceiveWindow(int windowSize) {
+    if (windowSize <= in.windowSize) {
+      return 0;
+    }
+    int delta = connection.reserveReceiveWindow(windowSize - in.windowSize);
+    in.windowSize += delta;
+    return delta;
+  }
+
   synchronized void receiveWindowUpdate(int deltaWindowSize) {
     out.unacknowledgedBytes -= deltaWindowSize;
     notifyAll();
@@ -395,7 +472,12 @@ public final class SpdyStream {
     //         ^       ^
     //       limit    pos
 
-    private final byte[] buffer = new byte[Settings.DEFAULT_INITIAL_WINDOW_SIZE];
+    // The buffer is taken from the BufferPool when the first data frame
+    // arrives, and returned once it can't hold anything more to read.
+    private byte[] buffer;
+
+    /** True while the reader thread is filling the buffer outside the lock. */
+    private boolean receiving;
 
     /** the next byte to be read, or -1 if the buffer is empty. Never buffer.length */
     private int pos = -1;
@@ -415,20 +497,38 @@ public final class SpdyStream {
     /**
      * The total number of bytes consumed by the application (with {@link
      * #read}), but not yet acknowledged by sending a {@code WINDOW_UPDATE}
-     * frame.
+     * frame. Negative after the window shrinks, until reads make up the
+     * difference.
      */
     private int unacknowledgedBytes = 0;
 
+    /**
+     * The receive window. The peer may send {@code windowSize - buffered() -
+     * unacknowledgedBytes} more bytes.
+     */
+    private int windowSize;
+
+    /** The window this stream started with; growth beyond it is charged to the connection. */
+    private int initialWindowSize;
+
+    /** When the current measurement of the consumption rate began, or 0. */
+    private long rateStartNanos;
+    private long rateByteCount;
+
     @Override public int available() throws IOException {
       synchronized (SpdyStream.this) {
         checkNotClosed();
-        if (pos == -1) {
-          return 0;
-        } else if (limit > pos) {
-          return limit - pos;
-        } else {
-          return limit + (buffer.length - pos);
-        }
+        return buffered();
+      }
+    }
+
+    private int buffered() {
+      if (pos == -1) {
+        return 0;
+      } else if (limit > pos) {
+        return limit - pos;
+      } else {
+        return limit + (buffer.length - pos);
       }
     }
 
@@ -469,7 +569,8 @@ public final class SpdyStream {
 
         // Flow control: notify the peer that we're ready for more data!
         unacknowledgedBytes += copied;
-        if (unacknowledgedBytes >= WINDOW_UPDATE_THRESHOLD) {
+        tuneWindowSize(copied);
+        if (unacknowledgedBytes >= windowSize / 2) {
           connection.writeWindowUpdateLater(id, unacknowledgedBytes);
           unacknowledgedBytes = 0;
         }
@@ -477,12 +578,56 @@ public final class SpdyStream {
         if (pos == limit) {
           pos = -1;
           limit = 0;
+          if (finished) {
+            releaseBuffer();
+          } else if (!receiving && buffer.length >= 2 * (windowSize - unacknowledgedBytes)) {
+            // The window shrank; take a smaller buffer when more data arrives.
+            BufferPool.recycle(buffer);
+            buffer = null;
+          }
         }
 
         return copied;
       }
     }
 
+    /**
+     * Grows or shrinks the receive window to match the rate at which the
+     * application consumes data. Once per round trip, if the application read
+     * at least half a window the window is doubled, and if it read less than
+     * an eighth the window is halved. Throughput is at most one window per
+     * round trip, so a stream that keeps up with the network grows its window
+     * until the network is the bottleneck.
+     */
+    private void tuneWindowSize(int byteCount) {
+      long now = System.nanoTime();
+      if (rateStartNanos == 0) {
+        rateStartNanos = now;
+        rateByteCount = 0;
+      }
+      rateByteCount += byteCount;
+      long elapsed = now - rateStartNanos;
+      long roundTripTime = connection.roundTripTime();
+      if (roundTripTime <= 0 || elapsed < roundTripTime) {
+        return;
+      }
+
+      double bytesPerRoundTrip = (double) rateByteCount * roundTripTime / elapsed;
+      if (bytesPerRoundTrip * 2 >= windowSize && windowSize < MAX_RECEIVE_WINDOW_SIZE) {
+        int delta = connection.reserveReceiveWindow(
+            Math.min(windowSize, MAX_RECEIVE_WINDOW_SIZE - windowSize));
+        windowSize += delta;
+        unacknowledgedBytes += delta; // Tell the peer with the next WINDOW_UPDATE.
+      } else if (bytesPerRoundTrip * 8 < windowSize && windowSize > initialWindowSize) {
+        int delta = Math.min(windowSize / 2, windowSize - initialWindowSize);
+        windowSize -= delta;
+        unacknowledgedBytes -= delta; // Withhold WINDOW_UPDATE until the peer's window shrinks.
+        connection.releaseReceiveWindow(delta);
+      }
+      rateStartNanos = now;
+      rateByteCount = 0;
+    }
+
     /**
      * Returns once the input stream is either readable or finished. Throws
      * a {@link SocketTimeoutException} if the read timeout elapses before
@@ -523,12 +668,18 @@ public final class SpdyStream {
       int firstNewByte;
       boolean finished;
       boolean flowControlError;
+      byte[] buffer;
       synchronized (SpdyStream.this) {
-        finished = this.finished;
+        finished = this.finished || this.closed || rstStatusCode != -1;
+        flowControlError = byteCount > windowSize - buffered() - unacknowledgedBytes;
+        if (!finished && !flowControlError) {
+          ensureCapacity(buffered() + byteCount);
+          receiving = true;
+        }
         pos = this.pos;
         firstNewByte = this.limit;
         limit = this.limit;
-        flowControlError = byteCount > buffer.length - available();
+        buffer = this.buffer;
       }
 
       // If the peer sends more data than we can handle, discard it and close the connection.
@@ -538,7 +689,7 @@ public final class SpdyStream {
         return;
       }
 
-      // Discard data received after the stream is finished. It's probably a benign race.
+      // Discard data that arrives after the stream is finished, closed or reset.
       if (finished) {
         Util.skipByReading(in, byteCount);
         return;
@@ -547,33 +698,100 @@ public final class SpdyStream {
       // Fill the buffer without holding any locks. First fill [limit..buffer.length) if that
       // won't overwrite unread data. Then fill [limit..pos). We can't hold a lock, otherwise
       // writes will be blocked until reads complete.
-      if (pos < limit) {
-        int firstCopyCount = Math.min(byteCount, buffer.length - limit);
-        Util.readFully(in, buffer, limit, firstCopyCount);
-        limit += firstCopyCount;
-        byteCount -= firstCopyCount;
-        if (limit == buffer.length) {
-          limit = 0;
+      try {
+        if (pos < limit) {
+          int firstCopyCount = Math.min(byteCount, buffer.length - limit);
+          Util.readFully(in, buffer, limit, firstCopyCount);
+          limit += firstCopyCount;
+          byteCount -= firstCopyCount;
+          if (limit == buffer.length) {
+            limit = 0;
+          }
+        }
+        if (byteCount > 0) {
+          Util.readFully(in, buffer, limit, byteCount);
+          limit += byteCount;
+        }
+
+        synchronized (SpdyStream.this) {
+          // Update the new limit, and mark the position as readable if necessary.
+          this.limit = limit;
+          if (this.pos == -1) {
+            this.pos = firstNewByte;
+            SpdyStream.this.notifyAll();
+          }
+        }
+      } finally {
+        synchronized (SpdyStream.this) {
+          receiving = false;
+          if (closed || rstStatusCode != -1) {
+            releaseBuffer();
+          }
         }
       }
-      if (byteCount > 0) {
-        Util.readFully(in, buffer, limit, byteCount);
-        limit += byteCount;
-      }
+    }
 
-      synchronized (SpdyStream.this) {
-        // Update the new limit, and mark the position as readable if necessary.
-        this.limit = limit;
-        if (this.pos == -1) {
-          this.pos = firstNewByte;
-          SpdyStream.this.notifyAll();
+    /**
+     * Takes or grows the buffer so it holds at least {@code capacity} bytes.
+     * Grown buffers at least double, up to the window, so that a stream that
+     * buffers a full window copies its data a logarithmic number of times.
+     */
+    private void ensureCapacity(int capacity) {
+      assert (Thread.holdsLock(SpdyStream.this));
+      if (buffer == null) {
+        buffer = BufferPool.take(capacity);
+        return;
+      }
+      if (buffer.length >= capacity) {
+        return;
+      }
+      byte[] grown = BufferPool.take(Math.max(capacity, Math.min(buffer.length * 2, windowSize)));
+      int size = buffered();
+      if (pos != -1) {
+        if (limit > pos) {
+          System.arraycopy(buffer, pos, grown, 0, size);
+        } else {
+          int firstCopyCount = buffer.length - pos;
+          System.arraycopy(buffer, pos, grown, 0, firstCopyCount);
+          System.arraycopy(buffer, 0, grown, firstCopyCount, limit);
         }
+        pos = 0;
+        limit = size;
+      }
+      BufferPool.recycle(buffer);
+      buffer = grown;
+    }
+
+    /**
+     * Returns the buffer to the pool, and the window's growth to the
+     * connection, once nothing more will be read. If the reader thread is
+     * filling the buffer, that thread releases it instead.
+     */
+    private void releaseBuffer() {
+      assert (Thread.holdsLock(SpdyStream.this));
+      if (receiving) {
+        return;
+      }
+      if (buffer != null) {
+        BufferPool.recycle(buffer);
+        buffer = null;
+        pos = -1;
+        limit = 0;
+      }
+      if (rateStartNanos != 0) {
+        // New streams can skip the growth, or shrinking, that this one went through.
+        connection.setReceiveWindowHint(windowSize);
+      }
+      if (windowSize > initialWindowSize) {
+        connection.releaseReceiveWindow(windowSize - initialWindowSize);
+        windowSize = initialWindowSize;
       }
     }
 
     @Override public void close() throws IOException {
       synchronized (SpdyStream.this) {
         closed = true;
+        releaseBuffer();
         SpdyStream.this.notifyAll();
       }
       cancelStreamIfNecessary();
@@ -613,7 +831,8 @@ public final class SpdyStream {
    * is not thread safe.
    */
   private final class SpdyDataOutputStream extends OutputStream {
-    private final byte[] buffer = new byte[8192];
+    /** Taken from the BufferPool on the first write and returned on close. */
+    private byte[] buffer;
     private int pos = DATA_FRAME_HEADER_LENGTH;
 
     /** True if the caller has closed this stream. */
@@ -641,6 +860,9 @@ public final class SpdyStream {
       checkOffsetAndCount(bytes.length, offset, count);
       checkNotClosed();
 
+      if (buffer == null) {
+        buffer = BufferPool.take(8192);
+      }
       while (count > 0) {
         if (pos == buffer.length) {
           writeFrame(false);
@@ -670,8 +892,13 @@ public final class SpdyStream {
         }
         closed = true;
       }
-      writeFrame(true);
-      connection.flush();
+      try {
+        writeFrame(true);
+        connection.flush();
+      } finally {
+        BufferPool.recycle(buffer);
+        buffer = null;
+      }
       cancelStreamIfNecessary();
     }
 
@@ -683,13 +910,16 @@ public final class SpdyStream {
         waitUntilWritable(length, last);
         unacknowledgedBytes += length;
       }
+      if (buffer == null) {
+        buffer = BufferPool.take(DATA_FRAME_HEADER_LENGTH);
+      }
       int flags = 0;
       if (last) {
         flags |= SpdyConnection.FLAG_FIN;
       }
       pokeInt(buffer, 0, id & 0x7fffffff, BIG_ENDIAN);
       pokeInt(buffer, 4, (flags & 0xff) << 24 | length & 0xffffff, BIG_ENDIAN);
-      connection.writeFrame(buffer, 0, pos);
+      connection.writeFrame(priority, buffer, 0, pos);
       pos = DATA_FRAME_HEADER_LENGTH;
     }
 
@@ -16,94 +16,161 @@
 
 package com.squareup.okhttp.internal.spdy;
 
+import com.squareup.okhttp.internal.BufferPool;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.ZlibPool;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.zip.Deflater;
 
-/** Write spdy/3 frames. */
+/**
+ * Write spdy/3 frames. Frames are encoded and queued; the caller that finds
+ * the socket idle writes all queued frames in one batch, with one write and
+ * one flush. Control frames go out ahead of data frames, and data frames are
+ * interleaved by stream priority using weighted round robin.
+ *
+ * <p>Writes are still synchronous: each method returns once its frame has been
+ * written, and throws if writing it failed.
+ */
 final class SpdyWriter implements Closeable {
-  final DataOutputStream out;
+  /** The number of bytes after which no more frames are added to a batch. */
+  static final int MAX_BATCH_SIZE = 16 * 1024;
+  static final int PRIORITY_COUNT = 8;
+
+  private final OutputStream out;
   private final ByteArrayOutputStream nameValueBlockBuffer;
   private final DataOutputStream nameValueBlockOut;
+  private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(64);
+  private final DataOutputStream frameOut = new DataOutputStream(frameBuffer);
+  private Deflater deflater;
+
+  // Frame queues and writer state are guarded by this. Frames are encoded and
+  // queued while holding the lock, so that header blocks are sent in the
+  // order they were compressed; the socket is written without it.
+  private final Deque<Frame> controlFrames = new ArrayDeque<Frame>();
+  private final List<Deque<Frame>> dataFrames = new ArrayList<Deque<Frame>>(PRIORITY_COUNT);
+  private final int[] currentWeights = new int[PRIORITY_COUNT];
+  /** Frames being written. Only used by the writing thread. */
+  private final List<Frame> batch = new ArrayList<Frame>();
+  private boolean writing;
+  private int waiters;
+  private boolean closed;
 
   SpdyWriter(OutputStream out) {
-    this.out = new DataOutputStream(out);
+    this.out = out;
+    for (int i = 0; i < PRIORITY_COUNT; i++) {
+      dataFrames.add(new ArrayDeque<Frame>());
+    }
 
-    Deflater deflater = new Deflater();
+    deflater = ZlibPool.takeDeflater();
     deflater.setDictionary(SpdyReader.DICTIONARY);
     nameValueBlockBuffer = new ByteArrayOutputStream();
     nameValueBlockOut = new DataOutputStream(
         Platform.get().newDeflaterOutputStream(nameValueBlockBuffer, deflater, true));
   }
 
-  public synchronized void synStream(int flags, int streamId, int associatedStreamId, int priority,
+  public void synStream(int flags, int streamId, int associatedStreamId, int priority,
       int slot, List<String> nameValueBlock) throws IOException {
-    writeNameValueBlockToBuffer(nameValueBlock);
-    int length = 10 + nameValueBlockBuffer.size();
-    int type = SpdyConnection.TYPE_SYN_STREAM;
-
-    int unused = 0;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(streamId & 0x7fffffff);
-    out.writeInt(associatedStreamId & 0x7fffffff);
-    out.writeShort((priority & 0x7) << 13 | (unused & 0x1f) << 8 | (slot & 0xff));
-    nameValueBlockBuffer.writeTo(out);
-    out.flush();
+    Frame frame;
+    synchronized (this) {
+      writeNameValueBlockToBuffer(nameValueBlock);
+      int length = 10 + nameValueBlockBuffer.size();
+      int type = SpdyConnection.TYPE_SYN_STREAM;
+
+      int unused = 0;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(streamId & 0x7fffffff);
+      frameOut.writeInt(associatedStreamId & 0x7fffffff);
+      frameOut.writeShort((priority & 0x7) << 13 | (unused & 0x1f) << 8 | (slot & 0xff));
+      nameValueBlockBuffer.writeTo(frameOut);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void synReply(int flags, int streamId, List<String> nameValueBlock)
+  public void synReply(int flags, int streamId, List<String> nameValueBlock)
       throws IOException {
-    writeNameValueBlockToBuffer(nameValueBlock);
-    int type = SpdyConnection.TYPE_SYN_REPLY;
-    int length = nameValueBlockBuffer.size() + 4;
-
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(streamId & 0x7fffffff);
-    nameValueBlockBuffer.writeTo(out);
-    out.flush();
+    Frame frame;
+    synchronized (this) {
+      writeNameValueBlockToBuffer(nameValueBlock);
+      int type = SpdyConnection.TYPE_SYN_REPLY;
+      int length = nameValueBlockBuffer.size() + 4;
+
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(streamId & 0x7fffffff);
+      nameValueBlockBuffer.writeTo(frameOut);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void headers(int flags, int streamId, List<String> nameValueBlock)
+  public void headers(int flags, int streamId, List<String> nameValueBlock)
       throws IOException {
-    writeNameValueBlockToBuffer(nameValueBlock);
-    int type = SpdyConnection.TYPE_HEADERS;
-    int length = nameValueBlockBuffer.size() + 4;
-
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(streamId & 0x7fffffff);
-    nameValueBlockBuffer.writeTo(out);
-    out.flush();
+    Frame frame;
+    synchronized (this) {
+      writeNameValueBlockToBuffer(nameValueBlock);
+      int type = SpdyConnection.TYPE_HEADERS;
+      int length = nameValueBlockBuffer.size() + 4;
+
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(streamId & 0x7fffffff);
+      nameValueBlockBuffer.writeTo(frameOut);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void rstStream(int streamId, int statusCode) throws IOException {
-    int flags = 0;
-    int type = SpdyConnection.TYPE_RST_STREAM;
-    int length = 8;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(streamId & 0x7fffffff);
-    out.writeInt(statusCode);
-    out.flush();
+  public void rstStream(int streamId, int statusCode) throws IOException {
+    Frame frame;
+    synchronized (this) {
+      int flags = 0;
+      int type = SpdyConnection.TYPE_RST_STREAM;
+      int length = 8;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(streamId & 0x7fffffff);
+      frameOut.writeInt(statusCode);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void data(int flags, int streamId, byte[] data) throws IOException {
+  public void data(int flags, int streamId, int priority, byte[] data) throws IOException {
     int length = data.length;
-    out.writeInt(streamId & 0x7fffffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.write(data);
-    out.flush();
+    byte[] frame = new byte[8 + length];
+    Util.pokeInt(frame, 0, streamId & 0x7fffffff, ByteOrder.BIG_ENDIAN);
+    Util.pokeInt(frame, 4, (flags & 0xff) << 24 | length & 0xffffff, ByteOrder.BIG_ENDIAN);
+    System.arraycopy(data, 0, frame, 8, length);
+    dataFrame(priority, frame, 0, frame.length);
+  }
+
+  /**
+   * Writes a complete data frame, including its header, for a stream with
+   * {@code priority}. The caller must not modify {@code frame} until this
+   * returns.
+   */
+  public void dataFrame(int priority, byte[] frame, int offset, int length) throws IOException {
+    Frame queued = new Frame(frame, offset, length);
+    synchronized (this) {
+      enqueue(dataFrames.get(priority & 0x7), queued);
+    }
+    write(queued);
   }
 
   private void writeNameValueBlockToBuffer(List<String> nameValueBlock) throws IOException {
+    if (deflater == null) throw new IOException("closed");
     nameValueBlockBuffer.reset();
     int numberOfPairs = nameValueBlock.size() / 2;
     nameValueBlockOut.writeInt(numberOfPairs);
@@ -114,63 +181,263 @@ final class SpdyWriter implements Closeable {
     nameValueBlockOut.flush();
   }
 
-  public synchronized void settings(int flags, Settings settings) throws IOException {
-    int type = SpdyConnection.TYPE_SETTINGS;
-    int size = settings.size();
-    int length = 4 + size * 8;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(size);
-    for (int i = 0; i <= Settings.COUNT; i++) {
-      if (!settings.isSet(i)) continue;
-      int settingsFlags = settings.flags(i);
-      out.writeInt((settingsFlags & 0xff) << 24 | (i & 0xffffff));
-      out.writeInt(settings.get(i));
+  public void settings(int flags, Settings settings) throws IOException {
+    Frame frame;
+    synchronized (this) {
+      int type = SpdyConnection.TYPE_SETTINGS;
+      int size = settings.size();
+      int length = 4 + size * 8;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(size);
+      for (int i = 0; i <= Settings.COUNT; i++) {
+        if (!settings.isSet(i)) continue;
+        int settingsFlags = settings.flags(i);
+        frameOut.writeInt((settingsFlags & 0xff) << 24 | (i & 0xffffff));
+        frameOut.writeInt(settings.get(i));
+      }
+      frame = enqueueControlFrame();
     }
-    out.flush();
+    write(frame);
   }
 
-  public synchronized void noop() throws IOException {
-    int type = SpdyConnection.TYPE_NOOP;
-    int length = 0;
-    int flags = 0;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.flush();
+  public void noop() throws IOException {
+    Frame frame;
+    synchronized (this) {
+      int type = SpdyConnection.TYPE_NOOP;
+      int length = 0;
+      int flags = 0;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void ping(int flags, int id) throws IOException {
-    int type = SpdyConnection.TYPE_PING;
-    int length = 4;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(id);
-    out.flush();
+  public void ping(int flags, int id) throws IOException {
+    Frame frame;
+    synchronized (this) {
+      int type = SpdyConnection.TYPE_PING;
+      int length = 4;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(id);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void goAway(int flags, int lastGoodStreamId, int statusCode)
-      throws IOException {
-    int type = SpdyConnection.TYPE_GOAWAY;
-    int length = 8;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(lastGoodStreamId);
-    out.writeInt(statusCode);
-    out.flush();
+  public void goAway(int flags, int lastGoodStreamId, int statusCode) throws IOException {
+    Frame frame;
+    synchronized (this) {
+      int type = SpdyConnection.TYPE_GOAWAY;
+      int length = 8;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(lastGoodStreamId);
+      frameOut.writeInt(statusCode);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
   }
 
-  public synchronized void windowUpdate(int streamId, int deltaWindowSize) throws IOException {
-    int type = SpdyConnection.TYPE_WINDOW_UPDATE;
-    int flags = 0;
-    int length = 8;
-    out.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
-    out.writeInt((flags & 0xff) << 24 | length & 0xffffff);
-    out.writeInt(streamId);
-    out.writeInt(deltaWindowSize);
+  public void windowUpdate(int streamId, int deltaWindowSize) throws IOException {
+    Frame frame;
+    synchronized (this) {
+      int type = SpdyConnection.TYPE_WINDOW_UPDATE;
+      int flags = 0;
+      int length = 8;
+      frameOut.writeInt(0x80000000 | (SpdyConnection.VERSION & 0x7fff) << 16 | type & 0xffff);
+      frameOut.writeInt((flags & 0xff) << 24 | length & 0xffffff);
+      frameOut.writeInt(streamId);
+      frameOut.writeInt(deltaWindowSize);
+      frame = enqueueControlFrame();
+    }
+    write(frame);
+  }
+
+  /** Queues the control frame encoded in {@code frameBuffer}. */
+  private Frame enqueueControlFrame() throws IOException {
+    byte[] bytes = frameBuffer.toByteArray();
+    frameBuffer.reset();
+    Frame frame = new Frame(bytes, 0, bytes.length);
+    enqueue(controlFrames, frame);
+    return frame;
+  }
+
+  private void enqueue(Deque<Frame> queue, Frame frame) throws IOException {
+    assert (Thread.holdsLock(this));
+    if (closed) throw new IOException("closed");
+    queue.add(frame);
+  }
+
+  /**
+   * Returns once {@code frame} has been written. If no other thread is
+   * writing, this thread writes the next batch of queued frames.
+   */
+  private void write(Frame frame) throws IOException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        synchronized (this) {
+          while (writing && !frame.written) {
+            waiters++;
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              // The frame may already be in a batch, so we can't abandon it.
+              interrupted = true;
+            } finally {
+              waiters--;
+            }
+          }
+          if (frame.written) {
+            if (frame.failure == null) return;
+            IOException e = new IOException(frame.failure.getMessage());
+            e.initCause(frame.failure);
+            throw e;
+          }
+          writing = true;
+          takeBatch();
+        }
+
+        IOException failure = null;
+        try {
+          writeBatch();
+        } catch (IOException e) {
+          failure = e;
+        } finally {
+          synchronized (this) {
+            for (int i = 0, size = batch.size(); i < size; i++) {
+              Frame written = batch.get(i);
+              written.written = true;
+              written.failure = failure;
+            }
+            batch.clear();
+            writing = false;
+            if (waiters > 0) notifyAll();
+          }
+        }
+        if (failure != null && frame.written) throw failure;
+      }
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Moves the next frames to write from the queues to the batch. Control
+   * frames are taken first; then data frames by smooth weighted round robin,
+   * where priority 0 has weight 8 and priority 7 has weight 1.
+   */
+  private void takeBatch() {
+    int batchSize = 0;
+    while (batchSize < MAX_BATCH_SIZE) {
+      Deque<Frame> queue = controlFrames.isEmpty() ? nextDataQueue() : controlFrames;
+      if (queue == null) break;
+      Frame frame = queue.remove();
+      batch.add(frame);
+      batchSize += frame.length;
+    }
+  }
+
+  private Deque<Frame> nextDataQueue() {
+    int best = -1;
+    int totalWeight = 0;
+    for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+      if (dataFrames.get(priority).isEmpty()) {
+        currentWeights[priority] = 0;
+        continue;
+      }
+      int weight = PRIORITY_COUNT - priority;
+      currentWeights[priority] += weight;
+      totalWeight += weight;
+      if (best == -1 || currentWeights[priority] > currentWeights[best]) {
+        best = priority;
+      }
+    }
+    if (best == -1) return null;
+    currentWeights[best] -= totalWeight;
+    return dataFrames.get(best);
+  }
+
+  /** Writes the batch to the socket with as few writes as possible, then flushes. */
+  private void writeBatch() throws IOException {
+    if (batch.size() == 1) {
+      Frame frame = batch.get(0);
+      out.write(frame.bytes, frame.offset, frame.length);
+    } else {
+      byte[] buffer = BufferPool.take(MAX_BATCH_SIZE);
+      try {
+        int pos = 0;
+        for (int i = 0, size = batch.size(); i < size; i++) {
+          Frame frame = batch.get(i);
+          if (pos + frame.length > buffer.length) {
+            out.write(buffer, 0, pos);
+            pos = 0;
+          }
+          if (frame.length > buffer.length) {
+            out.write(frame.bytes, frame.offset, frame.length);
+          } else {
+            System.arraycopy(frame.bytes, frame.offset, buffer, pos, frame.length);
+            pos += frame.length;
+          }
+        }
+        out.write(buffer, 0, pos);
+      } finally {
+        BufferPool.recycle(buffer);
+      }
+    }
     out.flush();
   }
 
+  /** Frames are flushed as they are written; this only fails if the writer is closed. */
+  public synchronized void flush() throws IOException {
+    if (closed) throw new IOException("closed");
+  }
+
   @Override public void close() throws IOException {
-    Util.closeAll(out, nameValueBlockOut);
+    synchronized (this) {
+      closed = true;
+      IOException failure = new IOException("closed");
+      failQueued(controlFrames, failure);
+      for (int i = 0; i < PRIORITY_COUNT; i++) {
+        failQueued(dataFrames.get(i), failure);
+      }
+      notifyAll();
+    }
+    try {
+      Util.closeAll(out, nameValueBlockOut);
+    } finally {
+      // Closing the socket first unblocks any batch being written.
+      synchronized (this) {
+        if (deflater != null) {
+          ZlibPool.recycle(deflater);
+          deflater = null;
+        }
+      }
+    }
+  }
+
+  private void failQueued(Deque<Frame> queue, IOException failure) {
+    for (Frame frame; (frame = queue.poll()) != null; ) {
+      frame.written = true;
+      frame.failure = failure;
+    }
+  }
+
+  /** An encoded frame awaiting its turn on the socket. */
+  private static final class Frame {
+    final byte[] bytes;
+    final int offset;
+    final int length;
+    boolean written;
+    IOException failure;
+
+    Frame(byte[] bytes, int offset, int length) {
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+    }
   }
 }
@@ -27,6 +27,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 
 /**
@@ -81,6 +83,10 @@ public class App extends CordovaPlugin {
             else if (action.equals("exitApp")) {
                 this.exitApp();
             }
+            else if (action.equals("exportTrace")) {
+                this.exportTrace(callbackContext);
+                return true;
+            }
             callbackContext.sendPluginResult(new PluginResult(status, result));
             return true;
         } catch (JSONException e) {
@@ -215,6 +221,25 @@ public class App extends CordovaPlugin {
         return webView.isBackButtonBound();
     }
 
+    /**
+     * Write the spans recorded by Trace to the app's files directory.
+     * The path of the written file is passed to the success callback.
+     */
+    public void exportTrace(final CallbackContext callbackContext) {
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    File file = Trace.export(cordova.getActivity().getFilesDir());
+                    callbackContext.success(file.getAbsolutePath());
+                } catch (IOException e) {
+                    callbackContext.error(e.getMessage());
+                } catch (IllegalStateException e) {
+                    callbackContext.error(e.getMessage());
+                }
+            }
+        });
+    }
+
     /**
      * Exit the Android application.
      */
@@ -0,0 +1,243 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Measures the round-trip latency of each native->JS bridge mode and switches
+ * to the fastest one that works. The choice is remembered per OS build, so
+ * later launches just re-apply it.
+ *
+ * A probe is a JS statement sent through the active bridge mode that calls
+ * back into PluginManager's "bridgeProbe" action. Mode switches are sent the
+ * same way so that exec.js and the native queue always agree on the mode.
+ *
+ * Enabled with <preference name="CalibrateBridgeMode" value="true" />.
+ */
+class BridgeModeCalibrator {
+    private static final String LOG_TAG = "BridgeModeCalibrator";
+    private static final String PREFS_NAME = "org.apache.cordova.BridgeMode";
+
+    private static final int PROBES_PER_MODE = 5;
+    private static final long PROBE_TIMEOUT_MS = 1000;
+
+    // Mode that mode switches fall back to when a probed mode turns out not to work.
+    private static final int BASELINE_MODE = NativeToJsMessageQueue.DEFAULT_BRIDGE_MODE;
+
+    // LOAD_URL dismisses the soft keyboard every time a message is sent (see
+    // exec.js), so it is never a candidate regardless of how fast it is.
+    private static final int LOAD_URL_MODE = 1;
+
+    private final CordovaInterface cordova;
+    private final NativeToJsMessageQueue queue;
+    private final String prefsKey;
+
+    private int calibratedMode = -1;
+    private boolean running;
+    private volatile boolean cancelled;
+
+    private int nextToken;
+    private int awaitedToken = -1;
+    private boolean probeReceived;
+
+    BridgeModeCalibrator(CordovaInterface cordova, NativeToJsMessageQueue queue) {
+        this.cordova = cordova;
+        this.queue = queue;
+        this.prefsKey = "nativeToJsMode/" + Build.FINGERPRINT;
+    }
+
+    /**
+     * Called once the JS side of the bridge has started up on a new page.
+     * Re-applies the remembered mode, or starts calibrating if there is none.
+     */
+    void onBridgeStartup() {
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+            cancelled = false;
+            if (calibratedMode < 0) {
+                calibratedMode = getPreferences().getInt(prefsKey, -1);
+            }
+            if (calibratedMode >= 0) {
+                if (calibratedMode != BASELINE_MODE) {
+                    queue.addJavaScript(createSwitchStatement(calibratedMode));
+                }
+                return;
+            }
+            running = true;
+        }
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    calibrate();
+                } finally {
+                    synchronized (BridgeModeCalibrator.this) {
+                        running = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when the page is navigated away from. Any calibration in progress
+     * is abandoned, since the queue and exec.js have both been reset.
+     */
+    void onPageReset() {
+        synchronized (this) {
+            cancelled = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns whether an exec() call is a probe sent from here.
+     */
+    static boolean isProbe(String service, String action) {
+        return "bridgeProbe".equals(action) && "PluginManager".equals(service);
+    }
+
+    /**
+     * Called by PluginManager when a probe sent from here has made it back.
+     */
+    void onProbeReceived(int token) {
+        synchronized (this) {
+            if (token == awaitedToken) {
+                probeReceived = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private void calibrate() {
+        long[] latencies = new long[queue.getBridgeModeCount()];
+        for (int mode = 0; mode < latencies.length; ++mode) {
+            latencies[mode] = -1;
+            if (mode == LOAD_URL_MODE) {
+                continue;
+            }
+            long latency = measureMode(mode);
+            if (cancelled) {
+                return;
+            }
+            if (latency < 0) {
+                Log.d(LOG_TAG, "Native->JS mode " + mode + " did not respond.");
+                // Deliver the switch back through a mode that is known to work.
+                queue.setBridgeMode(BASELINE_MODE);
+                if (roundTrip(createSwitchStatement(BASELINE_MODE)) < 0) {
+                    Log.w(LOG_TAG, "Lost the bridge while calibrating. Giving up.");
+                    return;
+                }
+                continue;
+            }
+            Log.d(LOG_TAG, "Native->JS mode " + mode + " round trip: " + (latency / 1000) + "us");
+            latencies[mode] = latency;
+        }
+        int bestMode = selectMode(latencies);
+        if (bestMode < 0 || roundTrip(createSwitchStatement(bestMode)) < 0 || cancelled) {
+            return;
+        }
+        Log.d(LOG_TAG, "Selected native->JS mode " + bestMode);
+        synchronized (this) {
+            calibratedMode = bestMode;
+        }
+        getPreferences().edit().putInt(prefsKey, bestMode).commit();
+    }
+
+    /**
+     * Returns the mode with the lowest latency, or -1 if none of them
+     * responded. latencies[mode] is -1 for modes that did not respond.
+     * LOAD_URL is never selected.
+     */
+    static int selectMode(long[] latencies) {
+        int bestMode = -1;
+        for (int mode = 0; mode < latencies.length; ++mode) {
+            if (mode == LOAD_URL_MODE || latencies[mode] < 0) {
+                continue;
+            }
+            if (bestMode < 0 || latencies[mode] < latencies[bestMode]) {
+                bestMode = mode;
+            }
+        }
+        return bestMode;
+    }
+
+    /**
+     * Switches to the given mode and returns its median probe latency in
+     * nanoseconds, or -1 if a probe timed out.
+     */
+    private long measureMode(int mode) {
+        if (roundTrip(createSwitchStatement(mode)) < 0) {
+            return -1;
+        }
+        long[] samples = new long[PROBES_PER_MODE];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = roundTrip("");
+            if (samples[i] < 0) {
+                return -1;
+            }
+        }
+        Arrays.sort(samples);
+        return samples[samples.length / 2];
+    }
+
+    /**
+     * Sends the given JS followed by a probe, and waits for the probe to come
+     * back. Returns the elapsed time in nanoseconds, or -1 on timeout.
+     */
+    private long roundTrip(String js) {
+        int token;
+        synchronized (this) {
+            token = nextToken++;
+            awaitedToken = token;
+            probeReceived = false;
+        }
+        long startTime = System.nanoTime();
+        queue.addJavaScript(js + "cordova.require('cordova/exec')(null,null,'PluginManager','bridgeProbe',[" + token + "]);");
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT_MS;
+            long remaining = PROBE_TIMEOUT_MS;
+            while (!probeReceived && !cancelled && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    return -1;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            awaitedToken = -1;
+            return probeReceived ? System.nanoTime() - startTime : -1;
+        }
+    }
+
+    private static String createSwitchStatement(int mode) {
+        return "cordova.require('cordova/exec').setNativeToJsBridgeMode(" + mode + ");";
+    }
+
+    private SharedPreferences getPreferences() {
+        return cordova.getActivity().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
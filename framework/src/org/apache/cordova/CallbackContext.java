@@ -34,6 +34,9 @@ public class CallbackContext {
     private boolean finished;
     private int changingThreads;
 
+    // Set when this callback is being tracked by PluginManager's CallbackRegistry.
+    CallbackRegistry registry;
+
     public CallbackContext(String callbackId, CordovaWebView webView) {
         this.callbackId = callbackId;
         this.webView = webView;
@@ -60,6 +63,9 @@ public class CallbackContext {
                 finished = !pluginResult.getKeepCallback();
             }
         }
+        if (registry != null) {
+            registry.onResultSent(this, pluginResult);
+        }
         webView.sendPluginResult(pluginResult, callbackId);
     }
 
@@ -0,0 +1,250 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.util.Log;
+
+/**
+ * Keeps track of the CallbackContexts created by PluginManager.exec() until
+ * they are finished, so that callbacks that never complete can be found.
+ *
+ * Actions can be given a deadline through a param of their feature in
+ * config.xml. A callback still unfinished at its deadline is failed with
+ * an ERROR result saying that it timed out:
+ *
+ *      <param name="deadline" value="getCurrentPosition:30000, getPicture:120000" />
+ *
+ * When <preference name="CallbackReportInterval" value="..."/> is set (in
+ * seconds), the oldest and largest live callbacks are logged periodically.
+ */
+public class CallbackRegistry {
+    private static final String LOG_TAG = "CallbackRegistry";
+
+    // Callbacks that are never finished would otherwise grow this without bound.
+    private static final int MAX_ENTRIES = 1000;
+    private static final long SWEEP_INTERVAL_MS = 1000;
+    private static final int REPORT_SIZE = 5;
+
+    // Maps "service.action" to a deadline in milliseconds.
+    private final HashMap<String, Long> deadlines = new HashMap<String, Long>();
+    private final LinkedHashMap<CallbackContext, Entry> live = new LinkedHashMap<CallbackContext, Entry>();
+    private final long reportIntervalMs;
+
+    private Timer timer;
+    private long lastReportTime;
+    private int timedOutCount;
+    private int evictedCount;
+
+    CallbackRegistry(long reportIntervalMs) {
+        this.reportIntervalMs = reportIntervalMs;
+    }
+
+    /**
+     * Parses the value of a feature's "deadline" param.
+     */
+    synchronized void addDeadlines(String service, String spec) {
+        for (String rule : spec.split(",")) {
+            int colon = rule.indexOf(':');
+            try {
+                long deadline = Long.parseLong(rule.substring(colon + 1).trim());
+                if (colon != -1 && deadline > 0) {
+                    deadlines.put(service + "." + rule.substring(0, colon).trim(), deadline);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+            }
+            if (rule.trim().length() > 0) {
+                Log.w(LOG_TAG, "Ignoring invalid deadline for " + service + ": " + rule);
+            }
+        }
+    }
+
+    synchronized void register(CallbackContext callbackContext, String service, String action) {
+        Long deadline = deadlines.get(service + "." + action);
+        Entry entry = new Entry(callbackContext, service, action, deadline == null ? 0 : deadline);
+        live.put(callbackContext, entry);
+        callbackContext.registry = this;
+        if (live.size() > MAX_ENTRIES) {
+            Iterator<Entry> it = live.values().iterator();
+            Entry eldest = it.next();
+            it.remove();
+            eldest.callbackContext.registry = null;
+            evictedCount++;
+        }
+        if (timer == null && (entry.deadline != 0 || reportIntervalMs > 0)) {
+            timer = new Timer(LOG_TAG, true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Called by CallbackContext whenever a result is sent.
+     */
+    synchronized void onResultSent(CallbackContext callbackContext, PluginResult result) {
+        Entry entry = live.get(callbackContext);
+        if (entry == null) {
+            return;
+        }
+        entry.resultCount++;
+        entry.bytesSent += result.getMessage().length();
+        if (callbackContext.isFinished()) {
+            live.remove(callbackContext);
+        }
+    }
+
+    /**
+     * Forgets all live callbacks. Called when the page is navigated, since
+     * the JS side drops its callbacks at that point too.
+     */
+    synchronized void clear() {
+        live.clear();
+    }
+
+    synchronized void shutdown() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Returns the number of callbacks that are not finished yet.
+     */
+    public synchronized int getLiveCount() {
+        return live.size();
+    }
+
+    /**
+     * Returns the number of callbacks that were failed for missing their deadline.
+     */
+    public synchronized int getTimedOutCount() {
+        return timedOutCount;
+    }
+
+    /**
+     * Returns a description of the oldest and the largest live callbacks.
+     */
+    public synchronized String getReport(int limit) {
+        long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<Entry>(live.values());
+        StringBuilder sb = new StringBuilder();
+        sb.append(entries.size()).append(" live callbacks (")
+          .append(timedOutCount).append(" timed out, ")
+          .append(evictedCount).append(" untracked).");
+        sb.append("\nOldest:");
+        // Entries are kept in creation order.
+        for (int i = 0; i < Math.min(limit, entries.size()); ++i) {
+            entries.get(i).describe(sb, now);
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.bytesSent > rhs.bytesSent ? -1 : (lhs.bytesSent == rhs.bytesSent ? 0 : 1);
+            }
+        });
+        sb.append("\nLargest:");
+        for (int i = 0; i < Math.min(limit, entries.size()); ++i) {
+            entries.get(i).describe(sb, now);
+        }
+        return sb.toString();
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        List<Entry> expired;
+        synchronized (this) {
+            expired = removeExpired(now);
+            if (reportIntervalMs > 0 && now - lastReportTime >= reportIntervalMs && !live.isEmpty()) {
+                lastReportTime = now;
+                Log.d(LOG_TAG, getReport(REPORT_SIZE));
+            }
+        }
+        for (Entry entry : expired) {
+            Log.w(LOG_TAG, "Callback " + entry.callbackContext.getCallbackId() + " to " + entry.service + "." + entry.action
+                    + " missed its " + entry.deadline + "ms deadline.");
+            entry.callbackContext.sendPluginResult(entry.createTimeoutResult());
+        }
+    }
+
+    /**
+     * Stops tracking the callbacks whose deadline has passed at the given
+     * time and returns them. The caller is responsible for failing them.
+     */
+    synchronized List<Entry> removeExpired(long now) {
+        List<Entry> expired = new ArrayList<Entry>();
+        for (Iterator<Map.Entry<CallbackContext, Entry>> it = live.entrySet().iterator(); it.hasNext();) {
+            Entry entry = it.next().getValue();
+            if (entry.deadline != 0 && now - entry.createdAt >= entry.deadline) {
+                it.remove();
+                expired.add(entry);
+            }
+        }
+        timedOutCount += expired.size();
+        return expired;
+    }
+
+    static class Entry {
+        final CallbackContext callbackContext;
+        final String service;
+        final String action;
+        final long deadline;
+        final long createdAt = System.currentTimeMillis();
+        int resultCount;
+        long bytesSent;
+
+        Entry(CallbackContext callbackContext, String service, String action, long deadline) {
+            this.callbackContext = callbackContext;
+            this.service = service;
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns the result sent in place of the one that never came. It's a
+         * plain ERROR, so the JS side needs no status of its own for it.
+         */
+        PluginResult createTimeoutResult() {
+            return new PluginResult(PluginResult.Status.ERROR,
+                    service + "." + action + " timed out after " + deadline + "ms");
+        }
+
+        void describe(StringBuilder sb, long now) {
+            sb.append("\n  ").append(callbackContext.getCallbackId())
+              .append(' ').append(service).append('.').append(action)
+              .append(" age=").append(now - createdAt).append("ms")
+              .append(" results=").append(resultCount)
+              .append(" bytes=").append(bytesSent);
+        }
+    }
+}
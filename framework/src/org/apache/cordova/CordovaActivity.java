@@ -21,7 +21,6 @@ package org.apache.cordova;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import org.apache.cordova.CordovaInterface;
 import org.apache.cordova.CordovaPlugin;
@@ -134,7 +133,7 @@ public class CordovaActivity extends Activity implements CordovaInterface {
     protected LinearLayout root;
     protected boolean cancelLoadUrl = false;
     protected ProgressDialog spinnerDialog = null;
-    private final ExecutorService threadPool = Executors.newCachedThreadPool();
+    private CordovaThreadPool threadPool;
 
 
     // The initial URL for our app
@@ -249,7 +248,13 @@ public class CordovaActivity extends Activity implements CordovaInterface {
     @SuppressWarnings("deprecation")
     @Override
     public void onCreate(Bundle savedInstanceState) {
+        // Tracing can only be turned on once config.xml is read, so time this by hand.
+        long traceStart = System.nanoTime();
         Config.init(this);
+        int traceBufferSize = this.getIntegerProperty("TraceBufferSize", 0);
+        if (traceBufferSize > 0) {
+            Trace.enable(traceBufferSize);
+        }
         LOG.d(TAG, "CordovaActivity.onCreate()");
         super.onCreate(savedInstanceState);
 
@@ -286,6 +291,7 @@ public class CordovaActivity extends Activity implements CordovaInterface {
 
         // Setup the hardware volume controls to handle volume control
         setVolumeControlStream(AudioManager.STREAM_MUSIC);
+        Trace.end(Trace.CATEGORY_LIFECYCLE, "onCreate", traceStart);
     }
 
     /**
@@ -353,6 +359,7 @@ public class CordovaActivity extends Activity implements CordovaInterface {
     @SuppressLint("NewApi")
     public void init(CordovaWebView webView, CordovaWebViewClient webViewClient, CordovaChromeClient webChromeClient) {
         LOG.d(TAG, "CordovaActivity.init()");
+        long traceStart = Trace.begin();
 
         // Set up web container
         this.appView = webView;
@@ -381,7 +388,7 @@ public class CordovaActivity extends Activity implements CordovaInterface {
 
         // Clear cancel flag
         this.cancelLoadUrl = false;
-        
+        Trace.end(Trace.CATEGORY_LIFECYCLE, "init", traceStart);
     }
 
     /**
@@ -390,6 +397,7 @@ public class CordovaActivity extends Activity implements CordovaInterface {
      * @param url
      */
     public void loadUrl(String url) {
+        long traceStart = Trace.begin();
 
         // Init web view if not already done
         if (this.appView == null) {
@@ -429,6 +437,7 @@ public class CordovaActivity extends Activity implements CordovaInterface {
         {
             this.appView.loadUrl(url);
         }
+        Trace.end(Trace.CATEGORY_LIFECYCLE, "loadUrl", traceStart, url);
     }
 
     /**
@@ -1180,7 +1189,25 @@ public class CordovaActivity extends Activity implements CordovaInterface {
         return null;
     }
 
-    public ExecutorService getThreadPool() {
+    /**
+     * Get the shared thread pool for background tasks. It is created on first
+     * use so that it can be sized by config.xml preferences:
+     *
+     *      <preference name="ThreadPoolCoreSize" value="4" />
+     *      <preference name="ThreadPoolMaxSize" value="32" />
+     *      <preference name="ThreadPoolQueueSize" value="256" />
+     *      <preference name="ThreadPoolMaxTasksPerPlugin" value="0" />   (0 = no limit)
+     *
+     * @return
+     */
+    public synchronized ExecutorService getThreadPool() {
+        if (threadPool == null) {
+            int coreSize = this.getIntegerProperty("ThreadPoolCoreSize", Math.max(2, Runtime.getRuntime().availableProcessors()));
+            int maxSize = Math.max(coreSize, this.getIntegerProperty("ThreadPoolMaxSize", 32));
+            int queueSize = this.getIntegerProperty("ThreadPoolQueueSize", 256);
+            int maxTasksPerPlugin = this.getIntegerProperty("ThreadPoolMaxTasksPerPlugin", 0);
+            threadPool = new CordovaThreadPool(coreSize, maxSize, queueSize, maxTasksPerPlugin);
+        }
         return threadPool;
     }
     
@@ -20,6 +20,7 @@ package org.apache.cordova;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.database.Cursor;
@@ -28,7 +29,11 @@ import android.os.Looper;
 import android.util.Base64;
 import android.webkit.MimeTypeMap;
 
+import com.squareup.okhttp.HostResolver;
 import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.internal.BufferPool;
+import com.squareup.okhttp.internal.CachingDns;
+import com.squareup.okhttp.internal.spdy.PersistedSettings;
 
 import org.apache.http.util.EncodingUtils;
 
@@ -62,6 +67,7 @@ public class CordovaResourceApi {
     
     // Creating this is light-weight.
     private static OkHttpClient httpClient = new OkHttpClient();
+    private static TlsSessionCache tlsSessionCache;
     
     static Thread jsThread;
 
@@ -75,6 +81,32 @@ public class CordovaResourceApi {
         this.contentResolver = context.getContentResolver();
         this.assetManager = context.getAssets();
         this.pluginManager = pluginManager;
+        synchronized (CordovaResourceApi.class) {
+            if (tlsSessionCache == null) {
+                tlsSessionCache = new TlsSessionCache(context.getApplicationContext());
+                httpClient.setSSLSocketFactory(tlsSessionCache);
+                // Keep large upload bodies out of the shared temp directory.
+                httpClient.setRequestBodySpoolDirectory(context.getCacheDir());
+                // Cache DNS results, and keep them across launches to skip the first lookup.
+                httpClient.setHostResolver(new CachingDns(HostResolver.DEFAULT,
+                        new File(context.getCacheDir(), "dns_cache"), 60 * 1000, 5 * 1000, 64));
+                // Start SPDY sessions from the settings servers asked us to remember.
+                PersistedSettings.setDefault(new PersistedSettings(
+                        new File(context.getCacheDir(), "spdy_settings"), 64));
+                // Catch leaked and doubly recycled I/O buffers in debug builds.
+                BufferPool.setStrict((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+            }
+        }
+    }
+
+    /**
+     * Returns the TLS session cache used for https: URIs, which also counts
+     * resumed and full handshakes.
+     */
+    public static TlsSessionCache getTlsSessionCache() {
+        synchronized (CordovaResourceApi.class) {
+            return tlsSessionCache;
+        }
     }
     
     public void setThreadCheckingEnabled(boolean value) {
@@ -320,15 +352,18 @@ public class CordovaResourceApi {
                 outChannel.transferFrom(inChannel, offset, length);
             } else {
                 final int BUFFER_SIZE = 8192;
-                byte[] buffer = new byte[BUFFER_SIZE];
-                
-                for (;;) {
-                    int bytesRead = inputStream.read(buffer, 0, BUFFER_SIZE);
-                    
-                    if (bytesRead <= 0) {
-                        break;
+                byte[] buffer = BufferPool.take(BUFFER_SIZE);
+                try {
+                    for (;;) {
+                        int bytesRead = inputStream.read(buffer, 0, BUFFER_SIZE);
+
+                        if (bytesRead <= 0) {
+                            break;
+                        }
+                        outputStream.write(buffer, 0, bytesRead);
                     }
-                    outputStream.write(buffer, 0, bytesRead);
+                } finally {
+                    BufferPool.recycle(buffer);
                 }
             }            
         } finally {
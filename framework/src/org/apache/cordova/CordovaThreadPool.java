@@ -0,0 +1,296 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The thread pool returned by CordovaInterface.getThreadPool().
+ *
+ * Threads are started up to the maximum pool size before tasks are queued,
+ * and the queue itself is bounded. Queued tasks run in priority order, so
+ * foreground work submitted with execute(Runnable, int) overtakes background
+ * work. Tasks are attributed to the plugin whose exec() submitted them, and
+ * each plugin can be limited to a number of outstanding tasks; tasks over
+ * the limit wait in a per-plugin backlog rather than being rejected. Tasks
+ * submitted by code already running on the pool are never charged, so a task
+ * can wait for work it hands off without exhausting its plugin's limit.
+ */
+public class CordovaThreadPool extends ThreadPoolExecutor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public static final int PRIORITY_FOREGROUND = 0;
+    public static final int PRIORITY_DEFAULT = 5;
+    public static final int PRIORITY_BACKGROUND = 10;
+
+    // The service whose exec() is running on the current thread, if any.
+    private static final ThreadLocal<String> currentService = new ThreadLocal<String>();
+
+    private final TaskQueue workQueue;
+    private final int maxTasksPerPlugin;
+    private final HashMap<String, PluginTasks> pluginTasks = new HashMap<String, PluginTasks>();
+    private int backlogSize;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong finishedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+
+    /**
+     * @param corePoolSize       Number of threads kept alive when idle.
+     * @param maximumPoolSize    Upper bound on the number of threads.
+     * @param queueCapacity      Number of tasks that can wait once all threads are busy.
+     * @param maxTasksPerPlugin  Number of tasks a single plugin can have queued or running
+     *                           at once, or 0 for no limit.
+     */
+    public CordovaThreadPool(int corePoolSize, int maximumPoolSize, int queueCapacity, int maxTasksPerPlugin) {
+        super(corePoolSize, maximumPoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new TaskQueue(queueCapacity), new NamedThreadFactory());
+        this.workQueue = (TaskQueue) getQueue();
+        this.workQueue.executor = this;
+        this.maxTasksPerPlugin = maxTasksPerPlugin;
+        setRejectedExecutionHandler(new RejectionHandler());
+    }
+
+    /**
+     * Records which service's exec() is running on the current thread so that
+     * tasks it submits are charged to it. Returns the previous value.
+     */
+    static String setCurrentService(String service) {
+        String previous = currentService.get();
+        currentService.set(service);
+        return previous;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, PRIORITY_DEFAULT);
+    }
+
+    /**
+     * Executes the given task. Tasks with a lower priority value are taken
+     * from the queue first.
+     *
+     * @throws RejectedExecutionException if every thread is busy and the queue is full.
+     */
+    public void execute(Runnable command, int priority) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        Task task = new Task(command, priority, sequence.getAndIncrement(), currentService.get());
+        if (task.service != null && maxTasksPerPlugin > 0) {
+            synchronized (pluginTasks) {
+                PluginTasks tasks = pluginTasks.get(task.service);
+                if (tasks == null) {
+                    tasks = new PluginTasks();
+                    pluginTasks.put(task.service, tasks);
+                }
+                if (tasks.outstanding >= maxTasksPerPlugin) {
+                    tasks.backlog.add(task);
+                    backlogSize++;
+                    return;
+                }
+                tasks.outstanding++;
+            }
+        }
+        try {
+            super.execute(task);
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            onTaskFinished(task);
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the task's slot in its plugin's quota, handing it to the next
+     * task from that plugin's backlog if there is one.
+     */
+    private void onTaskFinished(Task task) {
+        if (task.service == null || maxTasksPerPlugin <= 0) {
+            return;
+        }
+        Task next;
+        synchronized (pluginTasks) {
+            PluginTasks tasks = pluginTasks.get(task.service);
+            next = tasks.backlog.poll();
+            if (next == null) {
+                if (--tasks.outstanding == 0) {
+                    pluginTasks.remove(task.service);
+                }
+                return;
+            }
+            backlogSize--;
+        }
+        try {
+            super.execute(next);
+        } catch (RejectedExecutionException e) {
+            // The caller was already told this task was accepted, so it can't
+            // be rejected now. Queue it past the capacity limit instead; if
+            // this is a pool thread, it takes the task from the queue next.
+            workQueue.forceOffer(next, false);
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting to run, including tasks held back
+     * by per-plugin limits.
+     */
+    public int getQueueDepth() {
+        synchronized (pluginTasks) {
+            return workQueue.size() + backlogSize;
+        }
+    }
+
+    /**
+     * Returns the number of tasks that were rejected because the queue was full.
+     */
+    public long getRejectedTaskCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that have finished running.
+     */
+    public long getFinishedTaskCount() {
+        return finishedCount.get();
+    }
+
+    /**
+     * Returns the total time finished tasks spent waiting to be run, in milliseconds.
+     */
+    public long getTotalWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    /**
+     * Returns the total time finished tasks spent running, in milliseconds.
+     */
+    public long getTotalRunTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalRunNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "CordovaThreadPool[active=" + getActiveCount() + ", threads=" + getPoolSize()
+                + ", queued=" + getQueueDepth() + ", rejected=" + getRejectedTaskCount()
+                + ", finished=" + getFinishedTaskCount() + ", waitMs=" + getTotalWaitTimeMillis()
+                + ", runMs=" + getTotalRunTimeMillis() + "]";
+    }
+
+    private static class PluginTasks {
+        int outstanding;
+        final PriorityQueue<Task> backlog = new PriorityQueue<Task>();
+    }
+
+    private final class Task implements Runnable, Comparable<Task> {
+        final Runnable command;
+        final int priority;
+        final long sequence;
+        final String service;
+        final long submitTime = System.nanoTime();
+
+        Task(Runnable command, int priority, long sequence, String service) {
+            this.command = command;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.service = service;
+        }
+
+        public void run() {
+            long startTime = System.nanoTime();
+            totalWaitNanos.addAndGet(startTime - submitTime);
+            try {
+                command.run();
+            } finally {
+                totalRunNanos.addAndGet(System.nanoTime() - startTime);
+                finishedCount.incrementAndGet();
+                onTaskFinished(this);
+            }
+        }
+
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * A bounded priority queue that refuses tasks while the pool can still
+     * grow, so that ThreadPoolExecutor starts a new thread instead.
+     */
+    private static class TaskQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        ThreadPoolExecutor executor;
+
+        TaskQueue(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            if (executor != null && executor.getPoolSize() < executor.getMaximumPoolSize()
+                    && executor.getActiveCount() >= executor.getPoolSize()) {
+                return false;
+            }
+            return forceOffer(r, true);
+        }
+
+        // The capacity check is not atomic with the insert, so the queue can
+        // briefly go over capacity by the number of concurrent submitters.
+        boolean forceOffer(Runnable r, boolean checkCapacity) {
+            if (checkCapacity && size() >= capacity) {
+                return false;
+            }
+            return super.offer(r);
+        }
+    }
+
+    private class RejectionHandler implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            // Called when the pool is at its maximum size. Queue if there is room.
+            if (!executor.isShutdown() && workQueue.forceOffer(r, true)) {
+                return;
+            }
+            throw new RejectedExecutionException("CordovaThreadPool is saturated: " + CordovaThreadPool.this);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "CordovaThreadPool-" + threadNumber.getAndIncrement());
+        }
+    }
+}
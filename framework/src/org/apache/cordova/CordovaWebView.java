@@ -91,6 +91,7 @@ public class CordovaWebView extends WebView {
 
     NativeToJsMessageQueue jsMessageQueue;
     ExposedJsApi exposedJsApi;
+    BridgeModeCalibrator bridgeModeCalibrator;
 
     /** custom view created by the browser (a video player for example) */
     private View mCustomView;
@@ -310,6 +311,9 @@ public class CordovaWebView extends WebView {
         pluginManager = new PluginManager(this, this.cordova);
         jsMessageQueue = new NativeToJsMessageQueue(this, cordova);
         exposedJsApi = new ExposedJsApi(pluginManager, jsMessageQueue);
+        if ("true".equals(this.getProperty("CalibrateBridgeMode", "false"))) {
+            bridgeModeCalibrator = new BridgeModeCalibrator(this.cordova, jsMessageQueue);
+        }
         resourceApi = new CordovaResourceApi(this.getContext(), pluginManager);
         exposeJsInterface();
     }
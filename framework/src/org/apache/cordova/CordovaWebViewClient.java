@@ -54,6 +54,9 @@ public class CordovaWebViewClient extends WebViewClient {
     CordovaWebView appView;
     private boolean doClearHistory = false;
 
+    // When the current page started loading, for tracing.
+    private long pageLoadTraceStart;
+
     /** The authorization tokens. */
     private Hashtable<String, AuthenticationToken> authenticationTokens = new Hashtable<String, AuthenticationToken>();
 
@@ -257,9 +260,14 @@ public class CordovaWebViewClient extends WebViewClient {
      */
     @Override
     public void onPageStarted(WebView view, String url, Bitmap favicon) {
+        long traceStart = Trace.begin();
+        this.pageLoadTraceStart = traceStart;
 
         // Flush stale messages.
         this.appView.jsMessageQueue.reset();
+        if (this.appView.bridgeModeCalibrator != null) {
+            this.appView.bridgeModeCalibrator.onPageReset();
+        }
 
         // Broadcast message that page has loaded
         this.appView.postMessage("onPageStarted", url);
@@ -268,6 +276,7 @@ public class CordovaWebViewClient extends WebViewClient {
         if (this.appView.pluginManager != null) {
             this.appView.pluginManager.onReset();
         }
+        Trace.end(Trace.CATEGORY_LIFECYCLE, "onPageStarted", traceStart, url);
     }
 
     /**
@@ -282,6 +291,7 @@ public class CordovaWebViewClient extends WebViewClient {
     public void onPageFinished(WebView view, String url) {
         super.onPageFinished(view, url);
         LOG.d(TAG, "onPageFinished(" + url + ")");
+        long traceStart = Trace.begin();
 
         /**
          * Because of a timing issue we need to clear this history in onPageFinished as well as
@@ -322,6 +332,9 @@ public class CordovaWebViewClient extends WebViewClient {
         if (url.equals("about:blank")) {
             appView.postMessage("exit", null);
         }
+        Trace.end(Trace.CATEGORY_LIFECYCLE, "onPageFinished", traceStart, url);
+        Trace.end(Trace.CATEGORY_LIFECYCLE, "pageLoad", this.pageLoadTraceStart, url);
+        this.pageLoadTraceStart = 0;
     }
 
     /**
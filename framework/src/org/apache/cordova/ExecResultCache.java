@@ -0,0 +1,158 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Remembers the final results of plugin actions that always return the same
+ * value for the same arguments, so that repeat exec() calls can be answered
+ * without calling into the plugin.
+ *
+ * Actions opt in through a param of their feature in config.xml. The value is
+ * a comma-separated list of actions, each with an optional time-to-live in
+ * milliseconds (no TTL means the result is kept for the life of the process):
+ *
+ *      <feature name="Device">
+ *          <param name="android-package" value="org.apache.cordova.device.Device" />
+ *          <param name="memoize" value="getDeviceInfo, getConnectionInfo:5000" />
+ *      </feature>
+ *
+ * Only OK results that do not keep the callback are cached. The cache holds
+ * at most maxEntries results and evicts the least recently used one first,
+ * and is cleared whenever the app navigates or refreshes.
+ */
+public class ExecResultCache {
+    private static final String LOG_TAG = "ExecResultCache";
+
+    // Maps "service.action" to the TTL in milliseconds, or 0 for no expiry.
+    private final HashMap<String, Long> ttls = new HashMap<String, Long>();
+    private final LinkedHashMap<String, CachedResult> results;
+
+    private int hitCount;
+    private int missCount;
+
+    ExecResultCache(final int maxEntries) {
+        results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Parses the value of a feature's "memoize" param.
+     */
+    synchronized void addRules(String service, String spec) {
+        for (String rule : spec.split(",")) {
+            rule = rule.trim();
+            if (rule.length() == 0) {
+                continue;
+            }
+            long ttl = 0;
+            int colon = rule.indexOf(':');
+            if (colon != -1) {
+                try {
+                    ttl = Long.parseLong(rule.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    Log.w(LOG_TAG, "Ignoring invalid memoize TTL for " + service + ": " + rule);
+                    continue;
+                }
+                rule = rule.substring(0, colon).trim();
+            }
+            ttls.put(service + "." + rule, ttl);
+        }
+    }
+
+    synchronized boolean isMemoized(String service, String action) {
+        return ttls.containsKey(service + "." + action);
+    }
+
+    /**
+     * Returns the cached result for the call, or null if there is none or it has expired.
+     */
+    synchronized PluginResult get(String service, String action, String rawArgs) {
+        if (!isMemoized(service, action)) {
+            return null;
+        }
+        String key = createKey(service, action, rawArgs);
+        CachedResult cached = results.get(key);
+        if (cached != null && cached.expiryTime != 0 && cached.expiryTime <= System.currentTimeMillis()) {
+            results.remove(key);
+            cached = null;
+        }
+        if (cached == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return cached.result;
+    }
+
+    synchronized void put(String service, String action, String rawArgs, PluginResult result) {
+        Long ttl = ttls.get(service + "." + action);
+        if (ttl == null || result.getKeepCallback() || result.getStatus() != PluginResult.Status.OK.ordinal()) {
+            return;
+        }
+        long expiryTime = ttl == 0 ? 0 : System.currentTimeMillis() + ttl;
+        results.put(createKey(service, action, rawArgs), new CachedResult(result, expiryTime));
+    }
+
+    /**
+     * Discards all cached results. The rules from config.xml are kept.
+     */
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    /**
+     * Returns the number of exec() calls answered from the cache.
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of calls to memoized actions that had to go to the plugin.
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    private static String createKey(String service, String action, String rawArgs) {
+        return service + '\0' + action + '\0' + rawArgs;
+    }
+
+    private static class CachedResult {
+        final PluginResult result;
+        final long expiryTime;
+
+        CachedResult(PluginResult result, long expiryTime) {
+            this.result = result;
+            this.expiryTime = expiryTime;
+        }
+    }
+}
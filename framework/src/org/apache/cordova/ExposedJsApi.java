@@ -45,6 +45,7 @@ import org.json.JSONException;
             return "@Null arguments.";
         }
 
+        long traceStart = Trace.begin();
         jsMessageQueue.setPaused(true);
         try {
             // Tell the resourceApi what thread the JS is running on.
@@ -52,7 +53,9 @@ import org.json.JSONException;
             
             pluginManager.exec(service, action, callbackId, arguments);
             String ret = "";
-            if (!NativeToJsMessageQueue.DISABLE_EXEC_CHAINING) {
+            // Calibration probes have to come back through the bridge mode being
+            // measured, so don't hand them the next probe as a return value.
+            if (!NativeToJsMessageQueue.DISABLE_EXEC_CHAINING && !BridgeModeCalibrator.isProbe(service, action)) {
                 ret = jsMessageQueue.popAndEncode(false);
             }
             return ret;
@@ -61,6 +64,7 @@ import org.json.JSONException;
             return "";
         } finally {
             jsMessageQueue.setPaused(false);
+            Trace.end(Trace.CATEGORY_BRIDGE, "exec", traceStart, service, action);
         }
     }
     
@@ -46,6 +46,7 @@ public class IceCreamCordovaWebViewClient extends CordovaWebViewClient {
 
     @Override
     public WebResourceResponse shouldInterceptRequest(WebView view, String url) {
+        long traceStart = Trace.begin();
         try {
             // Check the against the white-list.
             if ((url.startsWith("http:") || url.startsWith("https:")) && !Config.isUrlWhiteListed(url)) {
@@ -71,6 +72,8 @@ public class IceCreamCordovaWebViewClient extends CordovaWebViewClient {
             }
             // Results in a 404.
             return new WebResourceResponse("text/plain", "UTF-8", null);
+        } finally {
+            Trace.end(Trace.CATEGORY_RESOURCE, "interceptRequest", traceStart, url);
         }
     }
 
@@ -36,7 +36,7 @@ public class NativeToJsMessageQueue {
     private static final String LOG_TAG = "JsMessageQueue";
 
     // This must match the default value in incubator-cordova-js/lib/android/exec.js
-    private static final int DEFAULT_BRIDGE_MODE = 2;
+    static final int DEFAULT_BRIDGE_MODE = 2;
     
     // Set this to true to force plugin results to be encoding as
     // JS instead of the custom format (useful for benchmarking).
@@ -110,6 +110,20 @@ public class NativeToJsMessageQueue {
         }
     }
     
+    /**
+     * Returns the index of the active bridge mode.
+     */
+    public int getBridgeMode() {
+        return activeListenerIndex;
+    }
+
+    /**
+     * Returns the number of registered bridge modes (including polling).
+     */
+    int getBridgeModeCount() {
+        return registeredListeners.length;
+    }
+
     /**
      * Clears all messages and resets to the default bridge mode.
      */
@@ -139,8 +153,11 @@ public class NativeToJsMessageQueue {
      * Returns null if the queue is empty.
      */
     public String popAndEncode(boolean fromOnlineEvent) {
+        long traceStart = Trace.begin();
         synchronized (this) {
-            registeredListeners[activeListenerIndex].notifyOfFlush(fromOnlineEvent);
+            if (registeredListeners[activeListenerIndex] != null) {
+                registeredListeners[activeListenerIndex].notifyOfFlush(fromOnlineEvent);
+            }
             if (queue.isEmpty()) {
                 return null;
             }
@@ -166,6 +183,7 @@ public class NativeToJsMessageQueue {
                 sb.append('*');
             }
             String ret = sb.toString();
+            Trace.end(Trace.CATEGORY_QUEUE, "flush", traceStart);
             return ret;
         }
     }
@@ -174,6 +192,7 @@ public class NativeToJsMessageQueue {
      * Same as popAndEncode(), except encodes in a form that can be executed as JS.
      */
     private String popAndEncodeAsJs() {
+        long traceStart = Trace.begin();
         synchronized (this) {
             int length = queue.size();
             if (length == 0) {
@@ -210,6 +229,7 @@ public class NativeToJsMessageQueue {
                 sb.append('}');
             }
             String ret = sb.toString();
+            Trace.end(Trace.CATEGORY_QUEUE, "flushAsJs", traceStart);
             return ret;
         }
     }   
@@ -247,12 +267,14 @@ public class NativeToJsMessageQueue {
     }
     
     private void enqueueMessage(JsMessage message) {
+        long traceStart = Trace.begin();
         synchronized (this) {
             queue.add(message);
             if (!paused && registeredListeners[activeListenerIndex] != null) {
                 registeredListeners[activeListenerIndex].onNativeToJsMessageAvailable();
             }
         }        
+        Trace.end(Trace.CATEGORY_QUEUE, "enqueue", traceStart);
     }
     
     public void setPaused(boolean value) {
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cordova.CordovaArgs;
@@ -66,6 +67,12 @@ public class PluginManager {
 
     private AtomicInteger numPendingUiExecs;
 
+    // Results of actions marked with a "memoize" param in config.xml
+    private final ExecResultCache resultCache;
+
+    // Tracks callbacks that have not finished yet
+    private final CallbackRegistry callbackRegistry;
+
     /**
      * Constructor.
      *
@@ -77,6 +84,21 @@ public class PluginManager {
         this.app = app;
         this.firstRun = true;
         this.numPendingUiExecs = new AtomicInteger(0);
+        this.resultCache = new ExecResultCache(getIntegerProperty("ExecResultCacheSize", 100));
+        this.callbackRegistry = new CallbackRegistry(1000L * getIntegerProperty("CallbackReportInterval", 0));
+    }
+
+    private int getIntegerProperty(String name, int defaultValue) {
+        String value = app.getProperty(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignoring invalid value for preference " + name + ": " + value);
+            return defaultValue;
+        }
     }
 
     /**
@@ -140,6 +162,10 @@ public class PluginManager {
                         pluginClass = xml.getAttributeValue(null,"value");
                     else if (paramType.equals("onload"))
                         onload = "true".equals(xml.getAttributeValue(null, "value"));
+                    else if (paramType.equals("memoize"))
+                        resultCache.addRules(service, xml.getAttributeValue(null, "value"));
+                    else if (paramType.equals("deadline"))
+                        callbackRegistry.addDeadlines(service, xml.getAttributeValue(null, "value"));
                 }
             }
             else if (eventType == XmlResourceParser.END_TAG)
@@ -218,6 +244,12 @@ public class PluginManager {
     }
 
     private void execHelper(final String service, final String action, final String callbackId, final String rawArgs) {
+        // Answer from the cache without involving the plugin when possible.
+        PluginResult cachedResult = resultCache.get(service, action, rawArgs);
+        if (cachedResult != null) {
+            app.sendPluginResult(cachedResult, callbackId);
+            return;
+        }
         CordovaPlugin plugin = getPlugin(service);
         if (plugin == null) {
             Log.d(TAG, "exec() call to unknown plugin: " + service);
@@ -225,10 +257,19 @@ public class PluginManager {
             app.sendPluginResult(cr, callbackId);
             return;
         }
+        CallbackContext callbackContext;
+        if (resultCache.isMemoized(service, action)) {
+            callbackContext = new MemoizingCallbackContext(callbackId, service, action, rawArgs);
+        } else {
+            callbackContext = new CallbackContext(callbackId, app);
+        }
+        String previousService = CordovaThreadPool.setCurrentService(service);
         try {
-            CallbackContext callbackContext = new CallbackContext(callbackId, app);
+            callbackRegistry.register(callbackContext, service, action);
             long pluginStartTime = System.currentTimeMillis();
+            long traceStart = Trace.begin();
             boolean wasValidAction = plugin.execute(action, rawArgs, callbackContext);
+            Trace.end(Trace.CATEGORY_PLUGIN, "execute", traceStart, service, action);
             long duration = System.currentTimeMillis() - pluginStartTime;
             
             if (duration > SLOW_EXEC_WARNING_THRESHOLD) {
@@ -241,6 +282,15 @@ public class PluginManager {
         } catch (JSONException e) {
             PluginResult cr = new PluginResult(PluginResult.Status.JSON_EXCEPTION);
             app.sendPluginResult(cr, callbackId);
+        } catch (RejectedExecutionException e) {
+            // The thread pool is saturated. Fail the call rather than letting
+            // the exception reach the WebView's thread.
+            Log.w(TAG, "exec() call to " + service + "." + action + " could not be scheduled: " + e.getMessage());
+            if (!callbackContext.isFinished()) {
+                callbackContext.error("Thread pool is saturated");
+            }
+        } finally {
+            CordovaThreadPool.setCurrentService(previousService);
         }
     }
 
@@ -269,6 +319,20 @@ public class PluginManager {
         return plugin;
     }
 
+    /**
+     * Get the registry of callbacks that have not finished yet.
+     */
+    public CallbackRegistry getCallbackRegistry() {
+        return callbackRegistry;
+    }
+
+    /**
+     * Get the cache of results of memoized actions.
+     */
+    public ExecResultCache getResultCache() {
+        return resultCache;
+    }
+
     /**
      * Add a plugin class that implements a service to the service entry table.
      * This does not create the plugin object instance.
@@ -326,6 +390,7 @@ public class PluginManager {
                 entry.plugin.onDestroy();
             }
         }
+        callbackRegistry.shutdown();
     }
 
     /**
@@ -383,6 +448,8 @@ public class PluginManager {
      * Called when the app navigates or refreshes.
      */
     public void onReset() {
+        callbackRegistry.clear();
+        resultCache.clear();
         Iterator<PluginEntry> it = this.entries.values().iterator();
         while (it.hasNext()) {
             CordovaPlugin plugin = it.next().plugin;
@@ -412,6 +479,31 @@ public class PluginManager {
         return null;
     }
 
+    /**
+     * Stores the final result of a memoized action in the resultCache.
+     */
+    private class MemoizingCallbackContext extends CallbackContext {
+        private final String service;
+        private final String action;
+        private final String rawArgs;
+
+        MemoizingCallbackContext(String callbackId, String service, String action, String rawArgs) {
+            super(callbackId, app);
+            this.service = service;
+            this.action = action;
+            this.rawArgs = rawArgs;
+        }
+
+        @Override
+        public void sendPluginResult(PluginResult pluginResult) {
+            boolean wasFinished = isFinished();
+            super.sendPluginResult(pluginResult);
+            if (!wasFinished && isFinished()) {
+                resultCache.put(service, action, rawArgs, pluginResult);
+            }
+        }
+    }
+
     private class PluginManagerService extends CordovaPlugin {
         @Override
         public boolean execute(String action, CordovaArgs args, final CallbackContext callbackContext) throws JSONException {
@@ -425,10 +517,21 @@ public class PluginManager {
                 numPendingUiExecs.getAndIncrement();
                 ctx.getActivity().runOnUiThread(new Runnable() {
                     public void run() {
+                        // Also after onPageStarted, so that resetting the queue can't drop the
+                        // mode switch this sends or cancel the calibration it starts.
+                        if (app.bridgeModeCalibrator != null) {
+                            app.bridgeModeCalibrator.onBridgeStartup();
+                        }
                         numPendingUiExecs.getAndDecrement();
                     }
                 });
                 return true;
+            } else if ("bridgeProbe".equals(action)) {
+                // Round-trip probes sent by the BridgeModeCalibrator.
+                if (app.bridgeModeCalibrator != null) {
+                    app.bridgeModeCalibrator.onProbeReceived(args.getInt(0));
+                }
+                return true;
             }
             return false;
         }
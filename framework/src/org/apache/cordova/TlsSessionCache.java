@@ -0,0 +1,126 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+import android.net.SSLCertificateSocketFactory;
+import android.net.SSLSessionCache;
+
+/**
+ * An SSLSocketFactory whose TLS sessions outlive the process, so that the
+ * first HTTPS connection to a host after a cold start can resume a session
+ * instead of doing a full handshake.
+ *
+ * Sessions are stored by the platform's SSLSessionCache, which keeps the most
+ * recently used sessions for each host:port in the app's private storage and
+ * reads them back on demand. Every handshake made through this factory is
+ * counted as either resumed or full.
+ */
+public class TlsSessionCache extends SSLSocketFactory {
+    private final SSLSocketFactory delegate;
+    private final AtomicInteger resumedCount = new AtomicInteger();
+    private final AtomicInteger fullCount = new AtomicInteger();
+
+    public TlsSessionCache(Context context) {
+        // A handshake timeout of 0 leaves it to the socket's read timeout, as
+        // with the default factory.
+        delegate = SSLCertificateSocketFactory.getDefault(0, new SSLSessionCache(context));
+    }
+
+    /**
+     * Returns the number of handshakes that resumed an earlier session.
+     */
+    public int getResumedHandshakeCount() {
+        return resumedCount.get();
+    }
+
+    /**
+     * Returns the number of handshakes that negotiated a new session.
+     */
+    public int getFullHandshakeCount() {
+        return fullCount.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return track(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+
+    private Socket track(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            // A resumed session was created before the socket that resumed it.
+            final long createdAt = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    if (event.getSession().getCreationTime() < createdAt) {
+                        resumedCount.incrementAndGet();
+                    } else {
+                        fullCount.incrementAndGet();
+                    }
+                }
+            });
+        }
+        return socket;
+    }
+}
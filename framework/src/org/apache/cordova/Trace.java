@@ -0,0 +1,201 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+
+/**
+ * Records timed spans of bridge and page lifecycle work into a fixed-size
+ * ring buffer, and exports them as Chrome trace-event JSON (load the file
+ * in chrome://tracing).
+ *
+ * Tracing is off unless <preference name="TraceBufferSize" value="..."/> is
+ * set. While it is off, begin() returns 0 and end() returns immediately, so
+ * a traced call site costs one volatile read:
+ *
+ *      long traceStart = Trace.begin();
+ *      ...
+ *      Trace.end(Trace.CATEGORY_BRIDGE, "exec", traceStart, service, action);
+ */
+public class Trace {
+    public static final String CATEGORY_BRIDGE = "bridge";
+    public static final String CATEGORY_PLUGIN = "plugin";
+    public static final String CATEGORY_QUEUE = "queue";
+    public static final String CATEGORY_RESOURCE = "resource";
+    public static final String CATEGORY_LIFECYCLE = "lifecycle";
+
+    private static volatile RingBuffer buffer;
+
+    /**
+     * Starts recording, keeping the most recent maxEvents spans.
+     */
+    public static synchronized void enable(int maxEvents) {
+        if (buffer == null || buffer.capacity != maxEvents) {
+            buffer = new RingBuffer(maxEvents);
+        }
+    }
+
+    /**
+     * Stops recording and discards recorded spans.
+     */
+    public static synchronized void disable() {
+        buffer = null;
+    }
+
+    public static boolean isEnabled() {
+        return buffer != null;
+    }
+
+    /**
+     * Returns the start time to pass to end(), or 0 when tracing is off.
+     */
+    public static long begin() {
+        return buffer == null ? 0 : System.nanoTime();
+    }
+
+    public static void end(String category, String name, long startTime) {
+        end(category, name, startTime, null, null);
+    }
+
+    public static void end(String category, String name, long startTime, String detail) {
+        end(category, name, startTime, detail, null);
+    }
+
+    /**
+     * Records a span from startTime until now. The two detail strings are
+     * joined with a '.' in the exported trace (e.g. service and action).
+     */
+    public static void end(String category, String name, long startTime, String detail, String subDetail) {
+        if (startTime == 0) {
+            return;
+        }
+        RingBuffer b = buffer;
+        if (b != null) {
+            b.add(category, name, startTime, System.nanoTime() - startTime, detail, subDetail);
+        }
+    }
+
+    /**
+     * Writes the recorded spans to a new file in the given directory and
+     * returns it.
+     */
+    public static File export(File dir) throws IOException {
+        RingBuffer b = buffer;
+        if (b == null) {
+            throw new IllegalStateException("Tracing is not enabled.");
+        }
+        File file = new File(dir, "cordova-trace-" + System.currentTimeMillis() + ".json");
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            b.writeTo(writer, android.os.Process.myPid());
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes the recorded spans as trace-event JSON, attributed to the given
+     * process id.
+     */
+    static void writeTo(Writer writer, int pid) throws IOException {
+        RingBuffer b = buffer;
+        if (b == null) {
+            throw new IllegalStateException("Tracing is not enabled.");
+        }
+        b.writeTo(writer, pid);
+    }
+
+    private static class RingBuffer {
+        final int capacity;
+        final String[] categories;
+        final String[] names;
+        final String[] details;
+        final String[] subDetails;
+        final long[] startTimes;
+        final long[] durations;
+        final long[] threadIds;
+        final String[] threadNames;
+        int next;
+        int size;
+
+        RingBuffer(int capacity) {
+            this.capacity = capacity;
+            categories = new String[capacity];
+            names = new String[capacity];
+            details = new String[capacity];
+            subDetails = new String[capacity];
+            startTimes = new long[capacity];
+            durations = new long[capacity];
+            threadIds = new long[capacity];
+            threadNames = new String[capacity];
+        }
+
+        synchronized void add(String category, String name, long startTime, long duration, String detail, String subDetail) {
+            Thread thread = Thread.currentThread();
+            categories[next] = category;
+            names[next] = name;
+            details[next] = detail;
+            subDetails[next] = subDetail;
+            startTimes[next] = startTime;
+            durations[next] = duration;
+            threadIds[next] = thread.getId();
+            threadNames[next] = thread.getName();
+            next = (next + 1) % capacity;
+            if (size < capacity) {
+                size++;
+            }
+        }
+
+        synchronized void writeTo(Writer writer, int pid) throws IOException {
+            Map<Long, String> threads = new HashMap<Long, String>();
+            writer.write("{\"traceEvents\":[");
+            int first = (next - size + capacity) % capacity;
+            for (int n = 0; n < size; ++n) {
+                int i = (first + n) % capacity;
+                threads.put(threadIds[i], threadNames[i]);
+                if (n > 0) {
+                    writer.write(',');
+                }
+                writer.write("{\"ph\":\"X\",\"cat\":\"" + categories[i] + "\",\"name\":\"" + names[i]
+                        + "\",\"ts\":" + (startTimes[i] / 1000) + ",\"dur\":" + (durations[i] / 1000)
+                        + ",\"pid\":" + pid + ",\"tid\":" + threadIds[i]);
+                if (details[i] != null) {
+                    String detail = subDetails[i] == null ? details[i] : details[i] + "." + subDetails[i];
+                    writer.write(",\"args\":{\"detail\":" + JSONObject.quote(detail) + "}");
+                }
+                writer.write('}');
+            }
+            for (Map.Entry<Long, String> thread : threads.entrySet()) {
+                writer.write(size > 0 ? "," : "");
+                writer.write("{\"ph\":\"M\",\"name\":\"thread_name\",\"pid\":" + pid + ",\"tid\":" + thread.getKey()
+                        + ",\"args\":{\"name\":" + JSONObject.quote(thread.getValue()) + "}}");
+            }
+            writer.write("]}");
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class ConnectionPoolTest {
+  private final List<Socket> accepted = new ArrayList<Socket>();
+  private ServerSocket server;
+  private Address addressA;
+  private Address addressB;
+  private final RecordingExecutor cleanupExecutor = new RecordingExecutor();
+
+  @Before public void setUp() throws Exception {
+    server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread("ConnectionPoolTest acceptor") {
+      @Override public void run() {
+        try {
+          while (true) {
+            Socket socket = server.accept();
+            synchronized (accepted) {
+              accepted.add(socket);
+            }
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    acceptor.setDaemon(true);
+    acceptor.start();
+    addressA = new Address("a.example", server.getLocalPort(), null, null, null);
+    addressB = new Address("b.example", server.getLocalPort(), null, null, null);
+  }
+
+  @After public void tearDown() throws Exception {
+    server.close();
+    synchronized (accepted) {
+      for (Socket socket : accepted) {
+        socket.close();
+      }
+    }
+  }
+
+  @Test public void getReturnsRecycledConnectionForItsAddressOnly() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 60 * 1000);
+    Connection connection = connect(addressA);
+    pool.recycle(connection);
+    assertEquals(1, pool.getConnectionCount());
+    assertEquals(1, pool.getConnectionCount(addressA));
+    assertEquals(0, pool.getConnectionCount(addressB));
+
+    assertNull(pool.get(addressB));
+    assertSame(connection, pool.get(addressA));
+    assertNull(pool.get(addressA));
+    assertEquals(0, pool.getConnectionCount());
+  }
+
+  @Test public void getPrefersMostRecentlyRecycled() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 60 * 1000);
+    Connection older = connect(addressA);
+    Connection newer = connect(addressA);
+    pool.recycle(older);
+    pool.recycle(newer);
+    assertSame(newer, pool.get(addressA));
+    assertSame(older, pool.get(addressA));
+  }
+
+  @Test public void getSkipsClosedConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 60 * 1000);
+    Connection alive = connect(addressA);
+    Connection closed = connect(addressA);
+    pool.recycle(alive);
+    pool.recycle(closed);
+    closed.close();
+    assertSame(alive, pool.get(addressA));
+    assertEquals(0, pool.getConnectionCount());
+  }
+
+  @Test public void recycleClosesDeadConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 60 * 1000);
+    Connection connection = connect(addressA);
+    connection.close();
+    pool.recycle(connection);
+    assertEquals(0, pool.getConnectionCount());
+  }
+
+  @Test public void recycleSchedulesCleanup() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 60 * 1000, cleanupExecutor);
+    pool.recycle(connect(addressA));
+    pool.recycle(connect(addressB));
+    // The cleanup runnable stays scheduled until the pool is empty.
+    assertEquals(1, cleanupExecutor.scheduled.size());
+  }
+
+  @Test public void cleanupEvictsOldestBeyondMaxIdle() throws Exception {
+    ConnectionPool pool = new ConnectionPool(2, 60 * 1000, cleanupExecutor);
+    Connection first = connect(addressA);
+    Connection second = connect(addressB);
+    Connection third = connect(addressA);
+    pool.recycle(first);
+    pool.recycle(second);
+    pool.recycle(third);
+    assertEquals(3, pool.getConnectionCount());
+
+    assertTrue(pool.cleanup(System.nanoTime()) > 0);
+    assertEquals(2, pool.getConnectionCount());
+    assertFalse(first.isAlive());
+    assertTrue(second.isAlive());
+    assertTrue(third.isAlive());
+  }
+
+  @Test public void cleanupEvictsExpiredConnections() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 1, cleanupExecutor);
+    Connection connection = connect(addressA);
+    pool.recycle(connection);
+    assertEquals(1, pool.getConnectionCount());
+
+    Thread.sleep(2); // Outlive the 1 ms keep alive.
+    assertEquals(-1, pool.cleanup(System.nanoTime()));
+    assertEquals(0, pool.getConnectionCount());
+    assertFalse(connection.isAlive());
+    assertNull(pool.get(addressA));
+  }
+
+  @Test public void poolIsReusableAfterCleanupEmptiesIt() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 1, cleanupExecutor);
+    pool.recycle(connect(addressA));
+    Thread.sleep(2); // Outlive the 1 ms keep alive.
+    assertEquals(-1, pool.cleanup(System.nanoTime()));
+
+    Connection connection = connect(addressA);
+    pool.recycle(connection);
+    assertSame(connection, pool.get(addressA));
+  }
+
+  @Test public void evictAll() throws Exception {
+    ConnectionPool pool = new ConnectionPool(5, 60 * 1000);
+    Connection a = connect(addressA);
+    Connection b = connect(addressB);
+    pool.recycle(a);
+    pool.recycle(b);
+    pool.evictAll();
+    assertEquals(0, pool.getConnectionCount());
+    assertFalse(a.isAlive());
+    assertFalse(b.isAlive());
+    assertNull(pool.get(addressA));
+  }
+
+  private Connection connect(Address address) throws IOException {
+    Route route = new Route(address, Proxy.NO_PROXY,
+        new InetSocketAddress(server.getInetAddress(), server.getLocalPort()), true);
+    Connection connection = new Connection(route);
+    connection.connect(1000, 1000, null);
+    return connection;
+  }
+
+  /** Holds the pool's cleanup runnable so tests can run cleanup on their own thread. */
+  static final class RecordingExecutor implements Executor {
+    final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+    @Override public void execute(Runnable command) {
+      scheduled.add(command);
+    }
+  }
+}
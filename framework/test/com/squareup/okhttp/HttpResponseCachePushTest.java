@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.CachingPushHandler;
+import com.squareup.okhttp.internal.spdy.IncomingStreamHandler;
+import com.squareup.okhttp.internal.spdy.PushWriter;
+import com.squareup.okhttp.internal.spdy.SpdyConnection;
+import com.squareup.okhttp.internal.spdy.SpdyStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CacheResponse;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests responses pushed on a SPDY connection being stored by {@link CachingPushHandler}. */
+public final class HttpResponseCachePushTest {
+  private static final Map<String, List<String>> NO_HEADERS = Collections.emptyMap();
+
+  private File directory;
+  private HttpResponseCache cache;
+  private ServerSocket serverSocket;
+  private Socket server;
+  private SpdyConnection client;
+  private CachingPushHandler pushHandler;
+  private PushWriter pushWriter;
+  private final Semaphore pushesHandled = new Semaphore(0);
+  private int nextStreamId = 2;
+
+  @Before public void setUp() throws Exception {
+    directory = File.createTempFile("HttpResponseCachePushTest", "");
+    directory.delete();
+    cache = new HttpResponseCache(directory, Integer.MAX_VALUE);
+    pushHandler = new CachingPushHandler("example.com", 80, null);
+    pushHandler.setResponseCache(cache.okResponseCache);
+
+    serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+    server = serverSocket.accept();
+    client = new SpdyConnection.Builder("example.com", true, socket)
+        .handler(new IncomingStreamHandler() {
+          @Override public void receive(SpdyStream stream) throws IOException {
+            try {
+              pushHandler.receive(stream);
+            } finally {
+              pushesHandled.release();
+            }
+          }
+        })
+        .build();
+    pushWriter = new PushWriter(server.getOutputStream());
+  }
+
+  @After public void tearDown() throws Exception {
+    client.close();
+    server.close();
+    serverSocket.close();
+    cache.delete();
+  }
+
+  @Test public void cacheablePushIsStored() throws Exception {
+    push("example.com", "/a.js", "max-age=600");
+    assertEquals(1, cache.getPushCount());
+    assertEquals(1, pushHandler.getAcceptedCount());
+    assertEquals("body", get("http://example.com/a.js"));
+  }
+
+  @Test public void pushHitIsCountedOnce() throws Exception {
+    push("example.com", "/a.js", "max-age=600");
+    push("example.com", "/b.js", "max-age=600");
+    assertEquals(0, cache.getPushHitCount());
+    get("http://example.com/a.js");
+    assertEquals(1, cache.getPushHitCount());
+    get("http://example.com/a.js");
+    assertEquals(1, cache.getPushHitCount());
+  }
+
+  @Test public void pushDoesNotReplaceCachedResponse() throws Exception {
+    push("example.com", "/a.js", "max-age=600");
+    push("example.com", "/a.js", "max-age=600", "replacement".getBytes("UTF-8"));
+    assertEquals("body", get("http://example.com/a.js"));
+    assertEquals(1, cache.getPushCount());
+  }
+
+  @Test public void uncacheablePushIsRejected() throws Exception {
+    push("example.com", "/a.js", "no-store");
+    assertNull(cache.get(new URI("http://example.com/a.js"), "GET", NO_HEADERS));
+    assertEquals(0, cache.getPushCount());
+    assertEquals(1, cache.getPushRejectCount());
+    assertEquals(1, pushHandler.getRejectedCount());
+  }
+
+  @Test public void pushForOtherOriginIsRejected() throws Exception {
+    push("evil.com", "/a.js", "max-age=600");
+    push("example.com:8080", "/a.js", "max-age=600");
+    assertNull(cache.get(new URI("http://evil.com/a.js"), "GET", NO_HEADERS));
+    assertNull(cache.get(new URI("http://example.com:8080/a.js"), "GET", NO_HEADERS));
+    assertEquals(0, cache.getPushCount());
+    assertEquals(2, pushHandler.getRejectedCount());
+  }
+
+  @Test public void pushWithOriginPortIsStored() throws Exception {
+    push("example.com:80", "/a.js", "max-age=600");
+    assertEquals("body", get("http://example.com/a.js"));
+  }
+
+  @Test public void securePushOnInsecureConnectionIsRejected() throws Exception {
+    List<String> headers = pushHeaders("example.com", "/a.js", "max-age=600");
+    headers.set(1, "https");
+    push(headers, "body".getBytes("UTF-8"));
+    assertNull(cache.get(new URI("https://example.com/a.js"), "GET", NO_HEADERS));
+    assertEquals(1, pushHandler.getRejectedCount());
+  }
+
+  @Test public void pushWithVaryIsRejected() throws Exception {
+    List<String> headers = pushHeaders("example.com", "/a.js", "max-age=600");
+    headers.addAll(Arrays.asList("vary", "accept-encoding"));
+    push(headers, "body".getBytes("UTF-8"));
+    assertNull(cache.get(new URI("http://example.com/a.js"), "GET", NO_HEADERS));
+    assertEquals(1, cache.getPushRejectCount());
+  }
+
+  @Test public void pushesPerConnectionAreLimited() throws Exception {
+    for (int i = 0; i < 40; i++) {
+      push("example.com", "/" + i, "max-age=600");
+    }
+    // CachingPushHandler.MAX_PUSHES_PER_CONNECTION.
+    assertEquals(32, pushHandler.getAcceptedCount());
+    assertEquals(8, pushHandler.getRejectedCount());
+    assertEquals(32, cache.getPushCount());
+    assertEquals("body", get("http://example.com/31"));
+    assertNull(cache.get(new URI("http://example.com/32"), "GET", NO_HEADERS));
+  }
+
+  @Test public void statusInLaterHeadersFrame() throws Exception {
+    int streamId = nextStreamId;
+    nextStreamId += 2;
+    pushWriter.synStream(streamId, new ArrayList<String>(Arrays.asList(
+        ":scheme", "http", ":host", "example.com", ":path", "/a.js")));
+    pushWriter.headers(streamId, Arrays.asList(":status", "200", ":version", "HTTP/1.1",
+        "cache-control", "max-age=600"));
+    pushWriter.data(streamId, "body".getBytes("UTF-8"), true);
+    awaitPushHandled();
+    assertEquals(1, cache.getPushCount());
+    assertEquals("body", get("http://example.com/a.js"));
+  }
+
+  private void push(String host, String path, String cacheControl) throws Exception {
+    push(host, path, cacheControl, "body".getBytes("UTF-8"));
+  }
+
+  private void push(String host, String path, String cacheControl, byte[] body)
+      throws Exception {
+    push(pushHeaders(host, path, cacheControl), body);
+  }
+
+  /** Pushes a stream and waits for the client to handle it. */
+  private void push(List<String> headers, byte[] body) throws Exception {
+    int streamId = nextStreamId;
+    nextStreamId += 2;
+    pushWriter.synStream(streamId, headers);
+    pushWriter.data(streamId, body, true);
+    awaitPushHandled();
+  }
+
+  private void awaitPushHandled() throws InterruptedException {
+    assertTrue(pushesHandled.tryAcquire(5, TimeUnit.SECONDS));
+  }
+
+  private List<String> pushHeaders(String host, String path, String cacheControl) {
+    return new ArrayList<String>(Arrays.asList(":scheme", "http", ":host", host, ":path", path,
+        ":status", "200", ":version", "HTTP/1.1", "cache-control", cacheControl));
+  }
+
+  private String get(String uri) throws Exception {
+    CacheResponse response = cache.get(new URI(uri), "GET", NO_HEADERS);
+    if (response == null) return null;
+    InputStream in = response.getBody();
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      for (int count; (count = in.read(buffer)) != -1; ) {
+        bytes.write(buffer, 0, count);
+      }
+      return bytes.toString("UTF-8");
+    } finally {
+      Util.closeQuietly(in);
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import com.squareup.okhttp.HostResolver;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class CachingDnsTest {
+  private final FakeResolver resolver = new FakeResolver();
+  private File file;
+
+  @Before public void setUp() throws Exception {
+    file = File.createTempFile("CachingDnsTest", "");
+    file.delete();
+  }
+
+  @After public void tearDown() throws Exception {
+    file.delete();
+  }
+
+  @Test public void parseIpv4() throws Exception {
+    assertArrayEquals(bytes(10, 0, 0, 1), CachingDns.parseNumericAddress("10.0.0.1"));
+    assertNull(CachingDns.parseNumericAddress("10.0.0"));
+    assertNull(CachingDns.parseNumericAddress("10.0.0.256"));
+    assertNull(CachingDns.parseNumericAddress("10.0..1"));
+    assertNull(CachingDns.parseNumericAddress("example.com"));
+  }
+
+  @Test public void parseIpv6() throws Exception {
+    assertArrayEquals(ipv6("::1"), CachingDns.parseNumericAddress("0:0:0:0:0:0:0:1"));
+    assertArrayEquals(ipv6("::1"), CachingDns.parseNumericAddress("::1"));
+    assertArrayEquals(ipv6("::"), CachingDns.parseNumericAddress("::"));
+    assertArrayEquals(ipv6("2001:db8::1"), CachingDns.parseNumericAddress("2001:db8::1"));
+    assertArrayEquals(ipv6("fe80::"), CachingDns.parseNumericAddress("fe80::"));
+    assertArrayEquals(ipv6("fe80::1"), CachingDns.parseNumericAddress("fe80::1%wlan0"));
+    assertArrayEquals(ipv6("::ffff:10.0.0.1"), CachingDns.parseNumericAddress("::ffff:10.0.0.1"));
+    assertNull(CachingDns.parseNumericAddress("1::2::3"));
+    assertNull(CachingDns.parseNumericAddress("1:2:3:4:5:6:7"));
+    assertNull(CachingDns.parseNumericAddress("1:2:3:4:5:6:7:8:9"));
+    assertNull(CachingDns.parseNumericAddress("1:2:3:4::5:6:7:8"));
+    assertNull(CachingDns.parseNumericAddress("12345::"));
+    assertNull(CachingDns.parseNumericAddress("10.0.0.1::"));
+    assertNull(CachingDns.parseNumericAddress("g::"));
+  }
+
+  @Test public void saveAndLoad() throws Exception {
+    resolver.addresses = new InetAddress[] {
+        address("a.com", 10, 0, 0, 1),
+        InetAddress.getByAddress("a.com", ipv6("2001:db8::1"))
+    };
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    dns.getAllByName("a.com");
+    dns.save(file);
+
+    resolver.addresses = null;
+    CachingDns loaded = new CachingDns(resolver, 60000, 0, 10);
+    loaded.load(file);
+    InetAddress[] addresses = loaded.getAllByName("a.com");
+    assertEquals(2, addresses.length);
+    assertArrayEquals(bytes(10, 0, 0, 1), addresses[0].getAddress());
+    assertArrayEquals(ipv6("2001:db8::1"), addresses[1].getAddress());
+    assertEquals("a.com", addresses[0].getHostName());
+    assertEquals(0, loaded.getMissCount());
+    assertEquals(1, loaded.getRefreshCount()); // Loaded results are refreshed on first use.
+  }
+
+  @Test public void loadCompressedIpv6() throws Exception {
+    write("a.com ::1 2001:db8::1 fe80::1%wlan0\nb.com 10.0.0.1\n");
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    dns.load(file);
+    InetAddress[] addresses = dns.getAllByName("a.com");
+    assertEquals(3, addresses.length);
+    assertArrayEquals(ipv6("::1"), addresses[0].getAddress());
+    assertArrayEquals(ipv6("2001:db8::1"), addresses[1].getAddress());
+    assertArrayEquals(ipv6("fe80::1"), addresses[2].getAddress());
+    assertArrayEquals(bytes(10, 0, 0, 1), dns.getAllByName("b.com")[0].getAddress());
+    assertEquals(0, dns.getMissCount());
+  }
+
+  @Test public void loadSkipsDamagedLines() throws Exception {
+    write("a.com 10.0.0.1 example.com\nb.com\nc.com 10.0.0.3\n");
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    dns.load(file);
+    assertArrayEquals(bytes(10, 0, 0, 3), dns.getAllByName("c.com")[0].getAddress());
+    assertEquals(0, dns.getMissCount());
+    resolver.addresses = new InetAddress[] { address("a.com", 10, 0, 0, 9) };
+    assertArrayEquals(bytes(10, 0, 0, 9), dns.getAllByName("a.com")[0].getAddress());
+    assertEquals(1, dns.getMissCount());
+  }
+
+  @Test public void loadDoesNotReplaceCachedHosts() throws Exception {
+    write("a.com 10.0.0.1\n");
+    resolver.addresses = new InetAddress[] { address("a.com", 10, 0, 0, 2) };
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    dns.getAllByName("a.com");
+    dns.load(file);
+    assertArrayEquals(bytes(10, 0, 0, 2), dns.getAllByName("a.com")[0].getAddress());
+  }
+
+  @Test public void concurrentLookupsShareOneDelegateCall() throws Exception {
+    resolver.addresses = new InetAddress[] { address("a.com", 10, 0, 0, 1) };
+    resolver.block = new CountDownLatch(1);
+    final CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    final InetAddress[][] results = new InetAddress[4][];
+    Thread[] threads = new Thread[results.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override public void run() {
+          try {
+            results[index] = dns.getAllByName("a.com");
+          } catch (UnknownHostException ignored) {
+          }
+        }
+      };
+      threads[i].start();
+    }
+    assertTrue(resolver.started.await(5, TimeUnit.SECONDS));
+    while (dns.getMissCount() < threads.length) {
+      Thread.yield(); // Let the other threads join the lookup in progress.
+    }
+    resolver.block.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, resolver.callCount.get());
+    for (InetAddress[] result : results) {
+      assertArrayEquals(bytes(10, 0, 0, 1), result[0].getAddress());
+    }
+    assertEquals(1, dns.getLookupCount());
+  }
+
+  @Test public void interruptedWaiterKeepsInterruptFlag() throws Exception {
+    resolver.addresses = new InetAddress[] { address("a.com", 10, 0, 0, 1) };
+    resolver.block = new CountDownLatch(1);
+    final CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    Thread owner = new Thread() {
+      @Override public void run() {
+        try {
+          dns.getAllByName("a.com");
+        } catch (UnknownHostException ignored) {
+        }
+      }
+    };
+    owner.start();
+    assertTrue(resolver.started.await(5, TimeUnit.SECONDS));
+
+    Thread.currentThread().interrupt();
+    try {
+      dns.getAllByName("a.com");
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+    assertTrue(Thread.interrupted());
+    resolver.block.countDown();
+    owner.join();
+  }
+
+  @Test public void failuresAreCachedForNegativeTtl() throws Exception {
+    CachingDns dns = new CachingDns(resolver, 60000, 60000, 10);
+    assertUnknownHost(dns, "a.com");
+    assertUnknownHost(dns, "a.com");
+    assertEquals(1, resolver.callCount.get());
+    assertEquals(1, dns.getFailedLookupCount());
+    assertEquals(1, dns.getHitCount());
+  }
+
+  @Test public void failuresExpireAfterNegativeTtl() throws Exception {
+    CachingDns dns = new CachingDns(resolver, 60000, 1, 10);
+    assertUnknownHost(dns, "a.com");
+    Thread.sleep(5);
+    resolver.addresses = new InetAddress[] { address("a.com", 10, 0, 0, 1) };
+    assertArrayEquals(bytes(10, 0, 0, 1), dns.getAllByName("a.com")[0].getAddress());
+    assertEquals(2, resolver.callCount.get());
+  }
+
+  @Test public void zeroNegativeTtlDoesNotCacheFailures() throws Exception {
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    assertUnknownHost(dns, "a.com");
+    assertUnknownHost(dns, "a.com");
+    assertEquals(2, resolver.callCount.get());
+  }
+
+  @Test public void failuresAreNotSaved() throws Exception {
+    CachingDns dns = new CachingDns(resolver, 60000, 60000, 10);
+    assertUnknownHost(dns, "a.com");
+    dns.save(file);
+    assertEquals(0, file.length());
+  }
+
+  @Test public void leastRecentlyUsedHostIsEvicted() throws Exception {
+    resolver.addresses = new InetAddress[] { address("x.com", 10, 0, 0, 1) };
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 2);
+    dns.getAllByName("a.com");
+    dns.getAllByName("b.com");
+    dns.getAllByName("a.com");
+    dns.getAllByName("c.com");
+    assertEquals(3, resolver.callCount.get());
+    dns.getAllByName("a.com");
+    assertEquals(3, resolver.callCount.get());
+    dns.getAllByName("b.com");
+    assertEquals(4, resolver.callCount.get());
+  }
+
+  @Test public void resultsAreDefensivelyCopied() throws Exception {
+    InetAddress address = address("a.com", 10, 0, 0, 1);
+    resolver.addresses = new InetAddress[] { address };
+    CachingDns dns = new CachingDns(resolver, 60000, 0, 10);
+    dns.getAllByName("a.com")[0] = null;
+    assertSame(address, dns.getAllByName("a.com")[0]);
+  }
+
+  private void assertUnknownHost(CachingDns dns, String host) {
+    try {
+      dns.getAllByName(host);
+      fail();
+    } catch (UnknownHostException expected) {
+    }
+  }
+
+  private void write(String contents) throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(file), "US-ASCII");
+    try {
+      writer.write(contents);
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static InetAddress address(String host, int... octets) throws UnknownHostException {
+    return InetAddress.getByAddress(host, bytes(octets));
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] result = new byte[values.length];
+    for (int i = 0; i < values.length; i++) {
+      result[i] = (byte) values[i];
+    }
+    return result;
+  }
+
+  /** Returns the bytes of an IPv6 literal, using the JDK's parser as the reference. */
+  private static byte[] ipv6(String literal) throws UnknownHostException {
+    byte[] result = new byte[16];
+    byte[] address = InetAddress.getByName(literal).getAddress();
+    System.arraycopy(address, 0, result, 16 - address.length, address.length);
+    if (address.length == 4) {
+      result[10] = (byte) 0xff; // The JDK returns IPv4-mapped addresses as IPv4.
+      result[11] = (byte) 0xff;
+    }
+    return result;
+  }
+
+  static class FakeResolver implements HostResolver {
+    final AtomicInteger callCount = new AtomicInteger();
+    final CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch block;
+    InetAddress[] addresses;
+
+    @Override public InetAddress[] getAllByName(String host) throws UnknownHostException {
+      callCount.incrementAndGet();
+      started.countDown();
+      if (block != null) {
+        try {
+          block.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+      if (addresses == null) throw new UnknownHostException(host);
+      return Arrays.copyOf(addresses, addresses.length);
+    }
+  }
+}
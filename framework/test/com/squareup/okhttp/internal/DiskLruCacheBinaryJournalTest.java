@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class DiskLruCacheBinaryJournalTest {
+  private static final int APP_VERSION = 100;
+
+  private File directory;
+  private File journalFile;
+  private File textJournalFile;
+  private DiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    directory = File.createTempFile("DiskLruCacheBinaryJournalTest", "");
+    directory.delete();
+    directory.mkdirs();
+    journalFile = new File(directory, DiskLruCache.JOURNAL_FILE_BINARY);
+    textJournalFile = new File(directory, DiskLruCache.JOURNAL_FILE);
+  }
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) cache.close();
+    Util.deleteContents(directory);
+    directory.delete();
+  }
+
+  @Test public void entriesSurviveReopening() throws Exception {
+    cache = open(true);
+    set("a", "apple");
+    set("b", "banana");
+    assertTrue(cache.remove("a"));
+    cache.close();
+
+    cache = open(true);
+    assertNull(get("a"));
+    assertEquals("banana", get("b"));
+    assertTrue(journalFile.exists());
+    assertFalse(textJournalFile.exists());
+  }
+
+  @Test public void tornTailIsTruncated() throws Exception {
+    cache = open(true);
+    set("a", "apple");
+    cache.close();
+    long validLength = journalFile.length();
+
+    // A segment that was cut off partway through its key table.
+    FileOutputStream out = new FileOutputStream(journalFile, true);
+    out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 2, 5, 'b', 'a' });
+    out.close();
+
+    cache = open(true);
+    assertEquals(validLength, journalFile.length());
+    assertEquals("apple", get("a"));
+    set("b", "banana");
+    cache.close();
+
+    cache = open(true);
+    assertEquals("apple", get("a"));
+    assertEquals("banana", get("b"));
+  }
+
+  @Test public void segmentWithBadChecksumIsDropped() throws Exception {
+    cache = open(true);
+    set("a", "apple");
+    cache.close();
+
+    cache = open(true);
+    set("b", "banana");
+    cache.close();
+    long length = journalFile.length();
+
+    // Tear the segment holding b's CLEAN record, leaving it DIRTY.
+    RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+    raf.setLength(length - 1);
+    raf.close();
+
+    cache = open(true);
+    assertTrue(journalFile.length() < length - 1);
+    assertEquals("apple", get("a"));
+    assertNull(get("b"));
+    assertFalse(new File(directory, "b.0").exists());
+    assertFalse(new File(directory, "b.0.tmp").exists());
+  }
+
+  @Test public void corruptHeaderDiscardsCache() throws Exception {
+    cache = open(true);
+    set("a", "apple");
+    cache.close();
+
+    RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+    raf.writeInt(0);
+    raf.close();
+
+    cache = open(true);
+    assertNull(get("a"));
+    set("b", "banana");
+    assertEquals("banana", get("b"));
+  }
+
+  @Test public void migrateFromTextToBinary() throws Exception {
+    cache = open(false);
+    set("a", "apple");
+    set("b", "banana");
+    cache.remove("b");
+    cache.close();
+    assertTrue(textJournalFile.exists());
+
+    cache = open(true);
+    assertFalse(textJournalFile.exists());
+    assertTrue(journalFile.exists());
+    assertEquals("apple", get("a"));
+    assertNull(get("b"));
+    set("c", "cherry");
+    cache.close();
+
+    cache = open(true);
+    assertEquals("apple", get("a"));
+    assertEquals("cherry", get("c"));
+  }
+
+  @Test public void migrateFromBinaryToText() throws Exception {
+    cache = open(true);
+    set("a", "apple");
+    set("b", "banana");
+    cache.remove("b");
+    cache.close();
+
+    cache = open(false);
+    assertFalse(journalFile.exists());
+    assertTrue(textJournalFile.exists());
+    assertEquals("apple", get("a"));
+    assertNull(get("b"));
+    set("c", "cherry");
+    cache.close();
+
+    cache = open(false);
+    assertEquals("apple", get("a"));
+    assertEquals("cherry", get("c"));
+  }
+
+  @Test public void shardedCacheUsesBinaryJournal() throws Exception {
+    ShardedDiskLruCache sharded =
+        ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 2, true);
+    try {
+      DiskLruCache.Editor editor = sharded.edit("a");
+      editor.set(0, "apple");
+      editor.commit();
+    } finally {
+      sharded.close();
+    }
+    File shards = new File(directory, "shards-2");
+    assertTrue(new File(new File(shards, "0"), DiskLruCache.JOURNAL_FILE_BINARY).exists());
+    assertTrue(new File(new File(shards, "1"), DiskLruCache.JOURNAL_FILE_BINARY).exists());
+    assertFalse(new File(new File(shards, "0"), DiskLruCache.JOURNAL_FILE).exists());
+
+    sharded = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 2);
+    try {
+      DiskLruCache.Snapshot snapshot = sharded.get("a");
+      assertEquals("apple", snapshot.getString(0));
+      snapshot.close();
+    } finally {
+      sharded.close();
+    }
+    assertFalse(new File(new File(shards, "0"), DiskLruCache.JOURNAL_FILE_BINARY).exists());
+  }
+
+  @Test public void compactionRacingWithEdits() throws Exception {
+    cache = open(true);
+    final int threadCount = 4;
+    final int keysPerThread = 20;
+    final int iterations = 3000;
+    @SuppressWarnings("unchecked")
+    final Map<String, String>[] expected = new Map[threadCount];
+    final Throwable[] failure = new Throwable[1];
+    Thread[] threads = new Thread[threadCount];
+    for (int t = 0; t < threadCount; t++) {
+      final int thread = t;
+      expected[t] = new HashMap<String, String>();
+      threads[t] = new Thread() {
+        @Override public void run() {
+          Random random = new Random(thread);
+          try {
+            for (int i = 0; i < iterations; i++) {
+              String key = thread + "-" + random.nextInt(keysPerThread);
+              int action = random.nextInt(10);
+              if (action == 0) {
+                cache.remove(key);
+                expected[thread].remove(key);
+              } else if (action < 4) {
+                get(key);
+              } else {
+                String value = "v" + i;
+                set(key, value);
+                expected[thread].put(key, value);
+              }
+            }
+          } catch (Throwable e) {
+            synchronized (failure) {
+              failure[0] = e;
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure[0] != null) throw new AssertionError(failure[0]);
+    awaitCleanup();
+
+    // Without compaction the journal would hold tens of thousands of records.
+    assertTrue(journalFile.length() < 100000);
+    cache.close();
+
+    cache = open(true);
+    for (int t = 0; t < threadCount; t++) {
+      for (int k = 0; k < keysPerThread; k++) {
+        String key = t + "-" + k;
+        assertEquals(key, expected[t].get(key), get(key));
+      }
+    }
+  }
+
+  private DiskLruCache open(boolean binaryJournal) throws IOException {
+    return DiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, binaryJournal);
+  }
+
+  /** Waits for background cleanup, including compaction, to finish. */
+  private void awaitCleanup() throws Exception {
+    cache.executorService.submit(new Callable<Void>() {
+      @Override public Void call() {
+        return null;
+      }
+    }).get();
+  }
+
+  private void set(String key, String value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private String get(String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null) return null;
+    try {
+      return snapshot.getString(0);
+    } finally {
+      snapshot.close();
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class InflatingInputStreamTest {
+  private int onLoanCount;
+
+  @Before public void setUp() {
+    BufferPool.setStrict(true);
+    onLoanCount = BufferPool.getOnLoanCount();
+  }
+
+  @After public void tearDown() {
+    // Every stream gives its buffer back, whether it was read to the end or closed.
+    assertEquals(onLoanCount, BufferPool.getOnLoanCount());
+    BufferPool.setStrict(false);
+  }
+
+  @Test public void singleMember() throws Exception {
+    byte[] data = randomBytes(100000);
+    assertArrayEquals(data, readAll(InflatingInputStream.gzip(in(gzip(data)))));
+  }
+
+  @Test public void singleMemberWithOneByteReads() throws Exception {
+    byte[] data = randomBytes(20000);
+    assertArrayEquals(data, readAll(InflatingInputStream.gzip(new OneByteReads(in(gzip(data))))));
+  }
+
+  @Test public void multipleMembers() throws Exception {
+    byte[] first = "Hello, ".getBytes("UTF-8");
+    byte[] second = randomBytes(30000);
+    byte[] third = "!".getBytes("UTF-8");
+    byte[] expected = concat(first, second, third);
+    byte[] gzip = concat(gzip(first), gzip(second), gzip(third));
+    assertArrayEquals(expected, readAll(InflatingInputStream.gzip(in(gzip))));
+    assertArrayEquals(expected, readAll(InflatingInputStream.gzip(new OneByteReads(in(gzip)))));
+  }
+
+  @Test public void emptyMember() throws Exception {
+    byte[] data = "data".getBytes("UTF-8");
+    byte[] gzip = concat(gzip(new byte[0]), gzip(data));
+    assertArrayEquals(data, readAll(InflatingInputStream.gzip(in(gzip))));
+  }
+
+  @Test public void trailingGarbageIsIgnored() throws Exception {
+    byte[] data = randomBytes(1000);
+    byte[] garbage = "garbage after the last member".getBytes("UTF-8");
+    assertArrayEquals(data, readAll(InflatingInputStream.gzip(in(concat(gzip(data), garbage)))));
+  }
+
+  @Test public void trailingSingleByteIsIgnored() throws Exception {
+    byte[] data = randomBytes(1000);
+    byte[] gzip = concat(gzip(data), new byte[] { 0 });
+    assertArrayEquals(data, readAll(InflatingInputStream.gzip(in(gzip))));
+  }
+
+  @Test public void optionalHeaderFields() throws Exception {
+    byte[] data = "with a name, comment, extra field and header crc".getBytes("UTF-8");
+    byte[] deflated = deflate(data, true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 2 | 4 | 8 | 16, 0, 0, 0, 0, 0, 0 });
+    out.write(new byte[] { 3, 0, 'a', 'b', 'c' }); // FEXTRA
+    out.write("name.txt\0".getBytes("UTF-8")); // FNAME
+    out.write("comment\0".getBytes("UTF-8")); // FCOMMENT
+    out.write(new byte[] { 0, 0 }); // FHCRC
+    out.write(deflated);
+    writeTrailer(out, data);
+    assertArrayEquals(data, readAll(InflatingInputStream.gzip(in(out.toByteArray()))));
+  }
+
+  @Test public void notGzip() throws Exception {
+    try {
+      readAll(InflatingInputStream.gzip(in("plain text".getBytes("UTF-8"))));
+      fail();
+    } catch (ZipException expected) {
+    }
+  }
+
+  @Test public void corruptTrailer() throws Exception {
+    byte[] gzip = gzip(randomBytes(1000));
+    gzip[gzip.length - 5]++; // Last byte of the CRC.
+    try {
+      readAll(InflatingInputStream.gzip(in(gzip)));
+      fail();
+    } catch (ZipException expected) {
+    }
+  }
+
+  @Test public void truncated() throws Exception {
+    byte[] gzip = gzip(randomBytes(1000));
+    try {
+      readAll(InflatingInputStream.gzip(in(Arrays.copyOf(gzip, gzip.length / 2))));
+      fail();
+    } catch (EOFException expected) {
+    }
+  }
+
+  @Test public void emptyInput() throws Exception {
+    try {
+      readAll(InflatingInputStream.gzip(in(new byte[0])));
+      fail();
+    } catch (EOFException expected) {
+    }
+  }
+
+  @Test public void zlibWithDictionary() throws Exception {
+    byte[] dictionary = "common words common phrases".getBytes("UTF-8");
+    byte[] data = "common words are common".getBytes("UTF-8");
+    Deflater deflater = new Deflater();
+    deflater.setDictionary(dictionary);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+    deflaterOut.write(data);
+    deflaterOut.close();
+    deflater.end();
+
+    assertArrayEquals(data, readAll(InflatingInputStream.zlib(in(out.toByteArray()), dictionary)));
+    try {
+      readAll(InflatingInputStream.zlib(in(out.toByteArray()), null));
+      fail();
+    } catch (ZipException expected) {
+    }
+  }
+
+  @Test public void closeBeforeEnd() throws Exception {
+    InputStream in = InflatingInputStream.gzip(in(gzip(randomBytes(100000))));
+    assertEquals(1000, in.read(new byte[1000]));
+    in.close();
+    try {
+      in.read();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test public void closeBeforeFirstRead() throws Exception {
+    InflatingInputStream.gzip(in(gzip(randomBytes(10)))).close();
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+    gzipOut.write(data);
+    gzipOut.close();
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] data, boolean nowrap) throws IOException {
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater);
+    deflaterOut.write(data);
+    deflaterOut.close();
+    deflater.end();
+    return out.toByteArray();
+  }
+
+  private static void writeTrailer(ByteArrayOutputStream out, byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    writeIntLe(out, (int) crc.getValue());
+    writeIntLe(out, data.length);
+  }
+
+  private static void writeIntLe(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+
+  private static byte[] randomBytes(int length) {
+    // Compressible, but not trivially so.
+    Random random = new Random(length);
+    byte[] result = new byte[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return result;
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+
+  private static InputStream in(byte[] bytes) {
+    return new ByteArrayInputStream(bytes);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    try {
+      for (int count; (count = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, count);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  /** A stream that returns at most one byte per read. */
+  private static final class OneByteReads extends FilterInputStream {
+    OneByteReads(InputStream in) {
+      super(in);
+    }
+
+    @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+      return super.read(buffer, offset, Math.min(count, 1));
+    }
+  }
+}
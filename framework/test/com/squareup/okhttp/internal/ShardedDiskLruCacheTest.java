@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ShardedDiskLruCacheTest {
+  private static final int APP_VERSION = 100;
+
+  private File directory;
+  private ShardedDiskLruCache cache;
+
+  @Before public void setUp() throws Exception {
+    directory = File.createTempFile("ShardedDiskLruCacheTest", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After public void tearDown() throws Exception {
+    if (cache != null) cache.close();
+    Util.deleteContents(directory);
+    directory.delete();
+  }
+
+  @Test public void singleShardUsesPlainLayout() throws Exception {
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 1);
+    set("a", "apple");
+    assertTrue(new File(directory, "journal").exists());
+    assertEquals(1, cache.getShardCount());
+    assertEquals("apple", get("a"));
+  }
+
+  @Test public void entriesSurviveReopeningWithSameShardCount() throws Exception {
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      set("k" + i, "v" + i);
+    }
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 4);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("v" + i, get("k" + i));
+    }
+    assertTrue(new File(directory, "shards-4").isDirectory());
+  }
+
+  @Test public void migrateFromPlainToSharded() throws Exception {
+    DiskLruCache plain = DiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE);
+    DiskLruCache.Editor editor = plain.edit("a");
+    editor.set(0, "apple");
+    editor.commit();
+    plain.close();
+
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 4);
+    assertNull(get("a"));
+    assertFalse(new File(directory, "journal").exists());
+    String[] files = directory.list();
+    assertEquals(1, files.length);
+    assertEquals("shards-4", files[0]);
+
+    set("a", "avocado");
+    assertEquals("avocado", get("a"));
+  }
+
+  @Test public void migrateBetweenShardCounts() throws Exception {
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 4);
+    set("a", "apple");
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 2);
+    assertNull(get("a"));
+    assertFalse(new File(directory, "shards-4").exists());
+    assertTrue(new File(directory, "shards-2").isDirectory());
+  }
+
+  @Test public void migrateFromShardedToPlain() throws Exception {
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 4);
+    set("a", "apple");
+    cache.close();
+
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 1);
+    assertNull(get("a"));
+    assertFalse(new File(directory, "shards-4").exists());
+    set("b", "banana");
+    cache.close();
+
+    // The plain layout is readable by a plain DiskLruCache.
+    DiskLruCache plain = DiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE);
+    try {
+      DiskLruCache.Snapshot snapshot = plain.get("b");
+      assertEquals("banana", snapshot.getString(0));
+      snapshot.close();
+    } finally {
+      plain.close();
+    }
+    cache = null;
+  }
+
+  @Test public void maxSizeIsSplitAcrossShards() throws Exception {
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, 10, 4);
+    assertEquals(10, cache.getMaxSize());
+    cache.setMaxSize(7);
+    assertEquals(7, cache.getMaxSize());
+  }
+
+  @Test public void removeAndSize() throws Exception {
+    cache = ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 4);
+    set("a", "apple");
+    set("b", "banana");
+    assertEquals(11, cache.size());
+    assertTrue(cache.remove("a"));
+    assertFalse(cache.remove("a"));
+    assertNull(get("a"));
+    assertEquals(6, cache.size());
+  }
+
+  @Test public void invalidShardCount() throws Exception {
+    try {
+      ShardedDiskLruCache.open(directory, APP_VERSION, 1, Integer.MAX_VALUE, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      ShardedDiskLruCache.open(directory, APP_VERSION, 1, 3, 4);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private void set(String key, String value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    editor.set(0, value);
+    editor.commit();
+  }
+
+  private String get(String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null) return null;
+    try {
+      return snapshot.getString(0);
+    } finally {
+      snapshot.close();
+    }
+  }
+}
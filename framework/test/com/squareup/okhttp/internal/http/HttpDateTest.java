@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal.http;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public final class HttpDateTest {
+  /** Sun, 06 Nov 1994 08:49:37 GMT, the example date from RFC 2616. */
+  private static final long RFC_EXAMPLE = 784111777000L;
+
+  @Test public void parseRfc2616Formats() {
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+    assertEquals(RFC_EXAMPLE, parse("Sunday, 06-Nov-94 08:49:37 GMT"));
+    assertEquals(RFC_EXAMPLE, parse("Sun Nov  6 08:49:37 1994"));
+  }
+
+  @Test public void parseBrowserCompatibleVariants() {
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06-Nov-1994 08:49:37 GMT"));
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 94 08:49:37 GMT"));
+    assertEquals(RFC_EXAMPLE, parse("Sun,06-Nov-1994 08:49:37 GMT"));
+    assertEquals(RFC_EXAMPLE, parse("Sun Nov 6 08:49:37 1994 GMT"));
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 1994 08:49:37"));
+    assertEquals(RFC_EXAMPLE, parse("sun, 06 nov 1994 08:49:37 gmt"));
+    assertEquals(RFC_EXAMPLE, parse("Sun 06-11-1994 08:49:37 GMT"));
+  }
+
+  @Test public void parseZones() {
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 1994 00:49:37 PST"));
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 1994 03:49:37 -0500"));
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 1994 09:49:37 +01:00"));
+    assertEquals(RFC_EXAMPLE, parse("Sun, 06 Nov 1994 10:49:37 GMT+2"));
+  }
+
+  @Test public void parseTwoDigitYears() {
+    assertEquals(0L, parse("Thu, 01-Jan-70 00:00:00 GMT"));
+    assertEquals(946684800000L, parse("Sat, 01-Jan-00 00:00:00 GMT"));
+    assertEquals(3124137600000L, parse("Wed, 31-Dec-68 00:00:00 GMT"));
+  }
+
+  @Test public void parseRange() {
+    String value = "Expires: Sun, 06 Nov 1994 08:49:37 GMT; extra";
+    assertEquals(RFC_EXAMPLE, HttpDate.parseMillis(value, 9, 38));
+  }
+
+  @Test public void parseInvalid() {
+    assertNull(HttpDate.parse(null));
+    assertNull(HttpDate.parse(""));
+    assertNull(HttpDate.parse("0"));
+    assertNull(HttpDate.parse("-1"));
+    assertNull(HttpDate.parse("tomorrow"));
+    assertNull(HttpDate.parse("Sun, 06 Nov 1994"));
+    assertNull(HttpDate.parse("Sun, 06 Nov 1994 08:49 GMT"));
+    assertNull(HttpDate.parse("Sun, 32 Nov 1994 08:49:37 GMT"));
+    assertNull(HttpDate.parse("Sun, 06 Nov 1994 24:49:37 GMT"));
+    assertNull(HttpDate.parse("Sun, 06 Nov 1994 08:49:37 GMT; path=/"));
+    assertNull(HttpDate.parse("Sun, 06 Nov 1994 1995 08:49:37 GMT"));
+  }
+
+  @Test public void format() {
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(RFC_EXAMPLE));
+    assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", HttpDate.format(RFC_EXAMPLE + 999));
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", HttpDate.format(0L));
+    assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", HttpDate.format(-1L));
+    assertEquals("Tue, 29 Feb 2000 12:00:00 GMT", HttpDate.format(new Date(951825600000L)));
+  }
+
+  @Test public void formatMatchesSimpleDateFormat() {
+    DateFormat reference = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    reference.setTimeZone(TimeZone.getTimeZone("GMT"));
+    Random random = new Random(0);
+    long min = -2208988800000L; // 1900
+    long max = 7258118400000L; // 2200
+    for (int i = 0; i < 10000; i++) {
+      long millis = min + (long) (random.nextDouble() * (max - min));
+      String formatted = HttpDate.format(millis);
+      assertEquals(reference.format(new Date(millis)), formatted);
+      assertEquals(millis / 1000 * 1000 - (millis < 0 && millis % 1000 != 0 ? 1000 : 0),
+          parse(formatted));
+    }
+  }
+
+  private static long parseMillis(String value) {
+    return HttpDate.parseMillis(value, 0, value.length());
+  }
+
+  private static long parse(String value) {
+    long result = parseMillis(value);
+    assertEquals(result != -1 ? new Date(result) : null, HttpDate.parse(value));
+    return result;
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.squareup.okhttp.internal.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads the same input through each way {@link RawHeaders#readHeaders} can
+ * consume a stream: in chunks with mark and reset, and a byte at a time.
+ */
+public final class RawHeadersTest {
+  private static final String RESPONSE = ""
+      + "Content-Type: text/html\r\n"
+      + "content-length:  42 \r\n"
+      + "X-Custom: first\r\n"
+      + "X-Custom: second\n"
+      + "NoColon\r\n"
+      + "Empty:\r\n"
+      + "\r\n"
+      + "body";
+
+  @Test public void readHeadersChunked() throws Exception {
+    assertParsed(new BufferedInputStream(stream(RESPONSE)));
+  }
+
+  @Test public void readHeadersChunkedWithShortReads() throws Exception {
+    assertParsed(new BufferedInputStream(new OneByteReads(stream(RESPONSE)), 3));
+  }
+
+  @Test public void readHeadersByteAtATime() throws Exception {
+    assertParsed(new NoMark(stream(RESPONSE)));
+  }
+
+  @Test public void headersSpanningManyChunks() throws Exception {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      builder.append("X-Header-").append(i).append(": value-").append(i).append("\r\n");
+    }
+    builder.append("\r\nbody");
+    for (InputStream in : streams(builder.toString())) {
+      RawHeaders headers = new RawHeaders();
+      RawHeaders.readHeaders(in, headers);
+      assertEquals(100, headers.length());
+      assertEquals("X-Header-99", headers.getFieldName(99));
+      assertEquals("value-57", headers.get("x-header-57"));
+      assertEquals("body", readRemaining(in));
+    }
+  }
+
+  @Test public void blankLineOnly() throws Exception {
+    for (InputStream in : streams("\r\nbody")) {
+      RawHeaders headers = new RawHeaders();
+      RawHeaders.readHeaders(in, headers);
+      assertEquals(0, headers.length());
+      assertEquals("body", readRemaining(in));
+    }
+  }
+
+  @Test public void truncatedHeadersThrow() throws Exception {
+    for (InputStream in : streams("Content-Type: text/html\r\nContent-Len")) {
+      try {
+        RawHeaders.readHeaders(in, new RawHeaders());
+        fail();
+      } catch (EOFException expected) {
+      }
+    }
+  }
+
+  @Test public void fromBytesSkipsContinueResponses() throws Exception {
+    String response = "HTTP/1.1 100 Continue\r\n"
+        + "X-Interim: yes\r\n"
+        + "\r\n"
+        + "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "\r\n"
+        + "body";
+    for (InputStream in : streams(response)) {
+      RawHeaders headers = RawHeaders.fromBytes(in);
+      assertEquals(200, headers.getResponseCode());
+      assertEquals("OK", headers.getResponseMessage());
+      assertNull(headers.get("X-Interim"));
+      assertEquals("text/plain", headers.get("Content-Type"));
+      assertEquals("body", readRemaining(in));
+    }
+  }
+
+  @Test public void parsedFieldsCanBeModified() throws Exception {
+    RawHeaders headers = new RawHeaders();
+    RawHeaders.readHeaders(new BufferedInputStream(stream(RESPONSE)), headers);
+    headers.removeAll("x-custom");
+    headers.set("Content-Length", "7");
+    headers.add("Via", "proxy");
+    assertEquals(5, headers.length());
+    assertEquals("7", headers.get("content-length"));
+    assertEquals("proxy", headers.get("Via"));
+    assertEquals("text/html", headers.get("Content-Type"));
+  }
+
+  private void assertParsed(InputStream in) throws IOException {
+    RawHeaders headers = new RawHeaders();
+    RawHeaders.readHeaders(in, headers);
+    assertEquals(6, headers.length());
+    // A well-known name spelled the usual way shares its constant.
+    assertSame("Content-Type", headers.getFieldName(0));
+    assertEquals("content-length", headers.getFieldName(1));
+    assertEquals("42", headers.get("Content-Length"));
+    assertEquals("text/html", headers.get("content-type"));
+    assertEquals("second", headers.get("X-Custom"));
+    assertEquals("first", headers.getValue(2));
+    assertEquals("", headers.getFieldName(4));
+    assertEquals("NoColon", headers.getValue(4));
+    assertEquals("", headers.get("Empty"));
+    // The stream is left at the start of the body.
+    assertEquals("body", readRemaining(in));
+  }
+
+  private static List<InputStream> streams(String s) {
+    return Arrays.<InputStream>asList(new BufferedInputStream(stream(s)),
+        new BufferedInputStream(new OneByteReads(stream(s)), 3), new NoMark(stream(s)));
+  }
+
+  private static InputStream stream(String s) {
+    try {
+      return new ByteArrayInputStream(s.getBytes("ISO-8859-1"));
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String readRemaining(InputStream in) throws IOException {
+    List<Byte> bytes = new ArrayList<Byte>();
+    for (int b; (b = in.read()) != -1; ) {
+      bytes.add((byte) b);
+    }
+    byte[] result = new byte[bytes.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bytes.get(i);
+    }
+    return new String(result, "ISO-8859-1");
+  }
+
+  /** A stream that doesn't support mark, forcing the byte-at-a-time path. */
+  private static final class NoMark extends FilterInputStream {
+    NoMark(InputStream in) {
+      super(in);
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+  }
+
+  /** A stream that returns at most one byte per read. */
+  private static final class OneByteReads extends FilterInputStream {
+    OneByteReads(InputStream in) {
+      super(in);
+    }
+
+    @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+      return super.read(buffer, offset, Math.min(count, 1));
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.spdy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/** Writes the frames of a server that pushes streams, for tests of the client side. */
+public final class PushWriter {
+  private final SpdyWriter writer;
+
+  public PushWriter(OutputStream out) {
+    this.writer = new SpdyWriter(out);
+  }
+
+  /** Opens the pushed stream {@code streamId}, which must be even. */
+  public void synStream(int streamId, List<String> headers) throws IOException {
+    writer.synStream(SpdyConnection.FLAG_UNIDIRECTIONAL, streamId, 1, 0, 0, headers);
+  }
+
+  public void headers(int streamId, List<String> headers) throws IOException {
+    writer.headers(0, streamId, headers);
+  }
+
+  public void data(int streamId, byte[] data, boolean fin) throws IOException {
+    writer.data(fin ? SpdyConnection.FLAG_FIN : 0, streamId, 0, data);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class BridgeModeCalibratorTest {
+    @Test
+    public void testSelectsFastestMode() {
+        assertEquals(2, BridgeModeCalibrator.selectMode(new long[] { 900, -1, 300, 500 }));
+    }
+
+    @Test
+    public void testSkipsModesThatDidNotRespond() {
+        assertEquals(3, BridgeModeCalibrator.selectMode(new long[] { -1, -1, -1, 500 }));
+    }
+
+    @Test
+    public void testNeverSelectsLoadUrl() {
+        // Mode 1 is LOAD_URL, which dismisses the soft keyboard.
+        assertEquals(0, BridgeModeCalibrator.selectMode(new long[] { 900, 1, 1000 }));
+    }
+
+    @Test
+    public void testNoModeResponded() {
+        assertEquals(-1, BridgeModeCalibrator.selectMode(new long[] { -1, -1, -1 }));
+        assertEquals(-1, BridgeModeCalibrator.selectMode(new long[0]));
+    }
+
+    @Test
+    public void testPrefersLowerModeOnTie() {
+        assertEquals(2, BridgeModeCalibrator.selectMode(new long[] { -1, -1, 400, 400 }));
+    }
+
+    @Test
+    public void testIsProbe() {
+        assertTrue(BridgeModeCalibrator.isProbe("PluginManager", "bridgeProbe"));
+        assertFalse(BridgeModeCalibrator.isProbe("PluginManager", "startup"));
+        assertFalse(BridgeModeCalibrator.isProbe("Camera", "bridgeProbe"));
+        assertFalse(BridgeModeCalibrator.isProbe(null, null));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.List;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class CallbackRegistryTest {
+    // Long enough that the registry's own sweep never sees a callback expire.
+    private static final long DEADLINE = 60 * 1000;
+
+    private CallbackRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new CallbackRegistry(0);
+        registry.addDeadlines("Geolocation", "getCurrentPosition:" + DEADLINE);
+    }
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    @Test
+    public void testExpiredCallbackRemoved() {
+        RecordingCallbackContext callback = new RecordingCallbackContext("Geolocation1");
+        long now = System.currentTimeMillis();
+        registry.register(callback, "Geolocation", "getCurrentPosition");
+        assertEquals(1, registry.getLiveCount());
+        assertTrue(registry.removeExpired(now + DEADLINE - 1).isEmpty());
+
+        List<CallbackRegistry.Entry> expired = registry.removeExpired(System.currentTimeMillis() + DEADLINE);
+        assertEquals(1, expired.size());
+        assertSame(callback, expired.get(0).callbackContext);
+        assertEquals(1, registry.getTimedOutCount());
+        assertEquals(0, registry.getLiveCount());
+    }
+
+    @Test
+    public void testTimeoutResultIsError() {
+        RecordingCallbackContext callback = new RecordingCallbackContext("Geolocation2");
+        registry.register(callback, "Geolocation", "getCurrentPosition");
+        PluginResult result = registry.removeExpired(System.currentTimeMillis() + DEADLINE).get(0)
+                .createTimeoutResult();
+        assertEquals(PluginResult.Status.ERROR.ordinal(), result.getStatus());
+        assertEquals("Geolocation.getCurrentPosition timed out after " + DEADLINE + "ms", result.getStrMessage());
+        assertFalse(result.getKeepCallback());
+    }
+
+    @Test
+    public void testFinishedCallbackNotTimedOut() {
+        RecordingCallbackContext callback = new RecordingCallbackContext("Geolocation3");
+        registry.register(callback, "Geolocation", "getCurrentPosition");
+        callback.finished = true;
+        registry.onResultSent(callback, new PluginResult(PluginResult.Status.OK, "position"));
+        assertEquals(0, registry.getLiveCount());
+
+        assertTrue(registry.removeExpired(System.currentTimeMillis() + DEADLINE).isEmpty());
+        assertEquals(0, registry.getTimedOutCount());
+    }
+
+    @Test
+    public void testNoDeadlineNoTimeout() {
+        RecordingCallbackContext callback = new RecordingCallbackContext("Geolocation4");
+        registry.register(callback, "Geolocation", "watchPosition");
+        registry.addDeadlines("Other", "slow:" + DEADLINE);
+        registry.register(new RecordingCallbackContext("Other5"), "Other", "slow");
+
+        List<CallbackRegistry.Entry> expired = registry.removeExpired(System.currentTimeMillis() + DEADLINE);
+        assertEquals(1, expired.size());
+        assertNotSame(callback, expired.get(0).callbackContext);
+        assertEquals(1, registry.getLiveCount());
+    }
+
+    @Test
+    public void testReportListsOldestAndLargest() {
+        RecordingCallbackContext older = new RecordingCallbackContext("Geolocation6");
+        RecordingCallbackContext larger = new RecordingCallbackContext("Geolocation7");
+        registry.register(older, "Geolocation", "watchPosition");
+        registry.register(larger, "Geolocation", "watchPosition");
+        PluginResult update = new PluginResult(PluginResult.Status.OK, "position");
+        update.setKeepCallback(true);
+        registry.onResultSent(larger, update);
+
+        String report = registry.getReport(1);
+        assertTrue(report, report.startsWith("2 live callbacks (0 timed out, 0 untracked)."));
+        assertTrue(report, report.contains("Oldest:\n  Geolocation6 "));
+        assertTrue(report, report.contains("Largest:\n  Geolocation7 "));
+    }
+
+    private static class RecordingCallbackContext extends CallbackContext {
+        boolean finished;
+
+        RecordingCallbackContext(String callbackId) {
+            super(callbackId, null);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+    }
+}
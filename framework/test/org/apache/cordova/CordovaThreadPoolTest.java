@@ -0,0 +1,261 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class CordovaThreadPoolTest {
+    private CordovaThreadPool pool;
+    private String previousService;
+
+    @Before
+    public void setUp() {
+        previousService = CordovaThreadPool.setCurrentService(null);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        CordovaThreadPool.setCurrentService(previousService);
+        if (pool != null) {
+            pool.shutdownNow();
+            pool.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testPluginQuotaHoldsTasksInBacklog() throws Exception {
+        pool = new CordovaThreadPool(4, 4, 10, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        CordovaThreadPool.setCurrentService("Camera");
+        for (int i = 0; i < 3; ++i) {
+            pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        }
+        CordovaThreadPool.setCurrentService(null);
+        assertEquals(2, pool.getQueueDepth());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, maxRunning.get());
+        assertEquals(0, pool.getRejectedTaskCount());
+    }
+
+    @Test
+    public void testQuotaIsPerPlugin() throws Exception {
+        pool = new CordovaThreadPool(4, 4, 10, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        CordovaThreadPool.setCurrentService("Camera");
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        CordovaThreadPool.setCurrentService("File");
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        CordovaThreadPool.setCurrentService(null);
+        assertEquals(0, pool.getQueueDepth());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTasksSubmittedFromPoolAreNotCharged() throws Exception {
+        pool = new CordovaThreadPool(2, 2, 10, 1);
+        final CountDownLatch nestedRan = new CountDownLatch(1);
+        final CountDownLatch outerDone = new CountDownLatch(1);
+
+        CordovaThreadPool.setCurrentService("Camera");
+        pool.execute(new Runnable() {
+            public void run() {
+                // Would wait forever if this were held back by Camera's quota.
+                pool.execute(new Runnable() {
+                    public void run() {
+                        nestedRan.countDown();
+                    }
+                });
+                try {
+                    if (nestedRan.await(5, TimeUnit.SECONDS)) {
+                        outerDone.countDown();
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        CordovaThreadPool.setCurrentService(null);
+        assertTrue(outerDone.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        pool = new CordovaThreadPool(1, 1, 1, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        try {
+            pool.execute(new BlockingTask(release, finished, running, maxRunning));
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, pool.getRejectedTaskCount());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedTaskReleasesQuota() throws Exception {
+        pool = new CordovaThreadPool(1, 1, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        CordovaThreadPool.setCurrentService("Camera");
+        try {
+            pool.execute(new BlockingTask(release, finished, running, maxRunning));
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        CordovaThreadPool.setCurrentService(null);
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+
+        // Would stay in the backlog if the rejected task still held Camera's only slot.
+        CountDownLatch more = new CountDownLatch(1);
+        CordovaThreadPool.setCurrentService("Camera");
+        pool.execute(new BlockingTask(release, more, running, maxRunning));
+        CordovaThreadPool.setCurrentService(null);
+        assertTrue(more.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testBacklogTaskRunsWhenQueueIsFull() throws Exception {
+        pool = new CordovaThreadPool(1, 1, 1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        CordovaThreadPool.setCurrentService("Camera");
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        CordovaThreadPool.setCurrentService(null);
+        // Fills the queue, so the backlog task has nowhere to go once the first finishes.
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        assertEquals(2, pool.getQueueDepth());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pool.getQueueDepth());
+    }
+
+    @Test
+    public void testForegroundTasksOvertakeBackground() throws Exception {
+        pool = new CordovaThreadPool(1, 1, 10, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch queuedRan = new CountDownLatch(3);
+
+        pool.execute(new BlockingTask(release, finished, running, maxRunning));
+        pool.execute(new RecordingTask(order, "background", queuedRan), CordovaThreadPool.PRIORITY_BACKGROUND);
+        pool.execute(new RecordingTask(order, "default", queuedRan));
+        pool.execute(new RecordingTask(order, "foreground", queuedRan), CordovaThreadPool.PRIORITY_FOREGROUND);
+
+        release.countDown();
+        assertTrue(queuedRan.await(5, TimeUnit.SECONDS));
+        assertEquals(3, order.size());
+        assertEquals("foreground", order.get(0));
+        assertEquals("default", order.get(1));
+        assertEquals("background", order.get(2));
+        // Tasks are counted after they return, so let them all finish first.
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(4, pool.getFinishedTaskCount());
+    }
+
+    private static class BlockingTask implements Runnable {
+        private final CountDownLatch release;
+        private final CountDownLatch finished;
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+
+        BlockingTask(CountDownLatch release, CountDownLatch finished, AtomicInteger running, AtomicInteger maxRunning) {
+            this.release = release;
+            this.finished = finished;
+            this.running = running;
+            this.maxRunning = maxRunning;
+        }
+
+        public void run() {
+            int now = running.incrementAndGet();
+            while (true) {
+                int max = maxRunning.get();
+                if (now <= max || maxRunning.compareAndSet(max, now)) {
+                    break;
+                }
+            }
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            } finally {
+                running.decrementAndGet();
+                finished.countDown();
+            }
+        }
+    }
+
+    private static class RecordingTask implements Runnable {
+        private final List<String> order;
+        private final String name;
+        private final CountDownLatch ran;
+
+        RecordingTask(List<String> order, String name, CountDownLatch ran) {
+            this.order = order;
+            this.name = name;
+            this.ran = ran;
+        }
+
+        public void run() {
+            order.add(name);
+            ran.countDown();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class ExecResultCacheTest {
+    private ExecResultCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new ExecResultCache(2);
+        cache.addRules("Device", "getDeviceInfo, getConnectionInfo:50");
+    }
+
+    @Test
+    public void testHitAfterPut() {
+        PluginResult result = new PluginResult(PluginResult.Status.OK, "info");
+        assertNull(cache.get("Device", "getDeviceInfo", "[]"));
+        cache.put("Device", "getDeviceInfo", "[]", result);
+        assertSame(result, cache.get("Device", "getDeviceInfo", "[]"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testKeyedByArguments() {
+        cache.put("Device", "getDeviceInfo", "[1]", new PluginResult(PluginResult.Status.OK, "one"));
+        assertNull(cache.get("Device", "getDeviceInfo", "[2]"));
+        assertEquals("one", cache.get("Device", "getDeviceInfo", "[1]").getStrMessage());
+    }
+
+    @Test
+    public void testActionsNotMemoized() {
+        assertFalse(cache.isMemoized("Device", "vibrate"));
+        assertFalse(cache.isMemoized("Camera", "getDeviceInfo"));
+        cache.put("Device", "vibrate", "[]", new PluginResult(PluginResult.Status.OK));
+        assertNull(cache.get("Device", "vibrate", "[]"));
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testOnlyFinalSuccessfulResultsAreCached() {
+        cache.put("Device", "getDeviceInfo", "[1]", new PluginResult(PluginResult.Status.ERROR, "failed"));
+        PluginResult partial = new PluginResult(PluginResult.Status.OK, "partial");
+        partial.setKeepCallback(true);
+        cache.put("Device", "getDeviceInfo", "[2]", partial);
+        assertNull(cache.get("Device", "getDeviceInfo", "[1]"));
+        assertNull(cache.get("Device", "getDeviceInfo", "[2]"));
+    }
+
+    @Test
+    public void testClearInvalidates() {
+        cache.put("Device", "getDeviceInfo", "[]", new PluginResult(PluginResult.Status.OK, "info"));
+        cache.clear();
+        assertNull(cache.get("Device", "getDeviceInfo", "[]"));
+        // The rules survive.
+        assertTrue(cache.isMemoized("Device", "getDeviceInfo"));
+    }
+
+    @Test
+    public void testExpiresAfterTtl() throws InterruptedException {
+        cache.put("Device", "getConnectionInfo", "[]", new PluginResult(PluginResult.Status.OK, "wifi"));
+        assertNotNull(cache.get("Device", "getConnectionInfo", "[]"));
+        Thread.sleep(100);
+        assertNull(cache.get("Device", "getConnectionInfo", "[]"));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        cache.put("Device", "getDeviceInfo", "[1]", new PluginResult(PluginResult.Status.OK, "one"));
+        cache.put("Device", "getDeviceInfo", "[2]", new PluginResult(PluginResult.Status.OK, "two"));
+        assertNotNull(cache.get("Device", "getDeviceInfo", "[1]"));
+        cache.put("Device", "getDeviceInfo", "[3]", new PluginResult(PluginResult.Status.OK, "three"));
+        assertNotNull(cache.get("Device", "getDeviceInfo", "[1]"));
+        assertNull(cache.get("Device", "getDeviceInfo", "[2]"));
+        assertNotNull(cache.get("Device", "getDeviceInfo", "[3]"));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+package org.apache.cordova;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+public class TraceTest {
+    private static final int PID = 1234;
+
+    @After
+    public void tearDown() {
+        Trace.disable();
+    }
+
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        assertFalse(Trace.isEnabled());
+        assertEquals(0, Trace.begin());
+        try {
+            Trace.export(new File(System.getProperty("java.io.tmpdir")));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testExportKeepsMostRecentSpans() throws Exception {
+        Trace.enable(2);
+        assertTrue(Trace.isEnabled());
+        Trace.end(Trace.CATEGORY_BRIDGE, "first", Trace.begin());
+        Trace.end(Trace.CATEGORY_BRIDGE, "second", Trace.begin(), "Device");
+        Trace.end(Trace.CATEGORY_PLUGIN, "third", Trace.begin(), "Device", "getDeviceInfo");
+
+        JSONArray events = export().getJSONArray("traceEvents");
+        List<JSONObject> spans = new ArrayList<JSONObject>();
+        boolean sawThreadName = false;
+        for (int i = 0; i < events.length(); ++i) {
+            JSONObject event = events.getJSONObject(i);
+            if ("X".equals(event.getString("ph"))) {
+                spans.add(event);
+            } else if ("thread_name".equals(event.getString("name"))) {
+                sawThreadName = true;
+                assertEquals(Thread.currentThread().getName(), event.getJSONObject("args").getString("name"));
+            }
+        }
+        assertTrue(sawThreadName);
+        assertEquals(2, spans.size());
+        assertEquals("second", spans.get(0).getString("name"));
+        assertEquals("Device", spans.get(0).getJSONObject("args").getString("detail"));
+        assertEquals("third", spans.get(1).getString("name"));
+        assertEquals(Trace.CATEGORY_PLUGIN, spans.get(1).getString("cat"));
+        assertEquals("Device.getDeviceInfo", spans.get(1).getJSONObject("args").getString("detail"));
+        assertEquals(PID, spans.get(1).getInt("pid"));
+    }
+
+    @Test
+    public void testSpansStartedWhileDisabledAreDropped() throws Exception {
+        long start = Trace.begin();
+        Trace.enable(4);
+        Trace.end(Trace.CATEGORY_BRIDGE, "dropped", start);
+        assertEquals(0, export().getJSONArray("traceEvents").length());
+    }
+
+    @Test
+    public void testDisableDiscardsSpans() throws Exception {
+        Trace.enable(4);
+        Trace.end(Trace.CATEGORY_BRIDGE, "discarded", Trace.begin());
+        Trace.disable();
+        Trace.enable(4);
+        assertEquals(0, export().getJSONArray("traceEvents").length());
+    }
+
+    private JSONObject export() throws Exception {
+        StringWriter writer = new StringWriter();
+        Trace.writeTo(writer, PID);
+        return new JSONObject(writer.toString());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+       Licensed to the Apache Software Foundation (ASF) under one
+       or more contributor license agreements.  See the NOTICE file
+       distributed with this work for additional information
+       regarding copyright ownership.  The ASF licenses this file
+       to you under the Apache License, Version 2.0 (the
+       "License"); you may not use this file except in compliance
+       with the License.  You may obtain a copy of the License at
+
+         http://www.apache.org/licenses/LICENSE-2.0
+
+       Unless required by applicable law or agreed to in writing,
+       software distributed under the License is distributed on an
+       "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+       KIND, either express or implied.  See the License for the
+       specific language governing permissions and limitations
+       under the License.
+*/
+
+package org.apache.cordova.test;
+
+import org.apache.cordova.NativeToJsMessageQueue;
+import org.apache.cordova.test.actions.CordovaWebViewTestActivity;
+
+import android.test.ActivityInstrumentationTestCase2;
+
+public class NativeToJsMessageQueueTest extends ActivityInstrumentationTestCase2<CordovaWebViewTestActivity> {
+    private static final String PROBE =
+            "cordova.require('cordova/exec')(null,null,'PluginManager','bridgeProbe',[0]);";
+
+    private NativeToJsMessageQueue queue;
+
+    public NativeToJsMessageQueueTest() {
+        super("org.apache.cordova.test.activities", CordovaWebViewTestActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final CordovaWebViewTestActivity activity = getActivity();
+        try {
+            runTestOnUiThread(new Runnable() {
+                public void run() {
+                    queue = new NativeToJsMessageQueue(activity.cordovaWebView, activity);
+                }
+            });
+        } catch (Throwable e) {
+            throw new Exception(e);
+        }
+    }
+
+    public void testPollingProbeIsFlushed() {
+        // Mode 0 is polling, which has no listener; JS pulls messages itself.
+        queue.setBridgeMode(0);
+        assertEquals(0, queue.getBridgeMode());
+        queue.addJavaScript(PROBE);
+
+        String encoded = queue.popAndEncode(false);
+        assertNotNull(encoded);
+        assertTrue(encoded.contains(PROBE));
+        assertNull(queue.popAndEncode(false));
+    }
+
+    public void testPollingFlushFromOnlineEvent() {
+        queue.setBridgeMode(0);
+        assertNull(queue.popAndEncode(true));
+        queue.addJavaScript(PROBE);
+        assertTrue(queue.popAndEncode(true).contains(PROBE));
+    }
+}